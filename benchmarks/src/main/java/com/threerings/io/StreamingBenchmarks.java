@@ -0,0 +1,178 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.util.StreamableEnumSet;
+
+import com.threerings.presents.dobj.DSet;
+import com.threerings.presents.net.BenchObject;
+
+/**
+ * Measures the round trip (encode and decode) of individual values through the basic streamers,
+ * {@link StreamableEnumSet}, {@link DSet} and the intern and class mapping machinery. Each
+ * benchmark writes to and reads from a fresh pair of streams, so mappings are sent in full. Run
+ * with <code>-prof gc</code> to report allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class StreamingBenchmarks
+{
+    @Setup
+    public void setup ()
+    {
+        _ints = new int[256];
+        for (int ii = 0; ii < _ints.length; ii++) {
+            _ints[ii] = ii * 31;
+        }
+        _list = Lists.newArrayList();
+        for (int ii = 0; ii < 64; ii++) {
+            _list.add("element" + ii);
+        }
+        _flags = new BenchObject.FlagSet();
+        _flags.add(BenchObject.Flag.ONLINE);
+        _flags.add(BenchObject.Flag.MUTED);
+        _entry = new BenchObject.Entry(7);
+        _set = BenchObject.create(100).entries;
+    }
+
+    @Benchmark
+    public Object string ()
+        throws IOException, ClassNotFoundException
+    {
+        return roundTrip(STRING);
+    }
+
+    @Benchmark
+    public Object intArray ()
+        throws IOException, ClassNotFoundException
+    {
+        return roundTrip(_ints);
+    }
+
+    @Benchmark
+    public Object list ()
+        throws IOException, ClassNotFoundException
+    {
+        return roundTrip(_list);
+    }
+
+    @Benchmark
+    public Object enumSet ()
+        throws IOException, ClassNotFoundException
+    {
+        return roundTrip(_flags);
+    }
+
+    @Benchmark
+    public Object entry ()
+        throws IOException, ClassNotFoundException
+    {
+        return roundTrip(_entry);
+    }
+
+    @Benchmark
+    public Object dset ()
+        throws IOException, ClassNotFoundException
+    {
+        return roundTrip(_set);
+    }
+
+    @Benchmark
+    public Object internedStrings ()
+        throws IOException, ClassNotFoundException
+    {
+        // the first write of each string sends it in full, subsequent writes send only its code
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (int ii = 0; ii < 32; ii++) {
+            oout.writeIntern(INTERNS[ii % INTERNS.length]);
+        }
+        oout.flush();
+        ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        String last = null;
+        for (int ii = 0; ii < 32; ii++) {
+            last = oin.readIntern();
+        }
+        return last;
+    }
+
+    @Benchmark
+    public Object classMappings ()
+        throws IOException, ClassNotFoundException
+    {
+        // the first write of each class sends its name, subsequent writes send only its code
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (int ii = 0; ii < 32; ii++) {
+            oout.writeObject(_entry);
+            oout.writeObject(_flags);
+        }
+        oout.flush();
+        ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        Object last = null;
+        for (int ii = 0; ii < 64; ii++) {
+            last = oin.readObject();
+        }
+        return last;
+    }
+
+    protected static Object roundTrip (Object value)
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(value);
+        oout.flush();
+        return new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+    }
+
+    protected int[] _ints;
+    protected List<String> _list;
+    protected BenchObject.FlagSet _flags;
+    protected BenchObject.Entry _entry;
+    protected DSet<BenchObject.Entry> _set;
+
+    protected static final String STRING = "The quick brown fox jumped over the lazy dog.";
+    protected static final String[] INTERNS = { "player", "guest", "moderator", "admin" };
+}
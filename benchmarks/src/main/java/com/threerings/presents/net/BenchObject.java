@@ -0,0 +1,114 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.net;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.io.Intern;
+import com.threerings.io.SimpleStreamableObject;
+import com.threerings.util.StreamableEnumSet;
+
+import com.threerings.presents.dobj.DObject;
+import com.threerings.presents.dobj.DSet;
+
+/**
+ * A distributed object shaped like a typical game object, for use by the benchmarks.
+ */
+public class BenchObject extends DObject
+{
+    /** Flags that may be set on an entry. */
+    public static enum Flag { ONLINE, AWAY, BUSY, MUTED, ADMIN }
+
+    /** A set of flags, whose element type need not be streamed. */
+    public static class FlagSet extends StreamableEnumSet<Flag>
+    {
+        public FlagSet ()
+        {
+            super(Flag.class);
+        }
+
+        @Override
+        protected boolean classDefinesElementType ()
+        {
+            return true;
+        }
+    }
+
+    /** A typical set entry. */
+    public static class Entry extends SimpleStreamableObject
+        implements DSet.Entry
+    {
+        public int id;
+        public String name;
+        @Intern public String kind;
+        public long stamp;
+        public FlagSet flags = new FlagSet();
+
+        public Entry ()
+        {
+        }
+
+        public Entry (int id)
+        {
+            this.id = id;
+            this.name = "entry" + id;
+            this.kind = KINDS[id % KINDS.length];
+            this.stamp = 1234567890L + id;
+            this.flags.add(Flag.values()[id % Flag.values().length]);
+        }
+
+        // from interface DSet.Entry
+        public Comparable<?> getKey ()
+        {
+            return id;
+        }
+    }
+
+    /** The name of this object. */
+    public String name = "bench";
+
+    /** A typical integer field. */
+    public int score;
+
+    /** A typical array field. */
+    public int[] stats = new int[16];
+
+    /** The entries in this object. */
+    public DSet<Entry> entries = DSet.newDSet();
+
+    /**
+     * Creates an object with the specified number of entries.
+     */
+    public static BenchObject create (int entryCount)
+    {
+        List<Entry> entries = Lists.newArrayList();
+        for (int ii = 0; ii < entryCount; ii++) {
+            entries.add(new Entry(ii));
+        }
+        BenchObject obj = new BenchObject();
+        obj.entries = DSet.newDSet(entries);
+        return obj;
+    }
+
+    protected static final String[] KINDS = { "player", "guest", "moderator" };
+}
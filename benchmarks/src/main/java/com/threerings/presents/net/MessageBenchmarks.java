@@ -0,0 +1,198 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.dobj.EntryUpdatedEvent;
+import com.threerings.presents.dobj.MessageEvent;
+
+/**
+ * Measures the encoding and decoding of representative downstream messages. Encoding is measured
+ * both on a fresh stream (as for a new connection, which must send class mappings and interned
+ * strings in full) and on a stream that has already sent the same message (the steady state of a
+ * long-lived connection). Run with <code>-prof gc</code> to report allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MessageBenchmarks
+{
+    /** Holds an {@link ObjectResponse} for an object with a parameterized number of entries. */
+    @State(Scope.Thread)
+    public static class ResponseState
+    {
+        /** The number of entries in the object. */
+        @Param({ "10", "1000" })
+        public int entries;
+
+        @Setup
+        public void setup ()
+            throws IOException
+        {
+            BenchObject obj = BenchObject.create(entries);
+            obj.setOid(42);
+            response = new ObjectResponse<BenchObject>(obj);
+            data = encode(response);
+        }
+
+        public ObjectResponse<BenchObject> response;
+        public byte[] data;
+    }
+
+    @Setup
+    public void setup ()
+        throws IOException
+    {
+        _event = new EventNotification(new AttributeChangedEvent(42, "score", 17));
+        _compound = new CompoundDownstreamMessage();
+        for (int ii = 0; ii < 10; ii++) {
+            _compound.msgs.add(new EventNotification(new MessageEvent(
+                42, "chat", new Object[] { "speaker" + ii, "Hello there!", ii })));
+            _compound.msgs.add(new EventNotification(new EntryUpdatedEvent<BenchObject.Entry>(
+                42, "entries", new BenchObject.Entry(ii))));
+        }
+
+        _eventData = encode(_event);
+        _compoundData = encode(_compound);
+
+        _bout = new ByteArrayOutputStream();
+        _oout = new ObjectOutputStream(_bout);
+    }
+
+    @Benchmark
+    public byte[] encodeEvent ()
+        throws IOException
+    {
+        return encode(_event);
+    }
+
+    @Benchmark
+    public int encodeEventWarm ()
+        throws IOException
+    {
+        return encodeWarm(_event);
+    }
+
+    @Benchmark
+    public Object decodeEvent ()
+        throws IOException, ClassNotFoundException
+    {
+        return decode(_eventData);
+    }
+
+    @Benchmark
+    public byte[] encodeCompound ()
+        throws IOException
+    {
+        return encode(_compound);
+    }
+
+    @Benchmark
+    public int encodeCompoundWarm ()
+        throws IOException
+    {
+        return encodeWarm(_compound);
+    }
+
+    @Benchmark
+    public Object decodeCompound ()
+        throws IOException, ClassNotFoundException
+    {
+        return decode(_compoundData);
+    }
+
+    @Benchmark
+    public byte[] encodeObjectResponse (ResponseState state)
+        throws IOException
+    {
+        return encode(state.response);
+    }
+
+    @Benchmark
+    public int encodeObjectResponseWarm (ResponseState state)
+        throws IOException
+    {
+        return encodeWarm(state.response);
+    }
+
+    @Benchmark
+    public Object decodeObjectResponse (ResponseState state)
+        throws IOException, ClassNotFoundException
+    {
+        return decode(state.data);
+    }
+
+    protected int encodeWarm (Object message)
+        throws IOException
+    {
+        _bout.reset();
+        _oout.writeObject(message);
+        _oout.flush();
+        return _bout.size();
+    }
+
+    protected static byte[] encode (Object message)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(message);
+        oout.flush();
+        return bout.toByteArray();
+    }
+
+    protected static Object decode (byte[] data)
+        throws IOException, ClassNotFoundException
+    {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+
+    protected EventNotification _event;
+    protected CompoundDownstreamMessage _compound;
+    protected byte[] _eventData, _compoundData;
+
+    /** A long-lived stream used to measure steady state encoding. */
+    protected ByteArrayOutputStream _bout;
+    protected ObjectOutputStream _oout;
+}
@@ -0,0 +1,239 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.peer.server;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Singleton;
+
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.StaticConnectionProvider;
+import com.samskivert.util.Lifecycle;
+import com.samskivert.util.ResultListener;
+
+import com.threerings.presents.peer.data.NodeObject;
+import com.threerings.presents.server.PresentsDObjectMgr;
+import com.threerings.presents.server.PresentsServer;
+
+/**
+ * Measures the latency of acquiring and then releasing a cluster lock, using both the broadcast
+ * and the sharded lock protocols, for clusters of various sizes. Each cluster is a set of peer
+ * servers running in this JVM and talking over loopback connections, so the numbers reflect the
+ * messages and dobjmgr hops that each protocol requires rather than real network latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class LockBenchmarks
+{
+    /** The number of servers in the cluster. */
+    @Param({ "2", "4", "8" })
+    public int nodes;
+
+    /** Whether to use the sharded lock protocol. */
+    @Param({ "false", "true" })
+    public boolean sharded;
+
+    @Setup
+    public void setup ()
+        throws Exception
+    {
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        for (int ii = 0; ii < nodes; ii++) {
+            final int port = BASE_PORT + ii;
+            Injector inj = Guice.createInjector(new PresentsServer.PresentsModule() {
+                @Override protected void configure () {
+                    super.configure();
+                    bind(PresentsServer.class).toInstance(new BenchServer(port));
+                    bind(PeerManager.class).to(BenchPeerManager.class);
+                    bind(PersistenceContext.class).toInstance(new PersistenceContext());
+                }
+            });
+
+            // all of our servers share a single in-memory node table
+            PersistenceContext pctx = inj.getInstance(PersistenceContext.class);
+            Properties props = new Properties();
+            props.put("default.driver", "org.hsqldb.jdbcDriver");
+            props.put("default.url", "jdbc:hsqldb:mem:benchdb");
+            props.put("default.username", "sa");
+            props.put("default.password", "");
+            pctx.init("benchdb", new StaticConnectionProvider(props), null);
+            pctx.initializeRepositories(true);
+
+            final PresentsServer server = inj.getInstance(PresentsServer.class);
+            server.init(inj);
+            _servers.add(server);
+
+            BenchPeerManager peermgr = inj.getInstance(BenchPeerManager.class);
+            peermgr.init("node" + ii, "s3cr3t", "localhost", "localhost", port);
+            if (sharded) {
+                peermgr.useShardedLocks();
+            }
+            _peermgrs.add(peermgr);
+            _omgrs.add(inj.getInstance(PresentsDObjectMgr.class));
+
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    server.run();
+                }
+            };
+            _threads.add(thread);
+            thread.start();
+        }
+
+        // wait for every server to connect to every other
+        for (int ii = 0; ii < 100 && !fullyConnected(); ii++) {
+            for (BenchPeerManager peermgr : _peermgrs) {
+                peermgr.refreshPeers();
+            }
+            Thread.sleep(100);
+        }
+        if (!fullyConnected()) {
+            throw new IllegalStateException("Cluster failed to connect.");
+        }
+    }
+
+    @TearDown
+    public void tearDown ()
+        throws InterruptedException
+    {
+        for (PresentsServer server : _servers) {
+            server.queueShutdown();
+        }
+        for (Thread thread : _threads) {
+            thread.join(1000);
+        }
+    }
+
+    @Benchmark
+    public Object acquireAndRelease ()
+        throws InterruptedException
+    {
+        // use a different lock each time so that sharded locks are spread around the ring
+        final NodeObject.Lock lock = new NodeObject.Lock("bench", _lockId++);
+        final PeerManager peermgr = _peermgrs.get(0);
+        _omgrs.get(0).postRunnable(new Runnable() {
+            public void run () {
+                peermgr.acquireLock(lock, new ResultListener<String>() {
+                    public void requestCompleted (String holder) {
+                        peermgr.releaseLock(lock, _onReleased);
+                    }
+                    public void requestFailed (Exception cause) {
+                        _results.add(cause);
+                    }
+                });
+            }
+        });
+        return _results.take();
+    }
+
+    protected boolean fullyConnected ()
+    {
+        for (BenchPeerManager peermgr : _peermgrs) {
+            if (peermgr.connected.get() < nodes - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** A peer manager that counts its connections. */
+    @Singleton
+    public static class BenchPeerManager extends PeerManager
+    {
+        public final AtomicInteger connected = new AtomicInteger();
+
+        @Inject public BenchPeerManager (Lifecycle cycle)
+        {
+            super(cycle);
+        }
+
+        @Override protected void connectedToPeer (PeerNode peer)
+        {
+            connected.incrementAndGet();
+        }
+    }
+
+    protected static class BenchServer extends PresentsServer
+    {
+        public BenchServer (int port)
+        {
+            _ports = new int[] { port };
+        }
+
+        @Override protected int[] getListenPorts ()
+        {
+            return _ports;
+        }
+
+        protected int[] _ports;
+        @Inject protected PeerManager _peermgr; // trigger peer manager resolution
+    }
+
+    protected final ResultListener<String> _onReleased = new ResultListener<String>() {
+        public void requestCompleted (String holder) {
+            _results.add(String.valueOf(holder));
+        }
+        public void requestFailed (Exception cause) {
+            _results.add(cause);
+        }
+    };
+
+    protected List<PresentsServer> _servers = Lists.newArrayList();
+    protected List<BenchPeerManager> _peermgrs = Lists.newArrayList();
+    protected List<PresentsDObjectMgr> _omgrs = Lists.newArrayList();
+    protected List<Thread> _threads = Lists.newArrayList();
+
+    /** Receives the result of each release. */
+    protected BlockingQueue<Object> _results = new ArrayBlockingQueue<Object>(1);
+
+    protected int _lockId;
+
+    protected static final int BASE_PORT = 47624;
+}
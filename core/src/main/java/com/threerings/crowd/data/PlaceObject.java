@@ -27,6 +27,7 @@ import com.threerings.util.Name;
 import com.threerings.presents.dobj.DObject;
 import com.threerings.presents.dobj.DObjectManager;
 import com.threerings.presents.dobj.DSet;
+import com.threerings.presents.dobj.DSetIndex;
 import com.threerings.presents.dobj.OidList;
 import com.threerings.presents.dobj.ServerMessageEvent;
 
@@ -35,8 +36,6 @@ import com.threerings.crowd.chat.data.SpeakMarshaller;
 import com.threerings.crowd.chat.data.SpeakObject;
 import com.threerings.crowd.chat.data.UserMessage;
 
-import static com.threerings.crowd.Log.log;
-
 /**
  * A distributed object that contains information on a place that is occupied by bodies. This place
  * might be a chat room, a game room, an island in a massively multiplayer piratical universe,
@@ -135,16 +134,7 @@ public class PlaceObject extends DObject
      */
     public OccupantInfo getOccupantInfo (Name username)
     {
-        try {
-            for (OccupantInfo info : occupantInfo) {
-                if (info.username.equals(username)) {
-                    return info;
-                }
-            }
-        } catch (Throwable t) {
-            log.warning("PlaceObject.getOccupantInfo choked.", t);
-        }
-        return null;
+        return (occupantInfo == null) ? null : _occInfoByName.get(occupantInfo, username);
     }
 
     // documentation inherited
@@ -252,4 +242,12 @@ public class PlaceObject extends DObject
         this.speakService = value;
     }
     // AUTO-GENERATED: METHODS END
+
+    /** Indexes {@link #occupantInfo} by username. */
+    protected transient DSetIndex<Name, OccupantInfo> _occInfoByName =
+        new DSetIndex<Name, OccupantInfo>() {
+        @Override protected Name getIndexKey (OccupantInfo info) {
+            return info.username;
+        }
+    };
 }
@@ -0,0 +1,191 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.lang.reflect.Field;
+
+import java.io.IOException;
+
+import static com.threerings.NaryaLog.log;
+
+/**
+ * Reads and writes all of the streamed fields of instances of a particular class. Subclasses are
+ * generated at runtime (see {@link ClassMarshallerGenerator}) with straight-line code that reads
+ * and writes each field directly, rather than via reflection as is done by the {@link
+ * FieldMarshaller}s. Fields that cannot be accessed directly by generated code are still read and
+ * written via their field marshaller.
+ *
+ * <p> Generation requires Javassist to be on the classpath and can be disabled by setting the
+ * <code>com.threerings.io.reflectiveStreaming</code> system property to true, in which case all
+ * classes are streamed via reflection as before.
+ */
+public abstract class ClassMarshaller
+{
+    /**
+     * Creates a marshaller for the supplied class, or returns null if marshaller generation is
+     * disabled or not possible for the class.
+     *
+     * @param fields the fields to be streamed, in the order in which they are streamed.
+     * @param marshallers the field marshallers for said fields.
+     */
+    public static ClassMarshaller create (
+        Class<?> target, Field[] fields, FieldMarshaller[] marshallers)
+    {
+        if (!_enabled || FieldMarshaller.useFieldAccessors()) {
+            return null;
+        }
+        try {
+            ClassMarshaller cmarsh = ClassMarshallerGenerator.generate(target, fields, marshallers);
+            if (cmarsh != null) {
+                cmarsh.init(target, fields, marshallers);
+            }
+            return cmarsh;
+
+        } catch (Throwable t) {
+            // this generally means that we can't define classes at all (for example, because the
+            // JVM doesn't permit it), so we report it once and use reflection from here on out
+            synchronized (ClassMarshaller.class) {
+                if (_enabled) {
+                    _enabled = false;
+                    log.warning("Unable to generate marshaller, using reflection for all classes",
+                                "class", target.getName(), "error", t);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the streamed fields of the supplied object to the supplied stream.
+     */
+    public abstract void writeFields (Object object, ObjectOutputStream out)
+        throws IOException;
+
+    /**
+     * Reads the streamed fields of the supplied object from the supplied stream.
+     */
+    public abstract void readFields (Object object, ObjectInputStream in)
+        throws IOException;
+
+    @Override
+    public String toString ()
+    {
+        return "ClassMarshaller:" + _target.getName();
+    }
+
+    protected void init (Class<?> target, Field[] fields, FieldMarshaller[] marshallers)
+    {
+        _target = target;
+        _fields = fields;
+        _marshallers = marshallers;
+        _streamers = new Streamer[marshallers.length];
+        for (int ii = 0; ii < marshallers.length; ii++) {
+            if (marshallers[ii] instanceof FieldMarshaller.StreamerMarshaller) {
+                _streamers[ii] = ((FieldMarshaller.StreamerMarshaller)marshallers[ii])._streamer;
+            }
+        }
+    }
+
+    /**
+     * Writes a value of one of the basic streamer types, as would the field's {@link
+     * FieldMarshaller.StreamerMarshaller}.
+     */
+    protected void writeValue (int index, Object value, ObjectOutputStream out)
+        throws IOException
+    {
+        if (value == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            _streamers[index].writeObject(value, out, true);
+        }
+    }
+
+    /**
+     * Reads a value of one of the basic streamer types, as would the field's {@link
+     * FieldMarshaller.StreamerMarshaller}.
+     */
+    protected Object readValue (int index, ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        Streamer streamer = _streamers[index];
+        Object value = streamer.createObject(in);
+        streamer.readObject(value, in, true);
+        return value;
+    }
+
+    /**
+     * Notes that the streamed instance is missing the fields from the specified index onward
+     * (probably because they were newly added to the class).
+     */
+    protected void fieldsMissing (int index)
+    {
+        for (int ii = index; ii < _fields.length; ii++) {
+            log.info("Streamed instance missing field (probably newly added)",
+                     "class", _target.getName(), "field", _fields[ii].getName());
+        }
+    }
+
+    protected IOException writeFailure (int index, Exception cause)
+    {
+        String errmsg = "Failure writing streamable field [class=" + _target.getName() +
+            ", field=" + _fields[index].getName() + "]";
+        return (IOException) new IOException(errmsg).initCause(cause);
+    }
+
+    protected IOException readFailure (int index, Exception cause)
+    {
+        String errmsg = "Failure reading streamable field [class=" + _target.getName() +
+            ", field=" + _fields[index].getName() + ", error=" + cause + "]";
+        return (IOException) new IOException(errmsg).initCause(cause);
+    }
+
+    /** The class whose instances we marshall. */
+    protected Class<?> _target;
+
+    /** The streamed fields of said class. */
+    protected Field[] _fields;
+
+    /** The marshallers for our fields, used for fields that we cannot access directly. */
+    protected FieldMarshaller[] _marshallers;
+
+    /** The streamers for our fields that contain the basic streamer types (or null). */
+    protected Streamer[] _streamers;
+
+    /** Whether or not marshaller generation is enabled. Cleared if generation fails. */
+    protected static volatile boolean _enabled;
+    static {
+        boolean enabled = !Boolean.getBoolean("com.threerings.io.reflectiveStreaming") &&
+            !ObjectInputStream.STREAM_DEBUG;
+        if (enabled) {
+            try {
+                Class.forName("javassist.ClassPool");
+            } catch (Throwable t) {
+                enabled = false; // no Javassist, no generation
+            }
+        }
+        _enabled = enabled;
+    }
+}
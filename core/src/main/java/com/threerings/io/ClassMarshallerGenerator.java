@@ -0,0 +1,217 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+
+import static com.threerings.NaryaLog.log;
+
+/**
+ * Generates {@link ClassMarshaller}s using Javassist. This class is only loaded if Javassist is
+ * available.
+ */
+public class ClassMarshallerGenerator
+{
+    /**
+     * Generates a marshaller for the supplied class, or returns null if the class has no fields
+     * to stream, cannot be accessed by generated code or its marshaller fails to compile. Throws
+     * an exception if the generated class cannot be defined at all.
+     */
+    public static synchronized ClassMarshaller generate (
+        Class<?> target, Field[] fields, FieldMarshaller[] marshallers)
+        throws Exception
+    {
+        // we define the marshaller in the same package and class loader as its target so that it
+        // can access non-public classes and fields
+        ClassLoader loader = target.getClassLoader();
+        if (fields.length == 0 || loader == null || !isAccessible(target, target)) {
+            return null;
+        }
+        if (_pool == null) {
+            _pool = new ClassPool(true);
+            _pool.appendClassPath(new ClassClassPath(ClassMarshaller.class));
+        }
+        if (!_loaders.containsKey(loader)) {
+            _pool.appendClassPath(new LoaderClassPath(loader));
+            _loaders.put(loader, Boolean.TRUE);
+        }
+
+        String tname = typeName(target);
+        StringBuilder wsrc = new StringBuilder();
+        wsrc.append("public void writeFields (Object object, ");
+        wsrc.append("com.threerings.io.ObjectOutputStream out) throws java.io.IOException {\n");
+        wsrc.append(tname).append(" o = (").append(tname).append(")object;\n");
+        wsrc.append("int ii = 0;\n");
+        wsrc.append("try {\n");
+
+        StringBuilder rsrc = new StringBuilder();
+        rsrc.append("public void readFields (Object object, ");
+        rsrc.append("com.threerings.io.ObjectInputStream in) throws java.io.IOException {\n");
+        rsrc.append(tname).append(" o = (").append(tname).append(")object;\n");
+        rsrc.append("int ii = 0;\n");
+        rsrc.append("try {\n");
+
+        FieldMarshaller generic = FieldMarshaller._marshallers.get(Streamable.class);
+        FieldMarshaller date = FieldMarshaller._marshallers.get(Date.class);
+        for (int ii = 0; ii < fields.length; ii++) {
+            Field field = fields[ii];
+            FieldMarshaller fm = marshallers[ii];
+            Class<?> ftype = field.getType();
+            String fref = "o." + field.getName(), ftname = typeName(ftype);
+
+            wsrc.append("ii = ").append(ii).append(";\n");
+            rsrc.append("ii = ").append(ii).append(";\n");
+            rsrc.append("if (in.available() <= 0) { fieldsMissing(ii); return; }\n");
+
+            if (!isAccessible(field, target) || !isAccessible(ftype, target)) {
+                // fall back to the field marshaller
+                wsrc.append("_marshallers[ii].writeField(_fields[ii], o, out);\n");
+                rsrc.append("_marshallers[ii].readField(_fields[ii], o, in);\n");
+
+            } else if (ftype.isPrimitive()) {
+                String pname = ftname.substring(0, 1).toUpperCase() + ftname.substring(1);
+                wsrc.append("out.write").append(pname).append("(").append(fref).append(");\n");
+                rsrc.append(fref).append(" = in.read").append(pname).append("();\n");
+
+            } else if (fm == FieldMarshaller._internMarshaller) {
+                wsrc.append("out.writeIntern(").append(fref).append(");\n");
+                rsrc.append(fref).append(" = in.readIntern();\n");
+
+            } else if (fm == generic) {
+                wsrc.append("out.writeObject(").append(fref).append(");\n");
+                rsrc.append(fref).append(" = (").append(ftname).append(")in.readObject();\n");
+
+            } else if (fm == date) {
+                wsrc.append("out.writeLong(").append(fref).append(".getTime());\n");
+                rsrc.append(fref).append(" = new java.util.Date(in.readLong());\n");
+
+            } else if (fm instanceof FieldMarshaller.StreamerMarshaller) {
+                wsrc.append("writeValue(ii, ").append(fref).append(", out);\n");
+                rsrc.append(fref).append(" = (").append(ftname).append(")readValue(ii, in);\n");
+
+            } else {
+                wsrc.append("_marshallers[ii].writeField(_fields[ii], o, out);\n");
+                rsrc.append("_marshallers[ii].readField(_fields[ii], o, in);\n");
+            }
+        }
+
+        wsrc.append("} catch (java.lang.Exception e) { throw writeFailure(ii, e); }\n}");
+        rsrc.append("} catch (java.lang.Exception e) { throw readFailure(ii, e); }\n}");
+
+        CtClass cclass = _pool.makeClass(
+            target.getName() + "$Marshaller" + (++_generated),
+            _pool.get(ClassMarshaller.class.getName()));
+        try {
+            cclass.addConstructor(CtNewConstructor.defaultConstructor(cclass));
+            cclass.addMethod(CtNewMethod.make(wsrc.toString(), cclass));
+            cclass.addMethod(CtNewMethod.make(rsrc.toString(), cclass));
+        } catch (CannotCompileException cce) {
+            // this only affects this class, which we'll stream reflectively
+            log.warning("Failed to compile marshaller", "class", target.getName(), cce);
+            cclass.detach();
+            return null;
+        }
+        Class<?> mclass = cclass.toClass(loader, target.getProtectionDomain());
+        cclass.detach();
+        return (ClassMarshaller)mclass.getConstructor().newInstance();
+    }
+
+    /**
+     * Returns true if code in the supplied target's package (and class loader) can read and
+     * write the supplied field directly.
+     */
+    public static boolean isAccessible (Field field, Class<?> target)
+    {
+        int mods = field.getModifiers();
+        if (Modifier.isPrivate(mods) || Modifier.isFinal(mods)) {
+            return false;
+        }
+        Class<?> dclass = field.getDeclaringClass();
+        return isAccessible(dclass, target) &&
+            (Modifier.isPublic(mods) || isSamePackage(dclass, target));
+    }
+
+    /**
+     * Returns true if code in the supplied target's package (and class loader) can refer to the
+     * supplied class.
+     */
+    public static boolean isAccessible (Class<?> clazz, Class<?> target)
+    {
+        while (clazz.isArray()) {
+            clazz = clazz.getComponentType();
+        }
+        if (clazz.isPrimitive()) {
+            return true;
+        }
+        for (Class<?> cc = clazz; cc != null; cc = cc.getDeclaringClass()) {
+            int mods = cc.getModifiers();
+            if (Modifier.isPrivate(mods) ||
+                (!Modifier.isPublic(mods) && !isSamePackage(cc, target))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean isSamePackage (Class<?> c1, Class<?> c2)
+    {
+        return c1.getClassLoader() == c2.getClassLoader() &&
+            getPackageName(c1).equals(getPackageName(c2));
+    }
+
+    protected static String getPackageName (Class<?> clazz)
+    {
+        String name = clazz.getName();
+        int idx = name.lastIndexOf('.');
+        return (idx == -1) ? "" : name.substring(0, idx);
+    }
+
+    /**
+     * Returns the name by which the supplied type is referenced in generated source.
+     */
+    public static String typeName (Class<?> clazz)
+    {
+        return clazz.isArray() ? (typeName(clazz.getComponentType()) + "[]") : clazz.getName();
+    }
+
+    /** The pool in which we generate our classes. */
+    protected static ClassPool _pool;
+
+    /** The class loaders that we've added to our pool's class path. */
+    protected static Map<ClassLoader, Boolean> _loaders = new WeakHashMap<ClassLoader, Boolean>();
+
+    /** The number of marshallers we've generated, used to keep their names unique. */
+    protected static int _generated;
+}
@@ -0,0 +1,237 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.util.List;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An object that has been flattened once so that it can be written to any number of {@link
+ * ObjectOutputStream}s without running its {@link Streamer} again. Class mappings and interns are
+ * stream specific, so they are not flattened; instead we note where they occur and resolve them
+ * against each target stream when the object is written (see {@link
+ * ObjectOutputStream#writeFlattened}). The bytes written are identical to those that would have
+ * been written by a call to {@link ObjectOutputStream#writeObject}.
+ *
+ * <p> A flattened object may also be written via {@link ObjectOutputStream#writeObject}, on its own
+ * or as part of another object (the arguments of an invocation request, say), in which case it is
+ * written as the original object and read back as such, hence its being {@link Streamable}.
+ *
+ * <p> Instances are immutable and may be written to streams on any thread, but the object must
+ * not be modified between being flattened and being written if the results are to make sense.
+ */
+public class FlattenedObject
+    implements Streamable
+{
+    /**
+     * Flattens the supplied object (which may be null).
+     */
+    public static FlattenedObject flatten (Object object)
+        throws IOException
+    {
+        // reuse this thread's recorder (and its buffers and class mappings) unless we're being
+        // called while it is already in use
+        Recorder recorder = _recorder.get();
+        if (recorder.active) {
+            recorder = new Recorder();
+        }
+        recorder.active = true;
+        try {
+            recorder.writeObject(object);
+            recorder.flush();
+            return recorder.toFlattened();
+        } finally {
+            recorder.reset();
+        }
+    }
+
+    /**
+     * Returns the number of stream-independent bytes in this flattened object. The number of
+     * bytes actually written to a stream will be somewhat larger as it will include the class
+     * mapping and intern codes.
+     */
+    public int size ()
+    {
+        return _data.length;
+    }
+
+    /**
+     * Reads a copy of the original object back out of its flattened form.
+     */
+    public Object unflatten ()
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        writeTo(oout);
+        oout.flush();
+        return new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+    }
+
+    /**
+     * Writes this object to the supplied stream, resolving class mappings and interns against
+     * that stream's state.
+     */
+    protected void writeTo (ObjectOutputStream out)
+        throws IOException
+    {
+        int pos = 0;
+        for (int ii = 0; ii < _refs.length; ii++) {
+            int offset = _offsets[ii];
+            out.write(_data, pos, offset - pos);
+            Object ref = _refs[ii];
+            if (ref instanceof Class<?>) {
+                out.writeClassMapping((Class<?>)ref);
+            } else {
+                out.writeIntern((String)ref);
+            }
+            pos = offset;
+        }
+        out.write(_data, pos, _data.length - pos);
+    }
+
+    protected FlattenedObject (byte[] data, int[] offsets, Object[] refs)
+    {
+        _data = data;
+        _offsets = offsets;
+        _refs = refs;
+    }
+
+    /**
+     * Writes an object as normal, except that class mappings and interns are noted rather than
+     * written to the stream.
+     */
+    protected static class Recorder extends ObjectOutputStream
+    {
+        /** Whether this recorder is currently flattening an object. */
+        public boolean active;
+
+        public Recorder ()
+        {
+            this(new ByteArrayOutputStream());
+        }
+
+        /**
+         * Returns the flattened form of the object written since we were last reset.
+         */
+        public FlattenedObject toFlattened ()
+        {
+            int[] offsets = new int[_refs.size()];
+            System.arraycopy(_offsets, 0, offsets, 0, offsets.length);
+            return new FlattenedObject(_target.toByteArray(), offsets, _refs.toArray());
+        }
+
+        /**
+         * Clears out the object written so that we may record another. Our class mappings are
+         * retained as they are the same for any object.
+         */
+        public void reset ()
+        {
+            active = false;
+            // don't hang on to a huge buffer because we once flattened a huge object
+            if (_target.size() > MAX_RETAINED_BUFFER) {
+                _target = new ByteArrayOutputStream();
+                out = _target;
+            } else {
+                _target.reset();
+            }
+            written = 0;
+            _refs.clear();
+        }
+
+        @Override
+        public void writeIntern (String value)
+            throws IOException
+        {
+            if (value == null) {
+                super.writeIntern(value);
+            } else {
+                noteRef(value);
+            }
+        }
+
+        @Override
+        protected ClassMapping writeClassMapping (Class<?> sclass)
+            throws IOException
+        {
+            if (_classmap == null) {
+                _classmap = Maps.newHashMap();
+            }
+            ClassMapping cmap = _classmap.get(sclass);
+            if (cmap == null) {
+                // look up the streamer first so that we fail before noting anything if the class
+                // is not streamable; collection classes are resolved by getStreamer() as well
+                cmap = new ClassMapping((short)0, sclass, Streamer.getStreamer(sclass));
+                _classmap.put(sclass, cmap);
+            }
+            noteRef(sclass);
+            return cmap;
+        }
+
+        protected Recorder (ByteArrayOutputStream target)
+        {
+            super(target);
+            _target = target;
+        }
+
+        protected void noteRef (Object ref)
+        {
+            int count = _refs.size();
+            if (count == _offsets.length) {
+                int[] offsets = new int[count * 2];
+                System.arraycopy(_offsets, 0, offsets, 0, count);
+                _offsets = offsets;
+            }
+            _offsets[count] = size();
+            _refs.add(ref);
+        }
+
+        protected ByteArrayOutputStream _target;
+        protected int[] _offsets = new int[16];
+        protected List<Object> _refs = Lists.newArrayList();
+    }
+
+    /** The stream-independent bytes of our flattened object. */
+    protected final byte[] _data;
+
+    /** The offsets into {@link #_data} at which each of our references is to be written. */
+    protected final int[] _offsets;
+
+    /** The classes and interned strings to be resolved against the target stream. */
+    protected final Object[] _refs;
+
+    /** The recorder used to flatten objects on each thread. */
+    protected static final ThreadLocal<Recorder> _recorder = new ThreadLocal<Recorder>() {
+        @Override protected Recorder initialValue () {
+            return new Recorder();
+        }
+    };
+
+    /** The largest buffer a thread's recorder will keep around between objects. */
+    protected static final int MAX_RETAINED_BUFFER = 64 * 1024;
+}
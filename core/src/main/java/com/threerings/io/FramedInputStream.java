@@ -27,6 +27,8 @@ import java.io.InputStream;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * The framed input stream reads input that was framed by a framing output
@@ -45,6 +47,9 @@ import java.nio.channels.ReadableByteChannel;
  * single frame at a time, so any data left over from a previous frame
  * will disappear when <code>readFrame()</code> is called again.
  *
+ * <p>Frames that were compressed by {@link FramingOutputStream#frameAndReturnBuffer(int)} are
+ * inflated when they are read and then served up just like any other frame.
+ *
  * <p><em>Note:</em> The framing input stream does not synchronize reads
  * from its internal buffer. It is intended to only be accessed from a
  * single thread.
@@ -60,7 +65,16 @@ public class FramedInputStream extends InputStream
      */
     public FramedInputStream ()
     {
-        _buffer = ByteBuffer.allocate(INITIAL_BUFFER_CAPACITY);
+        this(ByteBuffer.allocate(INITIAL_BUFFER_CAPACITY));
+    }
+
+    /**
+     * Creates a framed input stream that initially uses the supplied buffer. Used by derived
+     * classes that manage their buffers differently.
+     */
+    protected FramedInputStream (ByteBuffer buffer)
+    {
+        _buffer = buffer;
     }
 
     /**
@@ -89,6 +103,7 @@ public class FramedInputStream extends InputStream
             _buffer.position(_length);
             _buffer.compact();
             _have -= _length;
+            _inflated = false;
 
             // we may have picked up the next frame in a previous read, so
             // try decoding the length straight away
@@ -162,7 +177,8 @@ public class FramedInputStream extends InputStream
         length += (_buffer.get() & 0xFF);
         _buffer.position(_have);
 
-        return length;
+        _compressed = (length & FramingOutputStream.COMPRESSED) != 0;
+        return length & ~FramingOutputStream.COMPRESSED;
     }
 
     /**
@@ -171,6 +187,7 @@ public class FramedInputStream extends InputStream
      * to deliver that frame via our {@link InputStream} interface.
      */
     protected final boolean checkForCompleteFrame ()
+        throws IOException
     {
         if (_length == -1 || _have < _length) {
             return false;
@@ -179,9 +196,56 @@ public class FramedInputStream extends InputStream
         // prepare the buffer such that this frame can be read
         _buffer.position(HEADER_SIZE);
         _buffer.limit(_length);
+        if (_compressed) {
+            inflateFrame();
+        }
         return true;
     }
 
+    /**
+     * Inflates the compressed frame in our buffer into our inflation buffer and prepares that
+     * buffer to deliver it via our {@link InputStream} interface.
+     */
+    protected void inflateFrame ()
+        throws IOException
+    {
+        int length = _buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Invalid compressed frame length " + length);
+        }
+        if (_inflater == null) {
+            _inflater = new Inflater();
+        }
+        if (_ibuffer == null || _ibuffer.capacity() < length) {
+            _ibuffer = ByteBuffer.allocate(Math.max(length, INITIAL_BUFFER_CAPACITY));
+        }
+
+        _inflater.reset();
+        _inflater.setInput(_buffer.array(), _buffer.position(), _buffer.remaining());
+        try {
+            if (_inflater.inflate(_ibuffer.array(), 0, length) != length ||
+                    !_inflater.finished()) {
+                throw new IOException("Compressed frame did not inflate to " + length + " bytes");
+            }
+        } catch (DataFormatException dfe) {
+            throw (IOException)new IOException("Corrupt compressed frame").initCause(dfe);
+        }
+
+        // consume the compressed data and serve up the inflated data instead
+        _buffer.position(_length);
+        _ibuffer.clear();
+        _ibuffer.limit(length);
+        _inflated = true;
+    }
+
+    /**
+     * Returns the buffer that holds the data of the current frame.
+     */
+    protected final ByteBuffer frameBuffer ()
+    {
+        return _inflated ? _ibuffer : _buffer;
+    }
+
     /**
      * Reads the next byte of data from this input stream. The value byte
      * is returned as an <code>int</code> in the range <code>0</code> to
@@ -196,7 +260,8 @@ public class FramedInputStream extends InputStream
     @Override
     public int read ()
     {
-        return (_buffer.remaining() > 0) ? (_buffer.get() & 0xFF) : -1;
+        ByteBuffer buffer = frameBuffer();
+        return (buffer.remaining() > 0) ? (buffer.get() & 0xFF) : -1;
     }
 
     /**
@@ -234,11 +299,12 @@ public class FramedInputStream extends InputStream
 
         // trim the amount to be read to what is available; if they wanted
         // bytes and we have none, return -1 to indicate EOF
-        if ((len = Math.min(len, _buffer.remaining())) == 0) {
+        ByteBuffer buffer = frameBuffer();
+        if ((len = Math.min(len, buffer.remaining())) == 0) {
             return -1;
         }
 
-        _buffer.get(b, off, len);
+        buffer.get(b, off, len);
         return len;
     }
 
@@ -270,7 +336,7 @@ public class FramedInputStream extends InputStream
     @Override
     public int available ()
     {
-        return _buffer.remaining();
+        return frameBuffer().remaining();
     }
 
     /**
@@ -299,7 +365,11 @@ public class FramedInputStream extends InputStream
     public void reset ()
     {
         // position our buffer at the beginning of the frame data
-        _buffer.position(HEADER_SIZE);
+        if (_inflated) {
+            _ibuffer.rewind();
+        } else {
+            _buffer.position(HEADER_SIZE);
+        }
     }
 
     /** The buffer in which we maintain our frame data. */
@@ -312,6 +382,18 @@ public class FramedInputStream extends InputStream
      * may comprise more than one frame. */
     protected int _have = 0;
 
+    /** Whether the current frame is compressed. */
+    protected boolean _compressed;
+
+    /** Whether the current frame is being served from our inflation buffer. */
+    protected boolean _inflated;
+
+    /** Used to inflate compressed frames, created on demand. */
+    protected Inflater _inflater;
+
+    /** The buffer into which we inflate compressed frames, created on demand. */
+    protected ByteBuffer _ibuffer;
+
     /** The size of the frame header (a 32-bit integer). */
     protected static final int HEADER_SIZE = 4;
 
@@ -22,6 +22,7 @@
 package com.threerings.io;
 
 import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
 
 /**
  * The framing output stream accumulates output into a byte array just
@@ -33,12 +34,20 @@ import java.nio.ByteBuffer;
  * buffered because the framed output is written in a single call to
  * <code>write()</code>.
  *
+ * <p>Frames may optionally be compressed (see {@link #frameAndReturnBuffer(int)}), in which case
+ * the {@link #COMPRESSED} bit is set in the frame length and the frame contents are the length of
+ * the uncompressed data (as an integer) followed by the deflated data. Only peers that have
+ * indicated that they can read such frames (via {@link FramedInputStream}) should be sent them.
+ *
  * <p><em>Note:</em> The framing output stream does not synchronize writes
  * to its internal buffer. It is intended to only be accessed from a
  * single thread.
  */
 public class FramingOutputStream extends ByteBufferOutputStream
 {
+    /** The bit set in the frame length of frames whose contents are compressed. */
+    public static final int COMPRESSED = 0x80000000;
+
     public FramingOutputStream ()
     {
         _buffer.put(HEADER_PAD);
@@ -78,6 +87,44 @@ public class FramingOutputStream extends ByteBufferOutputStream
         return _buffer;
     }
 
+    /**
+     * Like {@link #frameAndReturnBuffer()} but compresses the frame contents if there are at least
+     * <code>threshold</code> bytes of them and compressing them actually makes the frame smaller.
+     * The returned buffer is only valid until the next call to {@link #resetFrame}.
+     */
+    public ByteBuffer frameAndReturnBuffer (int threshold)
+    {
+        // a compressed frame's header is followed by the uncompressed length
+        int header = HEADER_PAD.length + 4;
+        int length = _buffer.position() - HEADER_PAD.length;
+        if (threshold <= 0 || length < threshold || length <= header) {
+            return frameAndReturnBuffer();
+        }
+
+        // we reuse our deflater and compression buffer from frame to frame; we only allow the
+        // compressed data to fill a buffer that yields a frame smaller than the raw frame
+        if (_deflater == null) {
+            _deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (_cbuffer == null || _cbuffer.capacity() < header + length) {
+            _cbuffer = ByteBuffer.allocate(header + length);
+        }
+        _deflater.reset();
+        _deflater.setInput(_buffer.array(), HEADER_PAD.length, length);
+        _deflater.finish();
+        int clength = _deflater.deflate(_cbuffer.array(), header, length - header);
+        if (!_deflater.finished()) {
+            return frameAndReturnBuffer();
+        }
+
+        _cbuffer.clear();
+        _cbuffer.putInt((header + clength) | COMPRESSED);
+        _cbuffer.putInt(length);
+        _cbuffer.limit(header + clength);
+        _cbuffer.rewind();
+        return _cbuffer;
+    }
+
     /**
      * Resets our internal buffer and prepares to write a new frame.
      */
@@ -87,6 +134,12 @@ public class FramingOutputStream extends ByteBufferOutputStream
         _buffer.put(HEADER_PAD);
     }
 
+    /** Used to compress frames, created on demand. */
+    protected Deflater _deflater;
+
+    /** The buffer into which we compress frames, created on demand. */
+    protected ByteBuffer _cbuffer;
+
     /** We pad the beginning of our buffer so that we can write the frame
      * length when the time comes. */
     protected static final byte[] HEADER_PAD = new byte[4];
@@ -61,7 +61,7 @@ public class ObjectOutputStream extends DataOutputStream
 
     /**
      * Writes a {@link Streamable} instance or one of the support object types to the output
-     * stream.
+     * stream. A {@link FlattenedObject} is written as the object from which it was flattened.
      */
     public void writeObject (Object object)
         throws IOException
@@ -72,12 +72,29 @@ public class ObjectOutputStream extends DataOutputStream
             return;
         }
 
+        // if it's already flattened, just write it out
+        if (object instanceof FlattenedObject) {
+            writeFlattened((FlattenedObject)object);
+            return;
+        }
+
         // otherwise, write the class mapping, then the bare object
         Class<?> sclass = Streamer.getStreamerClass(object);
         ClassMapping cmap = writeClassMapping(sclass);
         writeBareObject(object, cmap.streamer, true);
     }
 
+    /**
+     * Writes an object that was previously flattened via {@link FlattenedObject#flatten}. The
+     * bytes written are the same as would have been written by {@link #writeObject} when called
+     * with the original object.
+     */
+    public void writeFlattened (FlattenedObject object)
+        throws IOException
+    {
+        object.writeTo(this);
+    }
+
     /**
      * Writes a pooled string value to the output stream.
      */
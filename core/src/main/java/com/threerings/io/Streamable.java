@@ -55,4 +55,13 @@ public interface Streamable
      * package up units of code and ship them between peers, or even between client and server.
      */
     public interface Closure extends Streamable {}
+
+    /**
+     * A marker interface for streamable classes that are streamed as their nearest superclass
+     * that does not implement this interface, and are thus read back as instances of that class.
+     * This allows a class to vary how an object is stored locally without changing what is sent
+     * to (or required of) the other side. Such classes must stream exactly as that superclass
+     * does, and fields into which they are read must be declared as that superclass.
+     */
+    public interface AsSuperclass extends Streamable {}
 }
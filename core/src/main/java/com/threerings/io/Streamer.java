@@ -90,12 +90,21 @@ public abstract class Streamer
     /**
      * Returns the class that should be used when streaming this object. In general that is the
      * object's natural class, but for enum values, that might be its declaring class as enums use
-     * classes in a way that would otherwise pollute our id to class mapping space.
+     * classes in a way that would otherwise pollute our id to class mapping space, and {@link
+     * Streamable.AsSuperclass} instances are streamed as their superclass.
      */
     public static Class<?> getStreamerClass (Object object)
     {
-        return (object instanceof Enum<?>) ?
-            ((Enum<?>)object).getDeclaringClass() : object.getClass();
+        if (object instanceof Enum<?>) {
+            return ((Enum<?>)object).getDeclaringClass();
+        }
+        Class<?> sclass = object.getClass();
+        if (object instanceof Streamable.AsSuperclass) {
+            do {
+                sclass = sclass.getSuperclass();
+            } while (Streamable.AsSuperclass.class.isAssignableFrom(sclass));
+        }
+        return sclass;
     }
 
     /**
@@ -333,6 +342,10 @@ public abstract class Streamer
         public void writeObject (Object object, ObjectOutputStream out, boolean useWriter)
             throws IOException
         {
+            if (_cmarsh != null) {
+                _cmarsh.writeFields(object, out);
+                return;
+            }
             int fcount = _fields.length;
             for (int ii = 0; ii < fcount; ii++) {
                 Field field = _fields[ii];
@@ -379,6 +392,10 @@ public abstract class Streamer
         public void readObject (Object object, ObjectInputStream in, boolean useReader)
             throws IOException, ClassNotFoundException
         {
+            if (_cmarsh != null) {
+                _cmarsh.readFields(object, in);
+                return;
+            }
             int fcount = _fields.length;
             for (int ii = 0; ii < fcount; ii++) {
                 Field field = _fields[ii];
@@ -484,6 +501,9 @@ public abstract class Streamer
                              _fields[ii].getName() + ".");
                 }
             }
+
+            // generate a marshaller that streams our fields without reflection, if possible
+            _cmarsh = ClassMarshaller.create(_target, _fields, marshallers);
             return marshallers;
         }
 
@@ -509,6 +529,9 @@ public abstract class Streamer
 
         /** Field marshallers for each field that will be read or written in our objects. */
         protected FieldMarshaller[] _marshallers;
+
+        /** Streams all of our fields directly, or null if we stream them via reflection. */
+        protected ClassMarshaller _cmarsh;
     } // end: static class ClassStreamer
 
     /**
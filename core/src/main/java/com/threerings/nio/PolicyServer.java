@@ -33,7 +33,6 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import com.samskivert.util.Lifecycle;
-import com.samskivert.util.Tuple;
 
 import com.threerings.nio.conman.Connection;
 import com.threerings.nio.conman.ConnectionManager;
@@ -146,7 +145,7 @@ public class PolicyServer extends ConnectionManager
 
     protected void sendPolicy (Connection conn)
     {
-        _outq.append(Tuple.newTuple(conn, _policy));
+        queueMessage(conn, _policy);
         postAsyncClose(conn);
     }
 
@@ -0,0 +1,126 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maintains pools of direct buffers in power of two size classes so that network code can obtain
+ * and release direct buffers without allocating them each time (direct buffers are expensive to
+ * allocate and are not reclaimed until the garbage collector gets around to finalizing them).
+ *
+ * <p><em>Note:</em> buffer pools are not thread safe. They are intended to be used by a single
+ * network thread.
+ */
+public class BufferPool
+{
+    /**
+     * Creates a buffer pool.
+     *
+     * @param minSize the size of the smallest size class. Will be rounded up to a power of two.
+     * @param maxSize the size of the largest size class. Will be rounded up to a power of two.
+     * @param maxPooled the maximum number of bytes to retain in each size class.
+     */
+    public BufferPool (int minSize, int maxSize, int maxPooled)
+    {
+        _minShift = 32 - Integer.numberOfLeadingZeros(Math.max(minSize, 1) - 1);
+        int maxShift = 32 - Integer.numberOfLeadingZeros(Math.max(maxSize, minSize) - 1);
+        _pools = new ByteBuffer[maxShift - _minShift + 1][];
+        _counts = new int[_pools.length];
+        for (int ii = 0; ii < _pools.length; ii++) {
+            _pools[ii] = new ByteBuffer[Math.max(1, maxPooled >> (_minShift + ii))];
+        }
+    }
+
+    /**
+     * Returns the size of the largest buffer that will be returned by this pool.
+     */
+    public int getMaxSize ()
+    {
+        return 1 << (_minShift + _pools.length - 1);
+    }
+
+    /**
+     * Obtains a cleared direct buffer with at least the specified capacity, which must not be
+     * larger than {@link #getMaxSize}. The buffer should be returned via {@link #release} when
+     * it is no longer needed.
+     */
+    public ByteBuffer acquire (int size)
+    {
+        int sclass = getSizeClass(size);
+        if (sclass >= _pools.length) {
+            throw new IllegalArgumentException(
+                "Requested buffer larger than maximum size [size=" + size + "]");
+        }
+        int count = _counts[sclass];
+        if (count == 0) {
+            _allocs++;
+            return ByteBuffer.allocateDirect(1 << (_minShift + sclass));
+        }
+        ByteBuffer buf = _pools[sclass][--count];
+        _pools[sclass][count] = null;
+        _counts[sclass] = count;
+        return buf;
+    }
+
+    /**
+     * Returns a buffer previously obtained via {@link #acquire} to the pool. The buffer must not
+     * be used by the caller after it has been released.
+     */
+    public void release (ByteBuffer buf)
+    {
+        int sclass = getSizeClass(buf.capacity());
+        // ignore buffers that didn't come from us or that would exceed our limits
+        if (sclass >= _pools.length || (1 << (_minShift + sclass)) != buf.capacity() ||
+            _counts[sclass] == _pools[sclass].length) {
+            return;
+        }
+        buf.clear();
+        _pools[sclass][_counts[sclass]++] = buf;
+    }
+
+    /**
+     * Returns the number of direct buffers allocated by this pool since it was created.
+     */
+    public int getAllocations ()
+    {
+        return _allocs;
+    }
+
+    protected int getSizeClass (int size)
+    {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift - _minShift, 0);
+    }
+
+    /** The log base two of our smallest size class. */
+    protected int _minShift;
+
+    /** The pooled buffers in each size class. */
+    protected ByteBuffer[][] _pools;
+
+    /** The number of pooled buffers in each size class. */
+    protected int[] _counts;
+
+    /** The number of buffers we've allocated. */
+    protected int _allocs;
+}
@@ -28,6 +28,8 @@ import java.net.InetAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 
+import com.threerings.io.FramedInputStream;
+
 /**
  * Implements the net event handler interface to check for delinquency and manages a client
  * connection. Subclasses must handle incoming data in {@link #handleEvent}.
@@ -78,6 +80,16 @@ public abstract class Connection implements NetEventHandler
         return (_channel == null) ? null : _channel.socket().getInetAddress();
     }
 
+    /**
+     * Returns true if data written to this connection is waiting in an overflow queue for the
+     * socket to drain, which is to say that the other end is not keeping up with us. This may be
+     * called from any thread, but the result is only a snapshot.
+     */
+    public boolean isBackedUp ()
+    {
+        return _backedUp;
+    }
+
     /**
      * Returns true if this connection is closed.
      */
@@ -162,6 +174,38 @@ public abstract class Connection implements NetEventHandler
         _cmgr.closeConnection(this);
     }
 
+    /**
+     * Creates the stream from which this connection reads its framed input. The stream reads into
+     * a buffer that is shared by all of the connections serviced by the same thread, so it must
+     * only be used from {@link #handleEvent}.
+     */
+    protected FramedInputStream createFramedInputStream ()
+    {
+        return new PooledFramedInputStream(_cmgr.getLoop(this).getReadBuffer());
+    }
+
+    /**
+     * Returns any pooled buffers held by the supplied stream, which must have been created via
+     * {@link #createFramedInputStream}, once this connection is done with it. The buffers belong
+     * to the thread that services this connection, so they are released on that thread.
+     */
+    protected void releaseFramedInputStream (FramedInputStream fin)
+    {
+        if (!(fin instanceof PooledFramedInputStream)) {
+            return;
+        }
+        final PooledFramedInputStream pfin = (PooledFramedInputStream)fin;
+        if (Thread.currentThread() == _cmgr.getLoop(this).thread) {
+            pfin.release();
+        } else {
+            _cmgr.runOnLoop(this, new Runnable() {
+                public void run () {
+                    pfin.release();
+                }
+            });
+        }
+    }
+
     @Override // from Object
     public String toString ()
     {
@@ -192,10 +236,17 @@ public abstract class Connection implements NetEventHandler
     protected ConnectionManager _cmgr;
     protected SocketChannel _channel;
 
+    /** The selector loop that services this connection, or null if it is serviced by the
+     * connection manager thread. */
+    protected ConnectionManager.IOLoop _ioloop;
+
     protected long _lastEvent;
 
     protected int _connectionId;
 
+    /** Whether we have an overflow queue; see {@link #isBackedUp}. */
+    protected volatile boolean _backedUp;
+
     /** The last connection id assigned. */
     protected static int _lastConnectionId;
 }
@@ -22,6 +22,7 @@
 package com.threerings.nio.conman;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import java.io.IOException;
@@ -32,6 +33,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -54,7 +56,13 @@ import static com.threerings.NaryaLog.log;
  *
  * ConnectionManager doesn't directly accept TCP connections; it expects
  * {@link ServerSocketChannelAcceptor} or an external entity to do so and call its
- * {@link #handleAcceptedSocket} method
+ * {@link #handleAcceptedSocket} method<p>
+ *
+ * By default all sockets are serviced by the connection manager thread. If
+ * <code>presents.net.ioThreads</code> is configured, accepted sockets are instead distributed
+ * among that many additional selector threads, each of which reads from and writes to its own
+ * sockets. Listening sockets, outgoing connections and anything registered directly via {@link
+ * #register} remain on the connection manager thread.
  */
 public abstract class ConnectionManager extends LoopingThread
     implements Lifecycle.ShutdownComponent
@@ -69,6 +77,7 @@ public abstract class ConnectionManager extends LoopingThread
         cycle.addComponent(this);
         _selector = Selector.open();
         _idleTime = idleTime;
+        _mainLoop = new IOLoop(this, _selector, _handlers, _outq, _oflowqs, _deathq, null, this);
     }
 
     /**
@@ -89,7 +98,9 @@ public abstract class ConnectionManager extends LoopingThread
     public synchronized ConMgrStats getStats ()
     {
         // fill in our snapshot values
-        _stats.connectionCount = _connections.size();
+        synchronized (_connections) {
+            _stats.connectionCount = _connections.size();
+        }
         _stats.handlerCount = _handlers.size();
         _stats.deathQueueSize = _deathq.size();
         _stats.outQueueSize = _outq.size();
@@ -99,7 +110,16 @@ public abstract class ConnectionManager extends LoopingThread
                 _stats.overQueueSize += oq.size();
             }
         }
-        return _stats.clone();
+        ConMgrStats stats = _stats.clone();
+
+        // add in the stats from our selector threads, if we have any
+        IOThread[] iothreads = _iothreads;
+        if (iothreads != null) {
+            for (IOThread iothread : iothreads) {
+                iothread.loop.addStats(stats);
+            }
+        }
+        return stats;
     }
 
     /**
@@ -110,10 +130,20 @@ public abstract class ConnectionManager extends LoopingThread
         throws IOException
     {
         SelectionKey key = chan.register(_selector, ops);
-        _handlers.put(key, netEventHandler);
+        putHandler(key, netEventHandler);
         return key;
     }
 
+    /**
+     * Maps the supplied handler to a selection key on this manager's selector, replacing any
+     * existing mapping, and schedules the handler to be checked for idleness. Handlers should be
+     * mapped via this method rather than by adding them to {@link #_handlers} directly.
+     */
+    protected void putHandler (SelectionKey key, NetEventHandler handler)
+    {
+        _mainLoop.putHandler(key, handler);
+    }
+
     /**
      * Introduces a new active socket into Presents from off the ConnectionManager thread. If
      * Presents is embedded in another framework that handles socket acceptance, this will be
@@ -125,11 +155,11 @@ public abstract class ConnectionManager extends LoopingThread
     }
 
     /**
-     * Queues a connection up to be closed on the conmgr thread.
+     * Queues a connection up to be closed on the thread that services it.
      */
     public void closeConnection (Connection conn)
     {
-        _deathq.append(conn);
+        getLoop(conn).deathq.append(conn);
     }
 
     @Override // from LoopingThread
@@ -137,14 +167,22 @@ public abstract class ConnectionManager extends LoopingThread
     {
         super.willStart();
 
-        _selectorSelector = new SelectorIterable(
-            _selector, _selectLoopTime, new SelectorIterable.SelectFailureHandler() {
-            public void handleSelectFailure (Exception e) {
-                log.error("One of our selectors crapped out completely.  " +
-                          "Shutting down the connection manager.", e);
-                shutdown();
+        _selectorSelector = _mainLoop.createSelectorIterable();
+
+        // start up our selector threads if we've been configured to use them
+        List<IOThread> iothreads = Lists.newArrayList();
+        for (int ii = 0; ii < _ioThreads; ii++) {
+            try {
+                IOThread iothread = new IOThread(ii);
+                iothread.start();
+                iothreads.add(iothread);
+            } catch (IOException ioe) {
+                log.warning("Failed to create selector thread", "index", ii, ioe);
             }
-        });
+        }
+        if (!iothreads.isEmpty()) {
+            _iothreads = iothreads.toArray(new IOThread[iothreads.size()]);
+        }
     }
 
     @Override // from LoopingThread
@@ -159,24 +197,14 @@ public abstract class ConnectionManager extends LoopingThread
             _lastDebugStamp = iterStamp;
         }
 
+        // run anything that was queued up to run on this thread
+        _mainLoop.runTasks();
+
         // close any connections that have been queued up to die
-        Connection dconn;
-        while ((dconn = _deathq.getNonBlocking()) != null) {
-            // it's possible that we caught an EOF trying to read from this connection even after
-            // it was queued up for death, so let's avoid trying to close it twice
-            if (!dconn.isClosed()) {
-                dconn.close();
-            }
-        }
+        _mainLoop.closeDeadConnections();
 
         // close connections that have had no network traffic for too long
-        long idleStamp = iterStamp - _idleTime;
-        for (NetEventHandler handler : _handlers.values()) {
-            if (handler.checkIdle(idleStamp)) {
-                // this will queue the connection for closure on our next tick
-                handler.becameIdle();
-            }
-        }
+        _mainLoop.checkIdle(iterStamp);
 
         // send any messages that are waiting on the outgoing overflow and message queues
         sendOutgoingMessages(iterStamp);
@@ -214,10 +242,19 @@ public abstract class ConnectionManager extends LoopingThread
     {
         try {
             // create a new authing connection object to manage the authentication of this client
-            // connection and register it with our selection set
+            // connection and register it with our selection set (or hand it off to one of our
+            // selector threads to do so)
             channel.configureBlocking(false);
             conn.init(this, channel, System.currentTimeMillis());
-            conn.selkey = register(channel, SelectionKey.OP_READ, conn);
+            IOThread[] iothreads = _iothreads;
+            if (iothreads == null) {
+                conn.selkey = register(channel, SelectionKey.OP_READ, conn);
+            } else {
+                int idx = (_nextIOThread++ & Integer.MAX_VALUE) % iothreads.length;
+                IOLoop loop = iothreads[idx].loop;
+                conn._ioloop = loop;
+                loop.adopt(conn);
+            }
             synchronized (this) {
                 _stats.connects++;
             }
@@ -240,48 +277,7 @@ public abstract class ConnectionManager extends LoopingThread
      */
     protected void processIncomingEvents (long iterStamp)
     {
-        // process those events
-        long bytesIn = 0, msgsIn = 0, eventCount = 0;
-        for (SelectionKey selkey : _selectorSelector) {
-            eventCount++;
-            NetEventHandler handler = null;
-            try {
-                handler = _handlers.get(selkey);
-                if (handler == null) {
-                    log.warning("Received network event for unknown handler",
-                                "key", selkey, "ops", selkey.readyOps());
-                    // request that this key be removed from our selection set, which normally
-                    // happens automatically but for some reason didn't
-                    selkey.cancel();
-                    continue;
-                }
-
-//                 log.info("Got event", "selkey", selkey, "handler", handler);
-
-                int got = handler.handleEvent(iterStamp);
-                if (got != 0) {
-                    bytesIn += got;
-                    // we know that the handlers only report having read bytes when they have a
-                    // whole message, so we can count thusly
-                    msgsIn++;
-                }
-
-            } catch (Exception e) {
-                log.warning("Error processing network data: " + handler + ".", e);
-
-                // if you freak out here, you go straight in the can
-                if (handler != null && handler instanceof Connection) {
-                    closeConnection((Connection)handler);
-                }
-            }
-        }
-
-        synchronized (this) {
-            // update our stats
-            _stats.eventCount += eventCount;
-            _stats.bytesIn += bytesIn;
-            _stats.msgsIn += msgsIn;
-        }
+        _mainLoop.processIncomingEvents(_selectorSelector, iterStamp);
     }
 
     /**
@@ -291,126 +287,60 @@ public abstract class ConnectionManager extends LoopingThread
      */
     protected void sendOutgoingMessages (long iterStamp)
     {
-        // first attempt to send any messages waiting on the overflow queues
-        if (_oflowqs.size() > 0) {
-            // do this on a snapshot as a network failure writing oflow queue messages will result
-            // in the queue being removed from _oflowqs via the connectionFailed() code path
-            for (OverflowQueue oq : _oflowqs.values().toArray(new OverflowQueue[_oflowqs.size()])) {
-                try {
-                    // try writing the messages in this overflow queue
-                    if (oq.writeOverflowMessages(iterStamp)) {
-                        // if they were all written, we can remove it
-                        _oflowqs.remove(oq.conn);
-                    }
-
-                } catch (IOException ioe) {
-                    oq.conn.networkFailure(ioe);
-                }
-            }
-        }
-
-        // then send any new messages
-        Tuple<Connection, byte[]> tup;
-        while ((tup = _outq.getNonBlocking()) != null) {
-            Connection conn = tup.left;
-
-            // if an overflow queue exists for this client, go ahead and slap the message on there
-            // because we can't send it until all other messages in their queue have gone out
-            OverflowQueue oqueue = _oflowqs.get(conn);
-            if (oqueue != null) {
-                int size = oqueue.size();
-                if ((size > 500) && (size % 50 == 0)) {
-                    log.warning("Aiya, big overflow queue for " + conn + "", "size", size,
-                                "bytes", tup.right.length);
-                }
-                oqueue.add(tup.right);
-                continue;
-            }
-
-            // otherwise write the message out to the client directly
-            writeMessage(conn, tup.right, _oflowHandler);
-        }
+        _mainLoop.sendOutgoingMessages(iterStamp);
     }
 
     /**
-     * Writes a message out to a connection, passing the buck to the partial write handler if the
-     * entire message could not be written.
-     *
-     * @return true if the message was fully written, false if it was partially written (in which
-     * case the partial message handler will have been invoked).
+     * Returns the loop that services the supplied connection.
      */
-    protected boolean writeMessage (Connection conn, byte[] data, PartialWriteHandler pwh)
+    protected IOLoop getLoop (Connection conn)
     {
-        // if the connection to which this message is destined is closed, drop the message and move
-        // along quietly; this is perfectly legal, a user can logoff whenever they like, even if we
-        // still have things to tell them; such is life in a fully asynchronous distributed system
-        if (conn.isClosed()) {
-            return true;
-        }
-
-        // if this is an asynchronous close request, queue the connection up for death
-        if (data == ASYNC_CLOSE_REQUEST) {
-            closeConnection(conn);
-            return true;
-        }
-
-        // sanity check the message size
-        if (data.length > 1024 * 1024) {
-            log.warning("Refusing to write very large message", "conn", conn, "size", data.length);
-            return true;
-        }
-
-        // expand our output buffer if needed to accomodate this message
-        if (data.length > _outbuf.capacity()) {
-            // increase the buffer size in large increments
-            int ncapacity = Math.max(_outbuf.capacity() << 1, data.length);
-            log.info("Expanding output buffer size", "nsize", ncapacity);
-            _outbuf = ByteBuffer.allocateDirect(ncapacity);
-        }
-
-        boolean fully = true;
-        try {
-//             log.info("Writing " + data.length + " byte message to " + conn + ".");
-
-            // first copy the data into our "direct" output buffer
-            _outbuf.put(data);
-            _outbuf.flip();
-
-            // if the connection to which we're writing is not yet ready, the whole message is
-            // "leftover", so we pass it to the partial write handler
-            SocketChannel sochan = conn.getChannel();
-            if (sochan.isConnectionPending()) {
-                pwh.handlePartialWrite(conn, _outbuf);
-                return false;
-            }
-
-            // then write the data to the socket
-            int wrote = sochan.write(_outbuf);
-            noteWrite(1, wrote);
-
-            // if we didn't write our entire message, deal with the leftover bytes
-            if (_outbuf.remaining() > 0) {
-                fully = false;
-                pwh.handlePartialWrite(conn, _outbuf);
-            }
+        IOLoop loop = conn._ioloop;
+        return (loop == null) ? _mainLoop : loop;
+    }
 
-        } catch (NotYetConnectedException nyce) {
-            // this should be caught by isConnectionPending() but awesomely it's not
-            pwh.handlePartialWrite(conn, _outbuf);
-            return false;
+    /**
+     * Queues up a framed message for delivery to the supplied connection.
+     */
+    protected void queueMessage (Connection conn, byte[] data)
+    {
+        getLoop(conn).outq.append(Tuple.newTuple(conn, data));
+    }
 
-        } catch (IOException ioe) {
-            conn.networkFailure(ioe); // instruct the connection to deal with its failure
+    /**
+     * Runs the supplied runnable on the thread that services the supplied connection, which may
+     * or may not be the connection manager thread.
+     */
+    protected void runOnLoop (Connection conn, Runnable runnable)
+    {
+        getLoop(conn).postTask(runnable);
+    }
 
-        } finally {
-            _outbuf.clear();
+    /**
+     * Replaces the handler for a connection's socket with a new connection, which takes over the
+     * old connection's selection key, servicing thread and any overflow queue. This must be
+     * called on the thread that services the old connection (see {@link #runOnLoop}).
+     */
+    protected void replaceConnection (Connection oconn, Connection nconn)
+    {
+        IOLoop loop = getLoop(oconn);
+        nconn.selkey = oconn.selkey;
+        nconn._ioloop = oconn._ioloop;
+        loop.putHandler(nconn.selkey, nconn);
+
+        // transfer any overflow queue for that connection
+        OverflowQueue oqueue = loop.oflowqs.remove(oconn);
+        if (oqueue != null) {
+            oconn._backedUp = false;
+            oqueue.conn = nconn;
+            nconn._backedUp = true;
+            loop.oflowqs.put(nconn, oqueue);
         }
-
-        return fully;
     }
 
-    /** Called by {@link #writeMessage} and friends when they write data over the network. */
-    protected synchronized void noteWrite (int msgs, int bytes)
+    /** Called by {@link IOLoop#writeMessages} and friends when they write data over the
+     * network. */
+    protected synchronized void noteWrite (int msgs, long bytes)
     {
         _stats.msgsOut += msgs;
         _stats.bytesOut += bytes;
@@ -426,7 +356,7 @@ public abstract class ConnectionManager extends LoopingThread
      */
     protected void postAsyncClose (Connection conn)
     {
-        _outq.append(Tuple.newTuple(conn, ASYNC_CLOSE_REQUEST));
+        queueMessage(conn, ASYNC_CLOSE_REQUEST);
     }
 
     /**
@@ -436,11 +366,13 @@ public abstract class ConnectionManager extends LoopingThread
     {
         // remove this connection from our mappings (it is automatically removed from the Selector
         // when the socket is closed)
-        _handlers.remove(conn.selkey);
-        _connections.remove(conn.getConnectionId());
-        _oflowqs.remove(conn);
-        synchronized (this) {
-            _stats.disconnects++;
+        IOLoop loop = getLoop(conn);
+        loop.unmap(conn);
+        synchronized (_connections) {
+            _connections.remove(conn.getConnectionId());
+        }
+        synchronized (loop.statsLock) {
+            loop.getLoopStats().disconnects++;
         }
     }
 
@@ -451,14 +383,24 @@ public abstract class ConnectionManager extends LoopingThread
     {
         // remove this connection from our mappings (it is automatically removed from the Selector
         // when the socket is closed)
-        _handlers.remove(conn.selkey);
-        _connections.remove(conn.getConnectionId());
-        _oflowqs.remove(conn);
-        synchronized (this) {
-            _stats.closes++;
+        IOLoop loop = getLoop(conn);
+        loop.unmap(conn);
+        synchronized (_connections) {
+            _connections.remove(conn.getConnectionId());
+        }
+        synchronized (loop.statsLock) {
+            loop.getLoopStats().closes++;
         }
     }
 
+    /**
+     * Removes and cleans up the overflow queue for the supplied connection, if it has one.
+     */
+    protected void removeOverflowQueue (Connection conn)
+    {
+        getLoop(conn).removeOverflowQueue(conn);
+    }
+
     @Override
     protected void handleIterateFailure (Exception e)
     {
@@ -469,6 +411,22 @@ public abstract class ConnectionManager extends LoopingThread
     @Override
     protected void didShutdown ()
     {
+        // shut down our selector threads, which will take one last crack at their queues
+        IOThread[] iothreads = _iothreads;
+        if (iothreads != null) {
+            for (IOThread iothread : iothreads) {
+                iothread.shutdown();
+            }
+            for (IOThread iothread : iothreads) {
+                try {
+                    iothread.join();
+                } catch (InterruptedException ie) {
+                    log.warning("Interrupted waiting for selector thread to exit",
+                                "thread", iothread);
+                }
+            }
+        }
+
         // take one last crack at the outgoing message queue
         sendOutgoingMessages(System.currentTimeMillis());
 
@@ -487,10 +445,669 @@ public abstract class ConnectionManager extends LoopingThread
         }
     }
 
-    /** Used to handle partial writes in {@link ConnectionManager#writeMessage}. */
+    /**
+     * The per-selector state of the connection manager: a selector, the handlers registered with
+     * it, and the outgoing message, overflow and death queues for the connections it services.
+     * The connection manager thread has a loop of its own, and each selector thread has another.
+     * A loop's state is only modified by the thread that services it, except for its queues.
+     */
+    protected class IOLoop
+    {
+        /** The thread that services this loop. */
+        public final Thread thread;
+
+        /** The selector on which our sockets are registered. */
+        public final Selector selector;
+
+        /** Maps selection keys to network event handlers. */
+        public final Map<SelectionKey, NetEventHandler> handlers;
+
+        /** Messages waiting to be written to our connections. */
+        public final Queue<Tuple<Connection, byte[]>> outq;
+
+        /** The overflow queues for our connections that have them. */
+        public final Map<Connection, OverflowQueue> oflowqs;
+
+        /** Connections waiting to be closed. */
+        public final Queue<Connection> deathq;
+
+        /** The object that must be locked when accessing our stats. */
+        public final Object statsLock;
+
+        public IOLoop (Thread thread, Selector selector,
+                       Map<SelectionKey, NetEventHandler> handlers,
+                       Queue<Tuple<Connection, byte[]>> outq,
+                       Map<Connection, OverflowQueue> oflowqs, Queue<Connection> deathq,
+                       ConMgrStats stats, Object statsLock)
+        {
+            this.thread = thread;
+            this.selector = selector;
+            this.handlers = handlers;
+            this.outq = outq;
+            this.oflowqs = oflowqs;
+            this.deathq = deathq;
+            _loopStats = stats;
+            this.statsLock = statsLock;
+        }
+
+        /**
+         * Returns the stats in which this loop's activity is recorded: the connection manager's
+         * own stats for the main loop, or separate stats for the others. The caller must hold
+         * {@link #statsLock} when accessing them.
+         */
+        public ConMgrStats getLoopStats ()
+        {
+            return (_loopStats == null) ? _stats : _loopStats;
+        }
+
+        /**
+         * Creates the iterable used to select on our selector.
+         */
+        public SelectorIterable createSelectorIterable ()
+        {
+            return new SelectorIterable(
+                selector, _selectLoopTime, new SelectorIterable.SelectFailureHandler() {
+                public void handleSelectFailure (Exception e) {
+                    log.error("One of our selectors crapped out completely.  " +
+                              "Shutting down the connection manager.", e);
+                    shutdown();
+                }
+            });
+        }
+
+        /**
+         * Returns the buffer into which the connections serviced by this loop read their data,
+         * creating it if necessary. This must only be called on our thread.
+         */
+        public PooledFramedInputStream.ReadBuffer getReadBuffer ()
+        {
+            if (_readbuf == null) {
+                _readbuf = new PooledFramedInputStream.ReadBuffer();
+            }
+            return _readbuf;
+        }
+
+        /**
+         * Queues up a newly accepted connection to be registered with our selector by our thread.
+         */
+        public void adopt (final Connection conn)
+        {
+            postTask(new Runnable() {
+                public void run () {
+                    try {
+                        conn.selkey = conn.getChannel().register(selector, SelectionKey.OP_READ);
+                        putHandler(conn.selkey, conn);
+                    } catch (IOException ioe) {
+                        log.info("Failure registering new connection: " + ioe);
+                        conn.networkFailure(ioe);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queues up a runnable to be run on our thread, waking up our selector so that it is run
+         * promptly.
+         */
+        public void postTask (Runnable task)
+        {
+            _tasks.append(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs any tasks queued up via {@link #postTask}.
+         */
+        public void runTasks ()
+        {
+            Runnable task;
+            while ((task = _tasks.getNonBlocking()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.warning("Selector task failed", "task", task, e);
+                }
+            }
+        }
+
+        /**
+         * Closes any connections that have been queued up to die.
+         */
+        public void closeDeadConnections ()
+        {
+            Connection dconn;
+            while ((dconn = deathq.getNonBlocking()) != null) {
+                // it's possible that we caught an EOF trying to read from this connection even
+                // after it was queued up for death, so let's avoid trying to close it twice
+                if (!dconn.isClosed()) {
+                    dconn.close();
+                }
+            }
+        }
+
+        /**
+         * Maps the supplied handler to a selection key on our selector, replacing any existing
+         * mapping, and schedules the handler to be checked for idleness.
+         */
+        public void putHandler (SelectionKey key, NetEventHandler handler)
+        {
+            handlers.put(key, handler);
+            long now = System.currentTimeMillis();
+            _idlers.schedule(Tuple.newTuple(key, handler), getIdleDeadline(handler, now));
+        }
+
+        /**
+         * Notes any handlers that have had no network traffic for longer than our idle time. Only
+         * the handlers whose idle deadlines have passed are checked; those that turn out to have
+         * been active in the meanwhile are rescheduled for their new deadline.
+         */
+        public void checkIdle (long iterStamp)
+        {
+            long idleStamp = iterStamp - _idleTime;
+            for (Tuple<SelectionKey, NetEventHandler> entry : _idlers.expire(iterStamp, _expired)) {
+                // skip handlers that have since been unmapped or replaced
+                NetEventHandler handler = entry.right;
+                if (handlers.get(entry.left) != handler) {
+                    continue;
+                }
+                long deadline;
+                if (handler.checkIdle(idleStamp)) {
+                    // this will queue the connection for closure on our next tick; we check again
+                    // shortly in case the handler is not closed and removed as a result
+                    handler.becameIdle();
+                    deadline = iterStamp + IDLE_CHECK_INTERVAL;
+                } else {
+                    deadline = getIdleDeadline(handler, iterStamp);
+                }
+                _idlers.schedule(entry, deadline);
+            }
+            _expired.clear();
+        }
+
+        /**
+         * Returns the time at which the supplied handler should next be checked for idleness.
+         * Connections are checked when their idle time will have elapsed since their last event,
+         * other handlers are simply checked periodically.
+         */
+        protected long getIdleDeadline (NetEventHandler handler, long now)
+        {
+            return (handler instanceof Connection) ?
+                ((Connection)handler)._lastEvent + _idleTime : now + IDLE_CHECK_INTERVAL;
+        }
+
+        /**
+         * Checks for any network events on our set of sockets and passes those events down to
+         * their associated {@link NetEventHandler}s for processing.
+         */
+        public void processIncomingEvents (SelectorIterable selected, long iterStamp)
+        {
+            // process those events
+            long bytesIn = 0, msgsIn = 0, eventCount = 0;
+            for (SelectionKey selkey : selected) {
+                eventCount++;
+                NetEventHandler handler = null;
+                try {
+                    handler = handlers.get(selkey);
+                    if (handler == null) {
+                        log.warning("Received network event for unknown handler",
+                                    "key", selkey, "ops", selkey.readyOps());
+                        // request that this key be removed from our selection set, which
+                        // normally happens automatically but for some reason didn't
+                        selkey.cancel();
+                        continue;
+                    }
+
+//                     log.info("Got event", "selkey", selkey, "handler", handler);
+
+                    int got = handler.handleEvent(iterStamp);
+                    if (got != 0) {
+                        bytesIn += got;
+                        // we know that the handlers only report having read bytes when they have
+                        // a whole message, so we can count thusly
+                        msgsIn++;
+                    }
+
+                } catch (Exception e) {
+                    log.warning("Error processing network data: " + handler + ".", e);
+
+                    // if you freak out here, you go straight in the can
+                    if (handler != null && handler instanceof Connection) {
+                        closeConnection((Connection)handler);
+                    }
+                }
+            }
+
+            synchronized (statsLock) {
+                // update our stats
+                ConMgrStats stats = getLoopStats();
+                stats.eventCount += eventCount;
+                stats.bytesIn += bytesIn;
+                stats.msgsIn += msgsIn;
+            }
+        }
+
+        /**
+         * Writes all queued overflow and normal messages to their respective sockets. Connections
+         * that already have established overflow queues will have their messages appended to
+         * their overflow queue instead so that they are delivered in the proper order.
+         */
+        public void sendOutgoingMessages (long iterStamp)
+        {
+            // first attempt to send any messages waiting on the overflow queues
+            if (oflowqs.size() > 0) {
+                // do this on a snapshot as a network failure writing oflow queue messages will
+                // result in the queue being removed from oflowqs via the connectionFailed() code
+                // path
+                for (OverflowQueue oq : oflowqs.values().toArray(
+                         new OverflowQueue[oflowqs.size()])) {
+                    try {
+                        // try writing the messages in this overflow queue
+                        if (oq.writeOverflowMessages(iterStamp)) {
+                            // if they were all written, we can remove it
+                            oflowqs.remove(oq.conn);
+                            oq.conn._backedUp = false;
+                        }
+
+                    } catch (IOException ioe) {
+                        oq.conn.networkFailure(ioe);
+                    }
+                }
+            }
+
+            // then gather up any new messages by connection so that we can send all of a
+            // connection's pending messages with a single write
+            Tuple<Connection, byte[]> tup;
+            while ((tup = outq.getNonBlocking()) != null) {
+                List<byte[]> msgs = _pending.get(tup.left);
+                if (msgs == null) {
+                    _pending.put(tup.left, msgs = Lists.newArrayList());
+                }
+                msgs.add(tup.right);
+            }
+            if (_pending.isEmpty()) {
+                return;
+            }
+
+            for (Map.Entry<Connection, List<byte[]>> entry : _pending.entrySet()) {
+                Connection conn = entry.getKey();
+                List<byte[]> msgs = entry.getValue();
+
+                // if an overflow queue exists for this client, go ahead and slap the messages on
+                // there because we can't send them until all other messages in their queue have
+                // gone out
+                OverflowQueue oqueue = oflowqs.get(conn);
+                if (oqueue != null) {
+                    int size = oqueue.size() + msgs.size();
+                    if (size > 500 && (size / 50 != oqueue.size() / 50)) {
+                        log.warning("Aiya, big overflow queue for " + conn + "", "size", size,
+                                    "msgs", msgs.size());
+                    }
+                    oqueue.addAll(msgs);
+                    continue;
+                }
+
+                // otherwise write the messages out to the client directly
+                writeMessages(conn, msgs, _oflowHandler);
+            }
+            _pending.clear();
+        }
+
+        /**
+         * Writes messages out to a connection, passing the buck to the partial write handler if
+         * they could not all be written. The messages are copied into pooled direct buffers and
+         * written with one (gathering) write per {@link ConnectionManager#MAX_GATHER_BUFFERS}
+         * buffers' worth, rather than one write per message, so that a partial write leaves no
+         * more than that in direct buffers; the remaining messages stay queued as they are.
+         *
+         * @return true if the messages were fully written, false if they were partially written
+         * (in which case the partial message handler will have been invoked).
+         */
+        public boolean writeMessages (Connection conn, List<byte[]> msgs, PartialWriteHandler pwh)
+        {
+            int start = 0, count = msgs.size();
+            while (start < count) {
+                // if the connection to which these messages are destined is closed, drop them and
+                // move along quietly; this is perfectly legal, a user can logoff whenever they
+                // like, even if we still have things to tell them; such is life in a fully
+                // asynchronous distributed system
+                if (conn.isClosed()) {
+                    return true;
+                }
+
+                // write everything up to the next asynchronous close request (if any), or as much
+                // as we'll gather into one write
+                int end = start, limit = MAX_GATHER_BUFFERS * _bufpool.getMaxSize(), bytes = 0;
+                while (end < count && msgs.get(end) != ASYNC_CLOSE_REQUEST &&
+                       (end == start || bytes + msgs.get(end).length <= limit)) {
+                    bytes += msgs.get(end++).length;
+                }
+                if (end > start && !writeMessages(conn, msgs, start, end, pwh)) {
+                    return false;
+                }
+
+                // if we stopped at an asynchronous close request, queue the connection up for
+                // death
+                if (end < count && msgs.get(end) == ASYNC_CLOSE_REQUEST) {
+                    closeConnection(conn);
+                    end++;
+                }
+                start = end;
+            }
+            return true;
+        }
+
+        /**
+         * Writes the messages in the range <code>[start, end)</code> to the supplied connection.
+         * The range must not contain any asynchronous close requests. If the range cannot be
+         * written in full, the messages following it are passed to the partial write handler
+         * along with the leftover buffers, so that they are written after them.
+         */
+        protected boolean writeMessages (
+            Connection conn, List<byte[]> msgs, int start, int end, PartialWriteHandler pwh)
+        {
+            // copy the messages into as few pooled buffers as possible
+            int maxSize = _bufpool.getMaxSize(), total = 0, written = 0;
+            for (int ii = start; ii < end; ii++) {
+                total += msgs.get(ii).length;
+            }
+            ByteBuffer[] buffers = new ByteBuffer[(total + maxSize - 1) / maxSize];
+            int bidx = 0;
+            for (int ii = start; ii < end; ii++) {
+                byte[] data = msgs.get(ii);
+                // sanity check the message size
+                if (data.length > MAX_MESSAGE_SIZE) {
+                    log.warning("Refusing to write very large message", "conn", conn,
+                                "size", data.length);
+                    continue;
+                }
+                for (int offset = 0; offset < data.length; ) {
+                    ByteBuffer buffer = buffers[bidx];
+                    if (buffer == null) {
+                        buffer = buffers[bidx] = _bufpool.acquire(
+                            Math.min(total - written, maxSize));
+                    } else if (!buffer.hasRemaining()) {
+                        buffer = buffers[++bidx] = _bufpool.acquire(
+                            Math.min(total - written, maxSize));
+                    }
+                    int length = Math.min(buffer.remaining(), data.length - offset);
+                    buffer.put(data, offset, length);
+                    offset += length;
+                    written += length;
+                }
+            }
+            if (buffers.length == 0 || buffers[0] == null) {
+                return true; // nothing to write (all messages were refused)
+            }
+            int bcount = bidx + 1;
+            for (int ii = 0; ii < bcount; ii++) {
+                buffers[ii].flip();
+            }
+            if (bcount < buffers.length) { // we skipped some refused messages
+                ByteBuffer[] nbuffers = new ByteBuffer[bcount];
+                System.arraycopy(buffers, 0, nbuffers, 0, bcount);
+                buffers = nbuffers;
+            }
+
+            List<byte[]> unsent = msgs.subList(end, msgs.size());
+            try {
+                // if the connection to which we're writing is not yet ready, the whole message is
+                // "leftover", so we pass it to the partial write handler
+                SocketChannel sochan = conn.getChannel();
+                if (sochan.isConnectionPending()) {
+                    pwh.handlePartialWrite(conn, buffers, unsent);
+                    return false;
+                }
+
+                // then write the data to the socket
+                long wrote = (buffers.length == 1) ?
+                    sochan.write(buffers[0]) : sochan.write(buffers);
+                noteWrite(end - start, wrote);
+
+                // if we didn't write all of our messages, deal with the leftover bytes
+                if (buffers[buffers.length-1].hasRemaining()) {
+                    pwh.handlePartialWrite(conn, buffers, unsent);
+                    return false;
+                }
+
+            } catch (NotYetConnectedException nyce) {
+                // this should be caught by isConnectionPending() but awesomely it's not
+                pwh.handlePartialWrite(conn, buffers, unsent);
+                return false;
+
+            } catch (IOException ioe) {
+                conn.networkFailure(ioe); // instruct the connection to deal with its failure
+            }
+
+            releaseBuffers(buffers);
+            return true;
+        }
+
+        /**
+         * Returns the supplied buffers to our buffer pool.
+         */
+        public void releaseBuffers (ByteBuffer[] buffers)
+        {
+            for (ByteBuffer buffer : buffers) {
+                _bufpool.release(buffer);
+            }
+        }
+
+        /**
+         * Removes the supplied connection's handler mapping and overflow queue. Connections are
+         * occasionally closed from other threads (for example, when a session replaces a stale
+         * connection serviced by a different selector thread), in which case the mappings are
+         * removed on our thread.
+         */
+        public void unmap (final Connection conn)
+        {
+            if (this == _mainLoop || Thread.currentThread() == thread) {
+                unmap(conn, conn.selkey);
+            } else {
+                final SelectionKey selkey = conn.selkey;
+                postTask(new Runnable() {
+                    public void run () {
+                        unmap(conn, selkey);
+                    }
+                });
+            }
+        }
+
+        protected void unmap (Connection conn, SelectionKey selkey)
+        {
+            if (handlers.get(selkey) == conn) {
+                handlers.remove(selkey);
+            }
+            removeOverflowQueue(conn);
+        }
+
+        /**
+         * Removes and cleans up the overflow queue for the supplied connection, if it has one.
+         */
+        public void removeOverflowQueue (Connection conn)
+        {
+            OverflowQueue oqueue = oflowqs.remove(conn);
+            if (oqueue != null) {
+                conn._backedUp = false;
+                oqueue.releasePartial();
+            }
+        }
+
+        /**
+         * Records that we wrote data over the network.
+         */
+        public void noteWrite (int msgs, long bytes)
+        {
+            if (statsLock == ConnectionManager.this) {
+                ConnectionManager.this.noteWrite(msgs, bytes);
+            } else {
+                synchronized (statsLock) {
+                    ConMgrStats stats = getLoopStats();
+                    stats.msgsOut += msgs;
+                    stats.bytesOut += bytes;
+                }
+            }
+        }
+
+        /**
+         * Adds this loop's (cumulative and snapshot) stats into the supplied stats.
+         */
+        public void addStats (ConMgrStats into)
+        {
+            into.handlerCount += handlers.size();
+            into.deathQueueSize += deathq.size();
+            into.outQueueSize += outq.size();
+            synchronized (statsLock) {
+                ConMgrStats stats = getLoopStats();
+                into.overQueueSize += stats.overQueueSize;
+                into.eventCount += stats.eventCount;
+                into.connects += stats.connects;
+                into.disconnects += stats.disconnects;
+                into.closes += stats.closes;
+                into.bytesIn += stats.bytesIn;
+                into.bytesOut += stats.bytesOut;
+                into.msgsIn += stats.msgsIn;
+                into.msgsOut += stats.msgsOut;
+            }
+        }
+
+        /**
+         * Updates our snapshot of the size of our overflow queues. Only needed for loops that are
+         * not serviced by the connection manager thread.
+         */
+        public void updateOverflowStats ()
+        {
+            int size = 0;
+            for (OverflowQueue oq : oflowqs.values()) {
+                size += oq.size();
+            }
+            synchronized (statsLock) {
+                getLoopStats().overQueueSize = size;
+            }
+        }
+
+        /** Used to create an overflow queue on the first partial write. */
+        protected PartialWriteHandler _oflowHandler = new PartialWriteHandler() {
+            public void handlePartialWrite (
+                Connection conn, ByteBuffer[] buffers, List<byte[]> unsent) {
+                // if we couldn't write all the data for these messages, we'll need to establish
+                // an overflow queue
+                oflowqs.put(conn, new OverflowQueue(IOLoop.this, conn, buffers, unsent));
+                conn._backedUp = true;
+            }
+        };
+
+        /** Our own stats, or null if we record into the connection manager's stats. */
+        protected ConMgrStats _loopStats;
+
+        /** Our handlers, hashed by the time at which they should next be checked for idleness. */
+        protected TimerWheel<Tuple<SelectionKey, NetEventHandler>> _idlers =
+            new TimerWheel<Tuple<SelectionKey, NetEventHandler>>(
+                IDLE_CHECK_INTERVAL, _idleTime, System.currentTimeMillis());
+
+        /** Used to collect the handlers whose idle deadlines have passed. */
+        protected List<Tuple<SelectionKey, NetEventHandler>> _expired = Lists.newArrayList();
+
+        /** Runnables to be run on our thread. */
+        protected Queue<Runnable> _tasks = Queue.newQueue();
+
+        /** Used to gather up queued messages by connection in {@link #sendOutgoingMessages}. This
+         * preserves the order in which messages were first queued for each connection, as one that
+         * replaces another on the same socket (see {@link #replaceConnection}) must not have its
+         * messages written ahead of those queued for the connection that it replaced. */
+        protected Map<Connection, List<byte[]>> _pending = Maps.newLinkedHashMap();
+
+        /** Provides the direct buffers into which outgoing messages are copied for writing. */
+        protected BufferPool _bufpool = new BufferPool(1024, 64 * 1024, 4 * 1024 * 1024);
+
+        /** The buffer into which our connections read their data. */
+        protected PooledFramedInputStream.ReadBuffer _readbuf;
+    }
+
+    /**
+     * Services the sockets assigned to one of our additional selectors.
+     */
+    protected class IOThread extends LoopingThread
+    {
+        public final IOLoop loop;
+
+        public IOThread (int index)
+            throws IOException
+        {
+            super("ConnectionManager.IOThread-" + index);
+            loop = new IOLoop(this, Selector.open(),
+                              Maps.<SelectionKey, NetEventHandler>newHashMap(),
+                              Queue.<Tuple<Connection, byte[]>>newQueue(),
+                              Maps.<Connection, OverflowQueue>newHashMap(),
+                              Queue.<Connection>newQueue(), new ConMgrStats(), new Object());
+            _selected = loop.createSelectorIterable();
+        }
+
+        @Override
+        protected void iterate ()
+        {
+            long iterStamp = System.currentTimeMillis();
+            loop.runTasks();
+            loop.closeDeadConnections();
+            loop.checkIdle(iterStamp);
+            loop.sendOutgoingMessages(iterStamp);
+            loop.updateOverflowStats();
+
+            // as with the connection manager thread, we stop reading incoming messages once the
+            // connection manager has been asked to shut down
+            if (ConnectionManager.this._running) {
+                loop.processIncomingEvents(_selected, iterStamp);
+            } else {
+                try {
+                    Thread.sleep(_selectLoopTime);
+                } catch (InterruptedException ie) {
+                    // no problem
+                }
+            }
+        }
+
+        @Override
+        protected void kick ()
+        {
+            loop.selector.wakeup();
+        }
+
+        @Override
+        protected void handleIterateFailure (Exception e)
+        {
+            log.warning("ConnectionManager.IOThread.iterate() uncaught exception.", e);
+        }
+
+        @Override
+        protected void didShutdown ()
+        {
+            // take one last crack at the outgoing message queue
+            loop.runTasks();
+            loop.sendOutgoingMessages(System.currentTimeMillis());
+            if (loop.outq.size() > 0) {
+                log.warning("Selector thread failed to deliver " + loop.outq.size() +
+                            " message(s).", "thread", getName());
+            }
+            try {
+                loop.selector.close();
+            } catch (IOException ioe) {
+                log.warning("Failed to close selector", "thread", getName(), ioe);
+            }
+        }
+
+        protected SelectorIterable _selected;
+    }
+
+    /** Used to handle partial writes in {@link IOLoop#writeMessages}. */
     protected static interface PartialWriteHandler
     {
-        void handlePartialWrite (Connection conn, ByteBuffer buffer);
+        /**
+         * Called when some data could not be written to a connection.
+         *
+         * @param buffers the pooled buffers containing the data that remains to be written. The
+         * handler takes ownership of these buffers.
+         * @param unsent any messages that were not yet copied into the buffers.
+         */
+        void handlePartialWrite (Connection conn, ByteBuffer[] buffers, List<byte[]> unsent);
     }
 
     /**
@@ -510,18 +1127,20 @@ public abstract class ConnectionManager extends LoopingThread
 
         /**
          * Creates a new overflow queue for the supplied connection and with the supplied initial
-         * partial message.
+         * partial messages.
          */
-        public OverflowQueue (Connection conn, ByteBuffer message)
+        public OverflowQueue (
+            IOLoop loop, Connection conn, ByteBuffer[] buffers, List<byte[]> unsent)
         {
+            _loop = loop;
             this.conn = conn;
-            // set up our initial _partial buffer
-            handlePartialWrite(conn, message);
+            // set up our initial _partial buffers
+            handlePartialWrite(conn, buffers, unsent);
         }
 
         /**
          * Called each time through the {@link ConnectionManager#iterate} loop, this attempts to
-         * send any remaining partial message and all subsequent messages in the overflow queue.
+         * send any remaining partial messages and all subsequent messages in the overflow queue.
          *
          * @return true if all messages in this queue were successfully sent, false if there
          * remains data to be sent on the next loop.
@@ -532,7 +1151,7 @@ public abstract class ConnectionManager extends LoopingThread
         public boolean writeOverflowMessages (long iterStamp)
             throws IOException
         {
-            // write any partial message if we have one
+            // write any partial messages if we have them
             if (_partial != null) {
                 // if our outgoing channel is gone or closed, then bail immediately
                 SocketChannel sochan = conn.getChannel();
@@ -543,40 +1162,51 @@ public abstract class ConnectionManager extends LoopingThread
                     return false; // not ready to write to this connection yet
                 }
 
-                // write all we can of our partial buffer
-                int wrote = sochan.write(_partial);
-                noteWrite(0, wrote);
+                // write all we can of our partial buffers
+                long wrote = sochan.write(_partial);
+                _loop.noteWrite(0, wrote);
 
-                if (_partial.remaining() == 0) {
+                if (!_partial[_partial.length-1].hasRemaining()) {
+                    _loop.releaseBuffers(_partial);
                     _partial = null;
                     _partials++;
                 } else {
-//                     log.info("Still going", "conn", conn, "wrote", wrote,
-//                              "remain", _partial.remaining());
+//                     log.info("Still going", "conn", conn, "wrote", wrote);
                     return false;
                 }
             }
 
-            while (size() > 0) {
-                byte[] data = remove(0);
-                // if any of these messages are partially written, we have to stop and wait for the
-                // next tick
-                _msgs++;
-                if (!writeMessage(conn, data, this)) {
-                    return false;
-                }
+            if (size() == 0) {
+                return true;
             }
 
-            return true;
+            // write all of our queued messages in one go; if any of them are partially written,
+            // they'll come back to us via handlePartialWrite() and we'll try again next tick
+            List<byte[]> msgs = Lists.newArrayList(this);
+            clear();
+            _msgs += msgs.size();
+            return _loop.writeMessages(conn, msgs, this);
         }
 
         // documentation inherited
-        public void handlePartialWrite (Connection wconn, ByteBuffer buffer)
+        public void handlePartialWrite (
+            Connection wconn, ByteBuffer[] buffers, List<byte[]> unsent)
         {
-            // set up our _partial buffer
-            _partial = ByteBuffer.allocateDirect(buffer.remaining());
-            _partial.put(buffer);
-            _partial.flip();
+            // hang onto the buffers (which are now ours) and requeue any unsent messages
+            _partial = buffers;
+            addAll(0, unsent);
+        }
+
+        /**
+         * Returns any partially written buffers to the pool. Called when the overflow queue is
+         * abandoned.
+         */
+        public void releasePartial ()
+        {
+            if (_partial != null) {
+                _loop.releaseBuffers(_partial);
+                _partial = null;
+            }
         }
 
         @Override
@@ -585,29 +1215,24 @@ public abstract class ConnectionManager extends LoopingThread
             return "[conn=" + conn + ", partials=" + _partials + ", msgs=" + _msgs + "]";
         }
 
-        /** The remains of a message that was only partially written on its first attempt. */
-        protected ByteBuffer _partial;
+        /** The loop that services our connection. */
+        protected IOLoop _loop;
+
+        /** The remains of messages that were only partially written on their first attempt. */
+        protected ByteBuffer[] _partial;
 
         /** A couple of counters. */
         protected int _msgs, _partials;
     }
 
-    /** Used to create an overflow queue on the first partial write. */
-    protected PartialWriteHandler _oflowHandler = new PartialWriteHandler() {
-        public void handlePartialWrite (Connection conn, ByteBuffer msgbuf) {
-            // if we couldn't write all the data for this message, we'll need to establish an
-            // overflow queue
-            _oflowqs.put(conn, new OverflowQueue(conn, msgbuf));
-        }
-    };
-
     protected Selector _selector;
     protected SelectorIterable _selectorSelector;
 
-    /** Maps selection keys to network event handlers. */
+    /** Maps selection keys to network event handlers. Add handlers via {@link #putHandler}. */
     protected Map<SelectionKey, NetEventHandler> _handlers = Maps.newHashMap();
 
-    /** Connections mapped by identifier. */
+    /** Connections mapped by identifier. Synchronize on the map when accessing it as connections
+     * may be removed by our selector threads. */
     protected IntMap<Connection> _connections = IntMaps.newHashIntMap();
 
     protected Queue<Connection> _deathq = Queue.newQueue();
@@ -615,13 +1240,20 @@ public abstract class ConnectionManager extends LoopingThread
 
     protected Queue<Tuple<Connection, byte[]>> _outq = Queue.newQueue();
 
-    protected ByteBuffer _outbuf = ByteBuffer.allocateDirect(64 * 1024);
-
     protected Map<Connection, OverflowQueue> _oflowqs = Maps.newHashMap();
 
     /** Our current runtime stats. */
     protected ConMgrStats _stats = new ConMgrStats();
 
+    /** The loop serviced by the connection manager thread, which uses our selector and queues. */
+    protected IOLoop _mainLoop;
+
+    /** Our additional selector threads, if we're using them. */
+    protected volatile IOThread[] _iothreads;
+
+    /** The index of the selector thread to which we'll assign our next accepted socket. */
+    protected int _nextIOThread;
+
     /** Used to periodically report connection manager activity when in debug mode. */
     protected long _lastDebugStamp;
 
@@ -635,14 +1267,28 @@ public abstract class ConnectionManager extends LoopingThread
     @Inject(optional=true) @Named("presents.net.selectLoopTime")
     protected int _selectLoopTime = 100;
 
+    /** The number of additional selector threads among which accepted sockets are distributed. If
+     * zero, all sockets are serviced by the connection manager thread. */
+    @Inject(optional=true) @Named("presents.net.ioThreads")
+    protected int _ioThreads = 0;
+
     protected final long _idleTime;
 
+    /** The largest message we're willing to write. */
+    protected static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /** The maximum number of pooled buffers' worth of messages gathered into a single write. */
+    protected static final int MAX_GATHER_BUFFERS = 4;
+
     /** Used to denote asynchronous close requests. */
     protected static final byte[] ASYNC_CLOSE_REQUEST = new byte[0];
 
     /** Whether or not debug reporting is activated .*/
     protected static final boolean DEBUG_REPORT = false;
 
+    /** The granularity with which we check handlers for idleness. */
+    protected static final long IDLE_CHECK_INTERVAL = 1000L;
+
     /** Report our activity every 30 seconds. */
     protected static final long DEBUG_REPORT_INTERVAL = 30*1000L;
 
@@ -0,0 +1,260 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.threerings.io.FramedInputStream;
+
+/**
+ * A framed input stream that does not keep a buffer of its own. Data is read directly into a
+ * large direct buffer that is shared by all of the streams serviced by a single thread (see
+ * {@link ReadBuffer}) and frames are decoded straight from that buffer. When a stream runs out of
+ * complete frames, any partial frame that remains is copied into a small pooled buffer which is
+ * held only until the rest of the frame arrives. Thus a connection that is not in the middle of
+ * receiving a frame holds no buffer at all.
+ *
+ * <p><em>Note:</em> the frame returned by {@link #readFrame} must be read before any other stream
+ * that shares the same read buffer reads a frame. All streams that share a read buffer must be
+ * used on the same thread.
+ */
+public class PooledFramedInputStream extends FramedInputStream
+{
+    /**
+     * The buffer into which a group of streams read their data and the pool from which they
+     * obtain buffers for their partial frames.
+     */
+    public static class ReadBuffer
+    {
+        public ReadBuffer ()
+        {
+            _buffer = ByteBuffer.allocateDirect(MAX_BUFFER_CAPACITY);
+            _pool = new BufferPool(256, MAX_BUFFER_CAPACITY, MAX_BUFFER_CAPACITY / 2);
+        }
+
+        /** Our shared buffer. */
+        protected ByteBuffer _buffer;
+
+        /** The pool from which partial frame buffers are obtained. */
+        protected BufferPool _pool;
+
+        /** The stream whose data is currently in the shared buffer, if any. */
+        protected PooledFramedInputStream _owner;
+    }
+
+    /**
+     * Creates a stream that reads into the supplied shared buffer.
+     */
+    public PooledFramedInputStream (ReadBuffer shared)
+    {
+        super(EMPTY);
+        _shared = shared;
+    }
+
+    @Override
+    public boolean readFrame (ReadableByteChannel source)
+        throws IOException
+    {
+        try {
+            attach();
+
+            // skip past the frame that we served up last time
+            if (_served) {
+                _start += _length;
+                _served = false;
+                _length = peekLength();
+            }
+
+            // we may already have the next frame entirely in the buffer from a previous read;
+            // otherwise read whatever data we can from the source
+            while (!checkFrame()) {
+                makeRoom();
+                int got = source.read(_buffer);
+                if (got == -1) {
+                    throw new EOFException();
+                }
+                _have += got;
+                if (_length == -1) {
+                    _length = peekLength();
+                }
+
+                // if there's room remaining in the buffer, we've read all there is to read
+                if (_have < _buffer.capacity()) {
+                    if (checkFrame()) {
+                        break;
+                    }
+                    // stash our partial frame so that we don't tie up the shared buffer
+                    detach();
+                    return false;
+                }
+            }
+            return true;
+
+        } catch (IOException ioe) {
+            release();
+            throw ioe;
+        }
+    }
+
+    @Override
+    public void reset ()
+    {
+        // position our buffer at the beginning of the frame data
+        if (_served) {
+            _buffer.position(_start + HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Returns any buffer held by this stream to the pool. This must be called on the thread that
+     * uses the shared read buffer. The stream should not be used thereafter.
+     */
+    public void release ()
+    {
+        if (_shared._owner == this) {
+            _shared._owner = null;
+        }
+        if (_partial != null) {
+            _shared._pool.release(_partial);
+            _partial = null;
+        }
+        _buffer = EMPTY;
+        _start = _have = 0;
+        _length = -1;
+        _served = false;
+    }
+
+    /**
+     * Moves our data (if any) into the shared buffer, first stashing the data of the stream that
+     * is currently using it.
+     */
+    protected void attach ()
+    {
+        PooledFramedInputStream owner = _shared._owner;
+        if (owner == this) {
+            return;
+        }
+        if (owner != null) {
+            owner.detach();
+        }
+        _shared._owner = this;
+
+        ByteBuffer buffer = _shared._buffer;
+        buffer.clear();
+        if (_partial != null) {
+            _partial.flip();
+            buffer.put(_partial);
+            _shared._pool.release(_partial);
+            _partial = null;
+        }
+        _buffer = buffer;
+    }
+
+    /**
+     * Copies whatever data we have in the shared buffer into a pooled buffer of our own and gives
+     * up the shared buffer.
+     */
+    protected void detach ()
+    {
+        if (_shared._owner != this) {
+            return;
+        }
+        _shared._owner = null;
+
+        int remaining = _have - _start;
+        if (remaining > 0) {
+            _partial = _shared._pool.acquire(remaining);
+            _buffer.limit(_have).position(_start);
+            _partial.put(_buffer);
+        }
+        _have = remaining;
+        _start = 0;
+        _buffer = EMPTY;
+    }
+
+    /**
+     * Returns the length of the frame at the start of our data if we have enough data to
+     * determine it, -1 otherwise.
+     */
+    protected int peekLength ()
+        throws IOException
+    {
+        if (_have - _start < HEADER_SIZE) {
+            return -1;
+        }
+        _buffer.limit(_have);
+        int length = _buffer.getInt(_start);
+        if (length < HEADER_SIZE || length > _buffer.capacity()) {
+            throw new IOException("Invalid frame length [length=" + length + "]");
+        }
+        return length;
+    }
+
+    /**
+     * If a complete frame is at the start of our data, prepares the buffer to deliver it and
+     * returns true, otherwise returns false.
+     */
+    protected boolean checkFrame ()
+    {
+        if (_length == -1 || _have - _start < _length) {
+            return false;
+        }
+        _buffer.limit(_start + _length).position(_start + HEADER_SIZE);
+        _served = true;
+        return true;
+    }
+
+    /**
+     * Shifts our data to the start of the shared buffer if there's no room after it for the rest
+     * of our frame, and prepares the buffer for reading.
+     */
+    protected void makeRoom ()
+    {
+        int capacity = _buffer.capacity();
+        if (_start > 0 && (_have == capacity || (_length != -1 && _start + _length > capacity))) {
+            _buffer.limit(_have).position(_start);
+            _buffer.compact();
+            _have -= _start;
+            _start = 0;
+        }
+        _buffer.limit(capacity).position(_have);
+    }
+
+    /** The buffer shared by the streams serviced by our thread. */
+    protected ReadBuffer _shared;
+
+    /** Our partial frame data while we're not using the shared buffer. */
+    protected ByteBuffer _partial;
+
+    /** The offset of our current frame in the shared buffer. */
+    protected int _start;
+
+    /** Whether we've served up the frame at {@link #_start}. */
+    protected boolean _served;
+
+    /** Used when we have no frame to serve. */
+    protected static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+}
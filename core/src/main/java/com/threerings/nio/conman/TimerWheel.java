@@ -0,0 +1,159 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: items are scheduled for a particular time and are hashed into a ring of
+ * slots by that time, so that finding the items that have come due only requires looking at the
+ * slots for the ticks that have elapsed, rather than at every scheduled item. Items scheduled
+ * further in the future than one revolution of the wheel are simply passed over until their
+ * revolution comes around.
+ *
+ * <p><em>Note:</em> timer wheels are not thread safe. There is no way to cancel a scheduled item;
+ * callers are expected to check whether a due item is still of interest when it comes due.
+ */
+public class TimerWheel<T>
+{
+    /**
+     * Creates a timer wheel.
+     *
+     * @param tick the resolution of the wheel in milliseconds. Items will be returned by {@link
+     * #expire} no earlier than their scheduled time and no later than the end of the tick in which
+     * that time falls.
+     * @param span the period, in milliseconds, covered by one revolution of the wheel. Items are
+     * most efficiently handled when they are scheduled no more than this far into the future.
+     * @param now the current time.
+     */
+    public TimerWheel (long tick, long span, long now)
+    {
+        _tick = Math.max(tick, 1);
+        int slots = (int)Math.min(span / _tick + 2, 1 << 16);
+        @SuppressWarnings("unchecked") Slot<T>[] sarray =
+            (Slot<T>[])new Slot<?>[Integer.highestOneBit(slots - 1) << 1];
+        _slots = sarray;
+        for (int ii = 0; ii < _slots.length; ii++) {
+            _slots[ii] = new Slot<T>();
+        }
+        _lastTick = now / _tick;
+    }
+
+    /**
+     * Schedules the supplied item to come due at the specified time. Items scheduled for a time
+     * that has already passed will be returned by the next call to {@link #expire}.
+     */
+    public void schedule (T item, long when)
+    {
+        // never schedule anything into a slot that we've already swept
+        long tick = Math.max(when / _tick, _lastTick + 1);
+        _slots[(int)(tick & (_slots.length - 1))].add(item, when);
+        _size++;
+    }
+
+    /**
+     * Removes all items that have come due as of the specified time and adds them to the supplied
+     * list.
+     *
+     * @return the supplied list.
+     */
+    public List<T> expire (long now, List<T> into)
+    {
+        long nowTick = now / _tick;
+        if (nowTick <= _lastTick) {
+            return into;
+        }
+
+        // sweep the slots for the ticks that have elapsed, but don't sweep any slot twice
+        long ticks = Math.min(nowTick - _lastTick, _slots.length);
+        for (long tick = nowTick - ticks + 1; tick <= nowTick; tick++) {
+            _size -= _slots[(int)(tick & (_slots.length - 1))].expire(nowTick, _tick, into);
+        }
+        _lastTick = nowTick;
+        return into;
+    }
+
+    /**
+     * Returns the number of items scheduled in the wheel.
+     */
+    public int size ()
+    {
+        return _size;
+    }
+
+    /** Holds the items hashed into a single slot of the wheel. */
+    protected static class Slot<T>
+    {
+        public void add (T item, long when)
+        {
+            _items.add(item);
+            if (_count == _whens.length) {
+                long[] nwhens = new long[_whens.length * 2];
+                System.arraycopy(_whens, 0, nwhens, 0, _count);
+                _whens = nwhens;
+            }
+            _whens[_count++] = when;
+        }
+
+        /**
+         * Moves the items that have come due (that is, whose tick is no later than
+         * <code>nowTick</code>) into the supplied list, compacting those that remain.
+         *
+         * @return the number of items removed.
+         */
+        public int expire (long nowTick, long tick, List<T> into)
+        {
+            int kept = 0;
+            for (int ii = 0; ii < _count; ii++) {
+                T item = _items.get(ii);
+                long when = _whens[ii];
+                if (when / tick <= nowTick) {
+                    into.add(item);
+                } else {
+                    _items.set(kept, item);
+                    _whens[kept++] = when;
+                }
+            }
+            int removed = _count - kept;
+            _items.subList(kept, _count).clear();
+            _count = kept;
+            return removed;
+        }
+
+        protected List<T> _items = new ArrayList<T>();
+        protected long[] _whens = new long[4];
+        protected int _count;
+    }
+
+    /** The resolution of the wheel in milliseconds. */
+    protected long _tick;
+
+    /** Our slots, the number of which is a power of two. */
+    protected Slot<T>[] _slots;
+
+    /** The most recent tick that we've swept. */
+    protected long _lastTick;
+
+    /** The number of items scheduled in the wheel. */
+    protected int _size;
+}
@@ -0,0 +1,55 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an invocation provider method as one that the invocation manager may call on a thread
+ * other than the distributed object thread, so that time consuming requests that don't touch
+ * distributed object state (pure computation, say) don't hold up the event loop or one another.
+ * The annotation may be placed on the method of the provider interface or of the class that
+ * implements it.
+ *
+ * <p> Such a method may be called on any thread and concurrently with any other method, save that
+ * the requests of a single client to methods using the default executor are dispatched in the
+ * order they were made. It must not read or modify distributed objects, including the caller's
+ * client object, except via thread-safe means like {@link
+ * com.threerings.presents.dobj.DObjectManager#postEvent} and {@link
+ * com.threerings.presents.server.PresentsDObjectMgr#postRunnable}. Listener responses are already
+ * delivered via the distributed object thread and may be sent from the method directly.
+ *
+ * @see com.threerings.presents.server.InvocationManager#registerDispatchExecutor
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ConcurrentDispatch
+{
+    /** The name of the executor on which to dispatch the method, as registered with the
+     * invocation manager, or the empty string for the default pool, which runs each client's
+     * requests in order on one of a fixed number of threads chosen by the client's oid. */
+    String value () default "";
+}
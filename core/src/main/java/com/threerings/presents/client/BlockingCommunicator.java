@@ -52,6 +52,7 @@ import com.threerings.presents.net.AESAuthRequest;
 import com.threerings.presents.net.AuthResponse;
 import com.threerings.presents.net.AuthResponseData;
 import com.threerings.presents.net.AuthRequest;
+import com.threerings.presents.net.CompoundUpstreamMessage;
 import com.threerings.presents.net.DownstreamMessage;
 import com.threerings.presents.net.LogoffRequest;
 import com.threerings.presents.net.PingRequest;
@@ -97,6 +98,23 @@ public class BlockingCommunicator extends Communicator
         super(client);
     }
 
+    /**
+     * Configures the batching of outgoing messages. When enabled, the writer thread collects
+     * messages posted in quick succession into a single {@link CompoundUpstreamMessage} which the
+     * server unpacks and dispatches in order, so that a burst of requests costs one frame (and one
+     * write on each end) rather than one per message.
+     *
+     * @param maxMessages the maximum number of messages to send in a single frame; one disables
+     * batching, which is the default.
+     * @param maxDelay the number of milliseconds for which the first message of a batch may be
+     * held waiting for others to join it; zero sends whatever is already queued without waiting.
+     */
+    public void setUpstreamBatching (int maxMessages, long maxDelay)
+    {
+        _batchMessages = Math.max(maxMessages, 1);
+        _batchDelay = Math.max(maxDelay, 0L);
+    }
+
     @Override // from Communicator
     public void logon ()
     {
@@ -387,6 +405,10 @@ public class BlockingCommunicator extends Communicator
 
         // first we write the message so that we can measure it's length
         _oout.writeObject(msg);
+        if (msg instanceof AuthRequest) {
+            // let the server know what we're capable of
+            _oout.writeInt(AuthRequest.COMPRESSED_FRAMES);
+        }
         _oout.flush();
 
         // then write the framed message to actual output stream
@@ -413,6 +435,40 @@ public class BlockingCommunicator extends Communicator
         updateWriteStamp();
     }
 
+    /**
+     * Returns the next message to be sent by the writer thread, blocking until one is available.
+     * If batching is enabled, messages that follow the first within the configured delay are
+     * gathered up with it in a {@link CompoundUpstreamMessage}.
+     */
+    protected UpstreamMessage nextMessage ()
+    {
+        UpstreamMessage msg = _msgq.get();
+        if (_batchMessages <= 1 || msg instanceof TerminationMessage) {
+            return msg;
+        }
+
+        CompoundUpstreamMessage batch = null;
+        long deadline = System.currentTimeMillis() + _batchDelay;
+        while (batch == null || batch.msgs.size() < _batchMessages) {
+            long wait = deadline - System.currentTimeMillis();
+            UpstreamMessage next = (wait > 0) ? _msgq.get(wait) : _msgq.getNonBlocking();
+            if (next == null) {
+                break;
+            }
+            if (next instanceof TerminationMessage) {
+                // send what we have; the writer will see the termination message next time
+                _msgq.prepend(next);
+                break;
+            }
+            if (batch == null) {
+                batch = new CompoundUpstreamMessage();
+                batch.msgs.add(msg);
+            }
+            batch.msgs.add(next);
+        }
+        return (batch == null) ? msg : batch;
+    }
+
     /**
      * Writes the message contained in the supplied buffer.
      *
@@ -765,8 +821,8 @@ public class BlockingCommunicator extends Communicator
 
         @Override
         protected void iterate () {
-            // fetch the next message from the queue
-            UpstreamMessage msg = _msgq.get();
+            // fetch the next message (or batch of messages) from the queue
+            UpstreamMessage msg = nextMessage();
 
             // if this is a termination message, we're being requested to exit, so we call
             // super.shutdown() to mark ourselves as not running and then return
@@ -1029,6 +1085,11 @@ public class BlockingCommunicator extends Communicator
 
     protected Exception _logonError;
 
+    /** The maximum number of messages batched into a single frame, and the maximum number of
+     * milliseconds to wait for a batch to fill. See {@link #setUpstreamBatching}. */
+    protected int _batchMessages = 1;
+    protected long _batchDelay;
+
     /** We use this to frame our upstream messages. */
     protected FramingOutputStream _fout;
     protected ObjectOutputStream _oout;
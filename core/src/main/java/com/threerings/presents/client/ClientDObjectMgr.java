@@ -235,6 +235,20 @@ public class ClientDObjectMgr
         }
     }
 
+    /**
+     * Substitutes the supplied object for the one we have cached under the specified oid, so that
+     * events subsequently received for that oid are applied to the substitute. The peer manager
+     * uses this to reattach a proxied object to a fresh subscription after reconnecting to the
+     * object's server. The substitute should retain a subscriber from its original subscription
+     * with which it can later be unsubscribed.
+     */
+    public void replaceObject (int oid, DObject object)
+    {
+        if (_ocache.put(oid, object) == null) {
+            log.warning("Replaced object that was not cached", "oid", oid, "obj", object);
+        }
+    }
+
     /**
      * Called when the client is cleaned up due to having disconnected from the server.
      */
@@ -34,6 +34,19 @@ public class PresentsConMgrStats extends ConMgrStats
      * are requested. */
     public int authQueueSize;
 
+    /** The number of messages waiting to be framed by encoder threads. This is a snapshot at the
+     * time the stats are requested. */
+    public int encodeQueueSize;
+
+    /** The number of outgoing messages that were compressed. */
+    public long compressedMsgs;
+
+    /** The number of bytes in compressed messages before they were compressed. */
+    public long compressedBytesRaw;
+
+    /** The number of bytes in compressed messages after they were compressed. */
+    public long compressedBytesOut;
+
     @Override // from Object
     public PresentsConMgrStats clone ()
     {
@@ -23,12 +23,87 @@ package com.threerings.presents.dobj;
 
 import java.lang.reflect.Field;
 
+import static com.threerings.presents.Log.log;
+
 /**
  * Used by {@link DObject} to provide dynamic access to its fields. This class is an implementation
  * detail that can be safely ignored. It is only a public top-level class to ensure that bindings
  * for other languages can make use of it without complications.
  */
 public abstract class Accessor implements Comparable<Accessor> {
+    /**
+     * An accessor whose get and set are implemented by generated code (see {@link
+     * AccessorGenerator}) that switches on the index of the field in its class.
+     */
+    public static abstract class Generated extends Accessor {
+        protected Generated (String name, int index) {
+            super(name);
+            _index = index;
+        }
+
+        // these unbox the values assigned to primitive fields, permitting only the identity and
+        // widening conversions that Field.set permits
+
+        protected boolean toBoolean (Object value) {
+            if (value instanceof Boolean) {
+                return (Boolean)value;
+            }
+            throw mismatch(value);
+        }
+
+        protected byte toByte (Object value) {
+            if (value instanceof Byte) {
+                return (Byte)value;
+            }
+            throw mismatch(value);
+        }
+
+        protected char toChar (Object value) {
+            if (value instanceof Character) {
+                return (Character)value;
+            }
+            throw mismatch(value);
+        }
+
+        protected short toShort (Object value) {
+            if (value instanceof Short || value instanceof Byte) {
+                return ((Number)value).shortValue();
+            }
+            throw mismatch(value);
+        }
+
+        protected int toInt (Object value) {
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return ((Number)value).intValue();
+            } else if (value instanceof Character) {
+                return (Character)value;
+            }
+            throw mismatch(value);
+        }
+
+        protected long toLong (Object value) {
+            return (value instanceof Long) ? (Long)value : toInt(value);
+        }
+
+        protected float toFloat (Object value) {
+            return (value instanceof Float) ? (Float)value : toLong(value);
+        }
+
+        protected double toDouble (Object value) {
+            return (value instanceof Double) ? (Double)value : toFloat(value);
+        }
+
+        /** Creates the exception thrown when a value cannot be assigned to our field. */
+        protected IllegalArgumentException mismatch (Object value) {
+            return new IllegalArgumentException(
+                "Cannot set field '" + name + "' to " +
+                ((value == null) ? "null" : value.getClass().getName()));
+        }
+
+        /** The index of our field among those handled by our generated class. */
+        protected final int _index;
+    }
+
     /** An accessor that assumes DObject fields are public Java fields. */
     public static class ByField extends Accessor {
         public final Field field;
@@ -57,6 +132,38 @@ public abstract class Accessor implements Comparable<Accessor> {
         }
     }
 
+    /**
+     * Creates accessors for the supplied public fields of the supplied distributed object class.
+     * Accessors that get and set the fields directly are generated if Javassist is available (and
+     * the <code>com.threerings.presents.dobj.reflectiveAccessors</code> system property is not
+     * set), otherwise the fields are accessed via reflection.
+     */
+    public static Accessor[] create (Class<?> target, Field[] fields) {
+        if (_generate) {
+            try {
+                Accessor[] accs = AccessorGenerator.generate(target, fields);
+                if (accs != null) {
+                    return accs;
+                }
+            } catch (Throwable t) {
+                // as with marshallers, this generally means that we can't define classes at all,
+                // so we report it once and use reflection from here on out
+                synchronized (Accessor.class) {
+                    if (_generate) {
+                        _generate = false;
+                        log.warning("Unable to generate accessors, using reflection for all " +
+                                    "classes", "class", target.getName(), "error", t);
+                    }
+                }
+            }
+        }
+        Accessor[] accs = new Accessor[fields.length];
+        for (int ii = 0; ii < fields.length; ii++) {
+            accs[ii] = new ByField(fields[ii]);
+        }
+        return accs;
+    }
+
     /** The name of this attribute. */
     public final String name;
 
@@ -76,4 +183,18 @@ public abstract class Accessor implements Comparable<Accessor> {
     {
         this.name = name;
     }
+
+    /** Whether or not we generate accessors. Cleared if generation fails. */
+    protected static volatile boolean _generate;
+    static {
+        boolean generate = !Boolean.getBoolean("com.threerings.presents.dobj.reflectiveAccessors");
+        if (generate) {
+            try {
+                Class.forName("javassist.ClassPool");
+            } catch (Throwable t) {
+                generate = false; // no Javassist, no generation
+            }
+        }
+        _generate = generate;
+    }
 }
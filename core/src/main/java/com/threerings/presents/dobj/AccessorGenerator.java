@@ -0,0 +1,157 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import java.lang.reflect.Field;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+
+import com.google.common.primitives.Primitives;
+
+import com.threerings.io.ClassMarshallerGenerator;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Generates {@link Accessor}s for distributed object fields using Javassist, so that applying
+ * attribute changes does not require reflection. This class is only loaded if Javassist is
+ * available.
+ */
+public class AccessorGenerator
+{
+    /**
+     * Generates accessors for the supplied fields of the supplied class (in the same order), or
+     * returns null if the class cannot be accessed by generated code or its accessors fail to
+     * compile. Fields that cannot be accessed by generated code are given reflective accessors.
+     */
+    public static synchronized Accessor[] generate (Class<?> target, Field[] fields)
+        throws Exception
+    {
+        // we define the accessor in the same package and class loader as its target so that it
+        // can access non-public classes
+        ClassLoader loader = target.getClassLoader();
+        if (loader == null || !ClassMarshallerGenerator.isAccessible(target, target)) {
+            return null;
+        }
+        if (_pool == null) {
+            _pool = new ClassPool(true);
+            _pool.appendClassPath(new ClassClassPath(Accessor.class));
+        }
+        if (!_loaders.containsKey(loader)) {
+            _pool.appendClassPath(new LoaderClassPath(loader));
+            _loaders.put(loader, Boolean.TRUE);
+        }
+
+        String tname = ClassMarshallerGenerator.typeName(target);
+        StringBuilder gsrc = new StringBuilder();
+        gsrc.append("public Object get (com.threerings.presents.dobj.DObject obj) {\n");
+        gsrc.append(tname).append(" o = (").append(tname).append(")obj;\n");
+        gsrc.append("switch (_index) {\n");
+
+        StringBuilder ssrc = new StringBuilder();
+        ssrc.append("public void set (com.threerings.presents.dobj.DObject obj, Object value) {\n");
+        ssrc.append(tname).append(" o = (").append(tname).append(")obj;\n");
+        ssrc.append("try {\n");
+        ssrc.append("switch (_index) {\n");
+
+        boolean[] generated = new boolean[fields.length];
+        int count = 0;
+        for (int ii = 0; ii < fields.length; ii++) {
+            Field field = fields[ii];
+            Class<?> ftype = field.getType();
+            if (!ClassMarshallerGenerator.isAccessible(field, target) ||
+                    !ClassMarshallerGenerator.isAccessible(ftype, target)) {
+                continue;
+            }
+            generated[ii] = true;
+            count++;
+
+            String fref = "o." + field.getName();
+            String ftname = ClassMarshallerGenerator.typeName(ftype);
+            gsrc.append("case ").append(ii).append(": return ");
+            ssrc.append("case ").append(ii).append(": ").append(fref).append(" = ");
+            if (ftype.isPrimitive()) {
+                // like Field.set, we accept any wrapper that can be widened to the field's type
+                String wname = Primitives.wrap(ftype).getName();
+                gsrc.append(wname).append(".valueOf(").append(fref).append(");\n");
+                ssrc.append("to").append(Character.toUpperCase(ftname.charAt(0)));
+                ssrc.append(ftname.substring(1)).append("(value); return;\n");
+            } else {
+                gsrc.append(fref).append(";\n");
+                ssrc.append("(").append(ftname).append(")value; return;\n");
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        gsrc.append("}\nthrow new IllegalStateException(\"No field \" + _index);\n}");
+        ssrc.append("}\n} catch (ClassCastException cce) {\nthrow mismatch(value);\n}\n");
+        ssrc.append("throw new IllegalStateException(\"No field \" + _index);\n}");
+
+        CtClass cclass = _pool.makeClass(
+            target.getName() + "$Accessor" + (++_generated),
+            _pool.get(Accessor.Generated.class.getName()));
+        try {
+            cclass.addConstructor(CtNewConstructor.make(
+                "public " + cclass.getSimpleName() + " (String name, int index) " +
+                "{ super(name, index); }", cclass));
+            cclass.addMethod(CtNewMethod.make(gsrc.toString(), cclass));
+            cclass.addMethod(CtNewMethod.make(ssrc.toString(), cclass));
+        } catch (CannotCompileException cce) {
+            // this only affects this class, which will use reflective accessors
+            log.warning("Failed to compile accessors", "class", target.getName(), cce);
+            cclass.detach();
+            return null;
+        }
+        Class<?> aclass = cclass.toClass(loader, target.getProtectionDomain());
+        cclass.detach();
+
+        Accessor[] accs = new Accessor[fields.length];
+        for (int ii = 0; ii < fields.length; ii++) {
+            accs[ii] = generated[ii] ?
+                (Accessor)aclass.getConstructor(String.class, Integer.TYPE).newInstance(
+                    fields[ii].getName(), ii) :
+                new Accessor.ByField(fields[ii]);
+        }
+        return accs;
+    }
+
+    /** The pool in which we generate our classes. */
+    protected static ClassPool _pool;
+
+    /** The class loaders that we've added to our pool's class path. */
+    protected static Map<ClassLoader, Boolean> _loaders = new WeakHashMap<ClassLoader, Boolean>();
+
+    /** The number of accessor classes we've generated, used to keep their names unique. */
+    protected static int _generated;
+}
@@ -120,6 +120,25 @@ public class AttributeChangedEvent extends NamedEvent
         return ((Double)_value).doubleValue();
     }
 
+    /**
+     * Returns true if this event may be collapsed with other pending changes to the same attribute
+     * (see {@link DObject#setCoalesceAttributeChanges}).
+     */
+    public boolean isCoalescible ()
+    {
+        return _coalesce;
+    }
+
+    /**
+     * Folds an earlier, as yet undispatched change to the same attribute into this event, which
+     * will thereafter report the earlier event's old value. The earlier event must then be
+     * discarded.
+     */
+    public void coalesce (AttributeChangedEvent earlier)
+    {
+        _oldValue = earlier._oldValue;
+    }
+
     @Override
     public boolean alreadyApplied ()
     {
@@ -181,4 +200,7 @@ public class AttributeChangedEvent extends NamedEvent
 
     protected Object _value;
     protected transient Object _oldValue = UNSET_OLD_VALUE;
+
+    /** Whether this event may be coalesced with other changes to the same attribute. */
+    protected transient boolean _coalesce;
 }
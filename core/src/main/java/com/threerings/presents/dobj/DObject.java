@@ -25,9 +25,9 @@ import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -78,9 +78,11 @@ public class DObject
     {
         _accessors = _atable.get(getClass());
         if (_accessors == null) {
-            _accessors = createAccessors();
-            Arrays.sort(_accessors);
-            _atable.put(getClass(), _accessors);
+            Map<String, Accessor> accessors = Maps.newHashMap();
+            for (Accessor acc : createAccessors()) {
+                accessors.put(acc.name, acc);
+            }
+            _atable.put(getClass(), _accessors = accessors);
         }
     }
 
@@ -144,6 +146,18 @@ public class DObject
         }
     }
 
+    /**
+     * Instructs this object to have changes to the same attribute that are waiting to be
+     * dispatched at the same time collapsed into a single change to the latest value. Listeners
+     * (and subscribers) then do not hear about the intermediate values, so this is only suitable
+     * for objects whose listeners care only about the latest values of their attributes (scores,
+     * positions and the like). Changes made within a transaction are never collapsed.
+     */
+    public void setCoalesceAttributeChanges (boolean coalesce)
+    {
+        _coalesce = coalesce;
+    }
+
     /**
      * Instructs this object to request to have a fork stuck in it when its last subscriber is
      * removed.
@@ -822,8 +836,10 @@ public class DObject
         String name, Object value, Object oldValue, Transport transport)
     {
         // dispatch an attribute changed event
-        postEvent(new AttributeChangedEvent(_oid, name, value).
-                  setOldValue(oldValue).setTransport(transport));
+        AttributeChangedEvent event = new AttributeChangedEvent(_oid, name, value);
+        event.setOldValue(oldValue).setTransport(transport);
+        event._coalesce = _coalesce;
+        postEvent(event);
     }
 
     /**
@@ -940,9 +956,8 @@ public class DObject
                             new Exception());
             }
         }
-        // dispatch an entry updated event
-        postEvent(new EntryUpdatedEvent<T>(_oid, name, entry).
-                  setOldEntry(oldEntry).setTransport(transport));
+        // dispatch an entry updated event (which carries only the changed fields of delta entries)
+        postEvent(EntryPatchedEvent.create(_oid, name, entry, oldEntry).setTransport(transport));
     }
 
     protected boolean isAuthoritative ()
@@ -956,38 +971,32 @@ public class DObject
      */
     protected final Accessor getAccessor (String name)
     {
-        int low = 0, high = _accessors.length-1;
-        while (low <= high) {
-            int mid = (low + high) >> 1;
-            Accessor midVal = _accessors[mid];
-            int cmp = midVal.name.compareTo(name);
-            if (cmp < 0) {
-                low = mid + 1;
-            } else if (cmp > 0) {
-                high = mid - 1;
-            } else {
-                return midVal; // key found
-            }
+        // names created on the server are usually the generated field name constants, so this
+        // lookup rarely needs to compare strings character by character
+        Accessor acc = _accessors.get(name);
+        if (acc == null) {
+            throw new IllegalArgumentException(
+                "No such field " + getClass().getName() + "." + name);
         }
-        throw new IllegalArgumentException("No such field " + getClass().getName() + "." + name);
+        return acc;
     }
 
     /**
      * Creates the accessors that will be used to read and write this object's attributes. The
-     * default implementation assumes the object's attributes are all public fields and uses
-     * reflection to get and set their values.
+     * default implementation assumes the object's attributes are all public fields and gets and
+     * sets their values via generated code (or reflection if that is not possible).
      */
     protected Accessor[] createAccessors ()
     {
         Field[] fields = getClass().getFields();
         // assume we have one static field for every non-static field
-        List<Accessor> accs = Lists.newArrayListWithExpectedSize(fields.length/2);
+        List<Field> dfields = Lists.newArrayListWithExpectedSize(fields.length/2);
         for (Field field : fields) {
             if (!Modifier.isStatic(field.getModifiers())) { // skip static fields
-                accs.add(new Accessor.ByField(field));
+                dfields.add(field);
             }
         }
-        return accs.toArray(new Accessor[accs.size()]);
+        return Accessor.create(getClass(), dfields.toArray(new Field[dfields.size()]));
     }
 
     /**
@@ -1011,8 +1020,8 @@ public class DObject
     /** Our object id. */
     protected int _oid;
 
-    /** An array of our field accessors, sorted for efficient lookup. */
-    protected transient Accessor[] _accessors;
+    /** Our field accessors, mapped by field name. */
+    protected transient Map<String, Accessor> _accessors;
 
     /** A reference to our object manager. */
     protected transient DObjectManager _omgr;
@@ -1044,9 +1053,13 @@ public class DObject
     /** Indicates whether we want to be destroyed when our last subscriber is removed. */
     protected transient boolean _deathWish = false;
 
+    /** Whether our attribute changes may be coalesced by the object manager. */
+    protected transient boolean _coalesce;
+
     /** Any local attributes configured on this object. */
     protected transient Object[] _locattrs = ArrayUtil.EMPTY_OBJECT;
 
-    /** Maintains a mapping of sorted accessor arrays for each distributed object class. */
-    protected static Map<Class<?>, Accessor[]> _atable = Maps.newHashMap();
+    /** Maintains a mapping of accessor maps for each distributed object class. */
+    protected static Map<Class<?>, Map<String, Accessor>> _atable =
+        new ConcurrentHashMap<Class<?>, Map<String, Accessor>>();
 }
@@ -69,6 +69,20 @@ public class DSet<E extends DSet.Entry>
         Comparable<?> getKey ();
     }
 
+    /**
+     * Entries that implement this interface are updated by sending only those of their fields
+     * that differ from the entry being replaced (see {@link EntryPatchedEvent}), rather than the
+     * whole entry. Updates must be made with a new instance (usually a clone of the old entry)
+     * and must not modify objects shared with the old entry (arrays, collections, etc.) in place,
+     * as such changes will not be detected. Entries that customize their streaming are always
+     * sent whole, and transient fields are reset on subscribers, as they would be were the entry
+     * sent whole. Only Java clients understand delta updates, so sets that are subscribed to by
+     * ActionScript clients must not contain such entries.
+     */
+    public static interface DeltaEntry extends Entry
+    {
+    }
+
     /**
      * Creates a new DSet of the appropriate generic type.
      */
@@ -355,6 +369,7 @@ public class DSet<E extends DSet.Entry>
         _entries[eidx] = elem;
         _size++;
         _modCount++;
+        updateIndexes(null, elem);
 
         return true;
     }
@@ -408,6 +423,7 @@ public class DSet<E extends DSet.Entry>
                 _entries[_size] = null;
             }
             _modCount++;
+            updateIndexes(oldEntry, null);
             return oldEntry;
 
         } else {
@@ -434,12 +450,47 @@ public class DSet<E extends DSet.Entry>
             E oldEntry = _entries[eidx];
             _entries[eidx] = elem;
             _modCount++;
+            updateIndexes(oldEntry, elem);
             return oldEntry;
         } else {
             return null;
         }
     }
 
+    /**
+     * Informs our indexes (if any) that an entry was added (<code>oldEntry</code> is null),
+     * removed (<code>newEntry</code> is null) or updated.
+     */
+    protected final void updateIndexes (E oldEntry, E newEntry)
+    {
+        if (_indexes != null) {
+            for (int ii = 0, ll = _indexes.size(); ii < ll; ii++) {
+                _indexes.get(ii).entryChanged(oldEntry, newEntry);
+            }
+        }
+    }
+
+    /**
+     * Registers an index to be kept up to date with changes to this set. Called by the index.
+     */
+    protected void addIndex (DSetIndex<?, E> index)
+    {
+        if (_indexes == null) {
+            _indexes = new ArrayList<DSetIndex<?, E>>(1);
+        }
+        _indexes.add(index);
+    }
+
+    /**
+     * Clears an index registration made via {@link #addIndex}. Called by the index.
+     */
+    protected void removeIndex (DSetIndex<?, E> index)
+    {
+        if (_indexes != null) {
+            _indexes.remove(index);
+        }
+    }
+
     /**
      * Returns the minimum size where we should warn that we're getting a bit large.
      */
@@ -471,6 +522,7 @@ public class DSet<E extends DSet.Entry>
             nset._entries = copy;
             System.arraycopy(_entries, 0, nset._entries, 0, _entries.length);
             nset._modCount = 0;
+            nset._indexes = null;
             return nset;
         } catch (CloneNotSupportedException cnse) {
             throw new AssertionError(cnse);
@@ -530,6 +582,9 @@ public class DSet<E extends DSet.Entry>
     /** Used to check for concurrent modification. */
     protected transient int _modCount;
 
+    /** The indexes that are kept up to date with our contents, or null. */
+    protected transient ArrayList<DSetIndex<?, E>> _indexes;
+
     /** The default capacity of a set instance. */
     protected static final int INITIAL_CAPACITY = 2;
 
@@ -0,0 +1,110 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Maintains a secondary index of the entries of a {@link DSet}, mapping some property of each
+ * entry (which should be unique among the entries of the set) to the entry. An index is declared
+ * as a (transient) field alongside the set field that it indexes and is attached to whatever set
+ * instance it is asked to search, building itself from that set's contents the first time and
+ * thereafter being updated incrementally as entries are added, removed and updated (which is to
+ * say, as entry events are applied to the set). Thus it is maintained properly on the server and
+ * on clients, and when the set field is replaced wholesale.
+ *
+ * <pre>
+ * protected transient DSetIndex&lt;Name, OccupantInfo&gt; _byName =
+ *     new DSetIndex&lt;Name, OccupantInfo&gt;() {
+ *     protected Name getIndexKey (OccupantInfo info) {
+ *         return info.username;
+ *     }
+ * };
+ * </pre>
+ *
+ * <p> The indexed property of an entry must not be changed while the entry is in the set; an
+ * entry must instead be replaced by a modified copy via an entry update.
+ *
+ * @param <K> the type of the index key.
+ * @param <E> the type of entry stored in the indexed set.
+ */
+public abstract class DSetIndex<K, E extends DSet.Entry>
+{
+    /**
+     * Returns the entry in the supplied set whose index key is equal to the supplied key, or null
+     * if no such entry is in the set.
+     */
+    public E get (DSet<E> set, K key)
+    {
+        if (_set != set) {
+            attach(set);
+        }
+        return _entries.get(key);
+    }
+
+    /**
+     * Returns the index key for the supplied entry.
+     */
+    protected abstract K getIndexKey (E entry);
+
+    /**
+     * Called by our set when an entry is added (<code>oldEntry</code> will be null), removed
+     * (<code>newEntry</code> will be null) or updated.
+     */
+    protected void entryChanged (E oldEntry, E newEntry)
+    {
+        if (oldEntry != null) {
+            K key = getIndexKey(oldEntry);
+            if (_entries.get(key) == oldEntry) {
+                _entries.remove(key);
+            }
+        }
+        if (newEntry != null) {
+            _entries.put(getIndexKey(newEntry), newEntry);
+        }
+    }
+
+    /**
+     * Detaches from our current set (if any) and builds our index from the supplied set.
+     */
+    protected void attach (DSet<E> set)
+    {
+        if (_set != null) {
+            _set.removeIndex(this);
+        }
+        _set = set;
+        _entries.clear();
+        for (E entry : set) {
+            _entries.put(getIndexKey(entry), entry);
+        }
+        set.addIndex(this);
+    }
+
+    /** The set that we currently index. */
+    protected DSet<E> _set;
+
+    /** The entries of our set, mapped by index key. */
+    protected Map<K, E> _entries = Maps.newHashMap();
+}
@@ -0,0 +1,353 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.dobj;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import java.io.IOException;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.ClassUtil;
+
+import com.threerings.io.FieldMarshaller;
+import com.threerings.io.NotStreamable;
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * An entry updated event that carries only those fields of the updated entry that differ from
+ * the entry it replaced. Subscribers patch a copy of their existing entry with the changed fields.
+ * These events are created in place of plain {@link EntryUpdatedEvent}s for {@link
+ * DSet.DeltaEntry} entries; see {@link #create}.
+ *
+ * @param <T> the type of entry being handled by this event. This must match the type on the set
+ * that generated this event.
+ */
+public class EntryPatchedEvent<T extends DSet.Entry> extends EntryUpdatedEvent<T>
+{
+    /**
+     * Creates an event that will update the specified entry, carrying only the changed fields of
+     * the entry if the entry is a {@link DSet.DeltaEntry} and the entry that it replaced is known.
+     *
+     * @param oldEntry the entry being replaced, or null if it is not known.
+     */
+    public static <T extends DSet.Entry> EntryUpdatedEvent<T> create (
+        int targetOid, String name, T entry, T oldEntry)
+    {
+        if (entry instanceof DSet.DeltaEntry && oldEntry != null && oldEntry != entry &&
+            oldEntry.getClass() == entry.getClass()) {
+            EntryFields efields = getEntryFields(entry.getClass());
+            if (efields != null) {
+                try {
+                    List<Field> fields = Lists.newArrayList();
+                    List<Object> values = Lists.newArrayList();
+                    for (Field field : efields.streamed) {
+                        Object value = field.get(entry);
+                        if (!valuesEqual(value, field.get(oldEntry))) {
+                            fields.add(field);
+                            values.add(value);
+                        }
+                    }
+                    // if everything changed, we may as well send the whole entry
+                    if (fields.size() < efields.streamed.length) {
+                        return new EntryPatchedEvent<T>(targetOid, name, entry,
+                            fields.toArray(new Field[fields.size()]), values.toArray()).
+                            setOldEntry(oldEntry);
+                    }
+                } catch (IllegalAccessException iae) {
+                    log.warning("Failed to compute entry delta", "entry", entry, iae);
+                }
+            }
+        }
+        return new EntryUpdatedEvent<T>(targetOid, name, entry).setOldEntry(oldEntry);
+    }
+
+    /**
+     * Used when unserializing.
+     */
+    public EntryPatchedEvent ()
+    {
+        super(0, null, null);
+    }
+
+    /**
+     * Constructs a patch event for the specified entry, with the supplied changed fields.
+     */
+    protected EntryPatchedEvent (
+        int targetOid, String name, T entry, Field[] fields, Object[] values)
+    {
+        super(targetOid, name, entry);
+        _key = entry.getKey();
+        _eclass = entry.getClass();
+        _fields = fields;
+        _values = values;
+    }
+
+    @Override
+    public Comparable<?> getKey ()
+    {
+        return _key;
+    }
+
+    /**
+     * {@inheritDoc}
+     * This implementation returns <code>null</code> on subscribers until the event has been
+     * applied.
+     */
+    @Override
+    public T getEntry ()
+    {
+        return _entry;
+    }
+
+    @Override
+    public boolean applyToObject (DObject target)
+        throws ObjectAccessException
+    {
+        // only apply the change if we haven't already
+        if (!alreadyApplied() && _entry == null) {
+            DSet<T> set = target.getSet(_name);
+            T oldEntry = set.get(_key);
+            if (oldEntry == null) {
+                log.warning("No matching entry to patch", "entry", this, "set", set);
+                return false;
+            }
+            if (oldEntry.getClass() != _eclass) {
+                log.warning("Entry to patch is of the wrong class", "entry", this,
+                            "oldEntry", oldEntry);
+                return false;
+            }
+            _entry = patch(oldEntry);
+            if (_entry == null) {
+                return false;
+            }
+        }
+        return super.applyToObject(target);
+    }
+
+    /**
+     * Writes our custom streamable fields.
+     */
+    public void writeObject (ObjectOutputStream out)
+        throws IOException
+    {
+        out.writeInt(_toid);
+        out.writeIntern(_name);
+        out.writeObject(_key);
+        out.writeObject(_eclass);
+        out.writeShort(_fields.length);
+        for (int ii = 0; ii < _fields.length; ii++) {
+            out.writeIntern(_fields[ii].getName());
+            out.writeObject(_values[ii]);
+        }
+    }
+
+    /**
+     * Reads our custom streamable fields.
+     */
+    public void readObject (ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        _toid = in.readInt();
+        _name = in.readIntern();
+        _key = (Comparable<?>)in.readObject();
+        _eclass = (Class<?>)in.readObject();
+
+        EntryFields efields = getEntryFields(_eclass);
+        int count = in.readShort();
+        List<Field> fields = Lists.newArrayListWithCapacity(count);
+        List<Object> values = Lists.newArrayListWithCapacity(count);
+        for (int ii = 0; ii < count; ii++) {
+            String fname = in.readIntern();
+            Object value = in.readObject();
+            Field field = (efields == null) ? null : efields.byName.get(fname);
+            if (field == null) {
+                log.warning("Dropping patch of unknown entry field", "class", _eclass.getName(),
+                            "field", fname);
+                continue;
+            }
+            fields.add(field);
+            values.add(value);
+        }
+        _fields = fields.toArray(new Field[fields.size()]);
+        _values = values.toArray();
+    }
+
+    /**
+     * Creates a copy of the supplied entry with our changed fields applied, or returns null if
+     * that is not possible.
+     */
+    protected T patch (T oldEntry)
+    {
+        EntryFields efields = getEntryFields(_eclass);
+        if (efields == null) {
+            log.warning("Unable to patch entry", "entry", this, "oldEntry", oldEntry);
+            return null;
+        }
+        try {
+            // start with what a subscriber would have gotten had the entry been sent whole
+            @SuppressWarnings("unchecked") T entry = (T)efields.ctor.newInstance();
+            for (Field field : efields.streamed) {
+                field.set(entry, field.get(oldEntry));
+            }
+            for (int ii = 0; ii < _fields.length; ii++) {
+                _fields[ii].set(entry, _values[ii]);
+            }
+            return entry;
+
+        } catch (Exception e) {
+            log.warning("Failed to patch entry", "entry", this, "oldEntry", oldEntry, e);
+            return null;
+        }
+    }
+
+    @Override
+    protected void toString (StringBuilder buf)
+    {
+        buf.append("ELPAT:");
+        buf.append("targetOid=").append(_toid).append(", name=").append(_name);
+        buf.append(", key=").append(_key).append(", fields=[");
+        for (int ii = 0; ii < _fields.length; ii++) {
+            buf.append((ii > 0) ? ", " : "").append(_fields[ii].getName());
+        }
+        buf.append("]");
+    }
+
+    /**
+     * Returns the field metadata for the supplied entry class, or null if entries of that class
+     * cannot be patched, which includes those that customize their streaming with
+     * <code>writeObject</code> and <code>readObject</code> methods or field reader and writer
+     * methods.
+     */
+    protected static synchronized EntryFields getEntryFields (Class<?> eclass)
+    {
+        if (_efields.containsKey(eclass)) {
+            return _efields.get(eclass);
+        }
+        EntryFields efields = null;
+        try {
+            efields = new EntryFields(eclass);
+        } catch (Exception e) {
+            log.warning("Entries cannot be patched", "class", eclass.getName(), "error", e);
+        }
+        _efields.put(eclass, efields);
+        return efields;
+    }
+
+    /**
+     * Returns true if the two supplied field values are equal, comparing arrays by content.
+     */
+    protected static boolean valuesEqual (Object v1, Object v2)
+    {
+        if (v1 != null && v2 != null && v1.getClass().isArray() && v2.getClass().isArray()) {
+            return Arrays.deepEquals(new Object[] { v1 }, new Object[] { v2 });
+        }
+        return Objects.equal(v1, v2);
+    }
+
+    /** The fields of an entry class that we need to compute and apply patches. */
+    protected static class EntryFields
+    {
+        /** The streamed fields of the class. */
+        public final Field[] streamed;
+
+        /** The streamed fields of the class, mapped by name. */
+        public final Map<String, Field> byName = Maps.newHashMap();
+
+        /** The no-argument constructor of the class. */
+        public final Constructor<?> ctor;
+
+        public EntryFields (Class<?> eclass)
+            throws NoSuchMethodException
+        {
+            // entries that do their own streaming may stream anything, however they like
+            if (hasMethod(eclass, "writeObject", ObjectOutputStream.class) ||
+                hasMethod(eclass, "readObject", ObjectInputStream.class)) {
+                throw new IllegalArgumentException("Class customizes its streaming");
+            }
+
+            List<Field> fields = Lists.newArrayList();
+            for (Field field : ClassUtil.getFields(eclass)) {
+                if (field.getAnnotation(NotStreamable.class) != null) {
+                    continue;
+                }
+                String fname = field.getName();
+                Class<?> dclass = field.getDeclaringClass();
+                if (hasMethod(dclass, FieldMarshaller.getReaderMethodName(fname),
+                              ObjectInputStream.class) ||
+                    hasMethod(dclass, FieldMarshaller.getWriterMethodName(fname),
+                              ObjectOutputStream.class)) {
+                    throw new IllegalArgumentException(
+                        "Field customizes its streaming [field=" + fname + "]");
+                }
+                field.setAccessible(true);
+                if (byName.put(field.getName(), field) != null) {
+                    throw new IllegalArgumentException(
+                        "Field name is not unique [field=" + field.getName() + "]");
+                }
+                fields.add(field);
+            }
+            streamed = fields.toArray(new Field[fields.size()]);
+
+            ctor = eclass.getDeclaredConstructor();
+            ctor.setAccessible(true);
+        }
+
+        /**
+         * Returns true if the supplied class has a public method with the specified signature,
+         * which is how the streaming code looks up custom streaming methods.
+         */
+        protected static boolean hasMethod (Class<?> clazz, String name, Class<?> argType)
+        {
+            try {
+                clazz.getMethod(name, argType);
+                return true;
+            } catch (NoSuchMethodException nsme) {
+                return false;
+            }
+        }
+    }
+
+    /** The key of the updated entry. */
+    protected transient Comparable<?> _key;
+
+    /** The class of the updated entry. */
+    protected transient Class<?> _eclass;
+
+    /** The fields that changed. */
+    protected transient Field[] _fields;
+
+    /** The new values of said fields. */
+    protected transient Object[] _values;
+
+    /** Metadata for the entry classes we've seen, or null for those that cannot be patched. */
+    protected static Map<Class<?>, EntryFields> _efields = Maps.newHashMap();
+}
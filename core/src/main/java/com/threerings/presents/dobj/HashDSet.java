@@ -0,0 +1,223 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import java.io.IOException;
+
+import com.google.common.collect.Maps;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+import com.threerings.io.Streamable;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * A {@link DSet} that indexes its entries by key in a hash map, rather than keeping them in a
+ * sorted array, so that additions, removals and updates take constant time regardless of the size
+ * of the set. The sorted array is rebuilt lazily when the set is next iterated over (or streamed)
+ * after entries have been added or removed, so iteration order is the same as for a normal set.
+ * This is intended for large sets that are modified far more often than they are iterated over,
+ * and is selected simply by initializing a set field with an instance of this class. It streams
+ * as a normal set, so it is read back as a normal {@link DSet} by the other side (which need not
+ * know about this class at all); set fields must thus be declared as {@link DSet}.
+ *
+ * <p> The keys of entries in a hash set must implement {@link Object#hashCode} and {@link
+ * Object#equals} consistently with their {@link Comparable} implementation.
+ *
+ * @param <E> the type of entry stored in this set.
+ */
+public class HashDSet<E extends DSet.Entry> extends DSet<E>
+    implements Streamable.AsSuperclass
+{
+    /**
+     * Creates a new HashDSet of the appropriate generic type.
+     */
+    public static <E extends DSet.Entry> HashDSet<E> newHashDSet ()
+    {
+        return new HashDSet<E>();
+    }
+
+    /**
+     * Creates a hash set and populates it with values from the supplied iterator. See {@link
+     * DSet#DSet(Iterable)}.
+     */
+    public HashDSet (Iterable<? extends E> source)
+    {
+        for (E e : source) {
+            add(e);
+        }
+    }
+
+    /**
+     * Constructs an empty hash set.
+     */
+    public HashDSet ()
+    {
+    }
+
+    @Override
+    public E get (Comparable<?> key)
+    {
+        return _map.get(key);
+    }
+
+    @Override
+    public Iterator<E> iterator ()
+    {
+        sortEntries();
+        return super.iterator();
+    }
+
+    @Override @Deprecated
+    public E[] toArray (E[] array)
+    {
+        sortEntries();
+        return super.toArray(array);
+    }
+
+    @Override
+    public HashDSet<E> clone ()
+    {
+        HashDSet<E> nset = (HashDSet<E>)super.clone();
+        nset._map = Maps.newHashMap(_map);
+        return nset;
+    }
+
+    @Override
+    public String toString ()
+    {
+        sortEntries();
+        return super.toString();
+    }
+
+    @Override
+    public void writeObject (ObjectOutputStream out)
+        throws IOException
+    {
+        sortEntries();
+        super.writeObject(out);
+    }
+
+    @Override
+    public void readObject (ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        super.readObject(in);
+        _map.clear();
+        for (int ii = 0; ii < _size; ii++) {
+            _map.put(_entries[ii].getKey(), _entries[ii]);
+        }
+        _sorted = true;
+    }
+
+    @Override
+    protected boolean add (E elem)
+    {
+        Comparable<?> key = elem.getKey();
+        if (_map.containsKey(key)) {
+            log.warning("Refusing to add duplicate entry", "entry", elem, "set", this,
+                        new Exception());
+            return false;
+        }
+        _map.put(key, elem);
+        _size++;
+        _modCount++;
+        _sorted = false;
+        updateIndexes(null, elem);
+        return true;
+    }
+
+    @Override
+    protected E removeKey (Comparable<?> key)
+    {
+        // don't fail, but generate a warning if we're passed a null key
+        if (key == null) {
+            log.warning("Requested to remove null key.", new Exception());
+            return null;
+        }
+
+        E oldEntry = _map.remove(key);
+        if (oldEntry != null) {
+            _size--;
+            _modCount++;
+            _sorted = false;
+            updateIndexes(oldEntry, null);
+        }
+        return oldEntry;
+    }
+
+    @Override
+    protected E update (E elem)
+    {
+        Comparable<?> key = elem.getKey();
+        if (!_map.containsKey(key)) {
+            return null;
+        }
+        E oldEntry = _map.put(key, elem);
+        if (_sorted) {
+            // the entry's position is unchanged, so we can keep our sorted entries up to date
+            int eidx = Arrays.binarySearch(_entries, 0, _size, elem, ENTRY_COMP);
+            _entries[eidx] = elem;
+        }
+        _modCount++;
+        updateIndexes(oldEntry, elem);
+        return oldEntry;
+    }
+
+    /**
+     * Rebuilds our sorted entries array from our map if they are out of date.
+     */
+    protected void sortEntries ()
+    {
+        if (_sorted) {
+            return;
+        }
+        // keep our capacity a power of 2, as does the normal set
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < _size) {
+            capacity <<= 1;
+        }
+        if (_entries.length != capacity) {
+            @SuppressWarnings("unchecked") E[] entries = (E[])new Entry[capacity];
+            _entries = entries;
+        }
+        int idx = 0;
+        for (E entry : _map.values()) {
+            _entries[idx++] = entry;
+        }
+        Arrays.fill(_entries, _size, _entries.length, null);
+        Arrays.sort(_entries, 0, _size, ENTRY_COMP);
+        _sorted = true;
+    }
+
+    /** Our entries, mapped by key. */
+    protected transient HashMap<Comparable<?>, E> _map = Maps.newHashMap();
+
+    /** Whether our sorted entries array is up to date. */
+    protected transient boolean _sorted = true;
+}
@@ -21,6 +21,7 @@
 
 package com.threerings.presents.dobj;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -37,6 +38,11 @@ import com.threerings.io.Streamable;
  * of the dobj system, namely:
  * <li> When an object is destroyed, its oid is automagically removed from any OidLists.
  * </ul>
+ *
+ * <p> Once a list grows beyond a handful of oids, it maintains a (non-streamed) hash index of its
+ * contents so that {@link #add} and {@link #contains} need not scan the list. The oids themselves
+ * are kept in a dense array in the order in which they were added, which is also the order in
+ * which they are streamed.
  */
 public class OidList
     implements Streamable, Iterable<Integer>
@@ -78,10 +84,8 @@ public class OidList
     public boolean add (int oid)
     {
         // check for existence
-        for (int ii = 0; ii < _size; ii++) {
-            if (_oids[ii] == oid) {
-                return false;
-            }
+        if (contains(oid)) {
+            return false;
         }
 
         // make room if necessary
@@ -91,6 +95,11 @@ public class OidList
 
         // add the oid
         _oids[_size++] = oid;
+        if (_index != null) {
+            indexAdd(oid);
+        } else if (_size >= INDEX_THRESHOLD) {
+            buildIndex();
+        }
         return true;
     }
 
@@ -102,11 +111,19 @@ public class OidList
      */
     public boolean remove (int oid)
     {
+        // if we're indexed, we needn't scan for oids that aren't here
+        if (_size >= INDEX_THRESHOLD && !contains(oid)) {
+            return false;
+        }
+
         // scan for the oid in question
         for (int ii = 0; ii < _size; ii++) {
             if (_oids[ii] == oid) {
                 // shift the rest of the list back one
                 System.arraycopy(_oids, ii+1, _oids, ii, --_size-ii);
+                if (_index != null) {
+                    indexRemove(oid);
+                }
                 return true;
             }
         }
@@ -119,6 +136,14 @@ public class OidList
      */
     public boolean contains (int oid)
     {
+        if (_index == null && _size >= INDEX_THRESHOLD) {
+            // we were unstreamed with enough oids to warrant an index
+            buildIndex();
+        }
+        if (_index != null && oid != EMPTY) {
+            return _index[indexSlot(oid)] == oid;
+        }
+
         for (int ii = 0; ii < _size; ii++) {
             if (_oids[ii] == oid) {
                 return true;
@@ -164,6 +189,87 @@ public class OidList
         _oids = oids;
     }
 
+    /**
+     * (Re)builds our index such that it is at most one quarter full.
+     */
+    private void buildIndex ()
+    {
+        int capacity = INDEX_THRESHOLD;
+        while (capacity < _size * 4) {
+            capacity <<= 1;
+        }
+        _index = new int[capacity];
+        Arrays.fill(_index, EMPTY);
+        for (int ii = 0; ii < _size; ii++) {
+            if (_oids[ii] != EMPTY) {
+                _index[indexSlot(_oids[ii])] = _oids[ii];
+            }
+        }
+    }
+
+    /**
+     * Adds the specified oid (which must not already be present) to our index.
+     */
+    private void indexAdd (int oid)
+    {
+        if (oid == EMPTY) {
+            return; // never indexed, always scanned for
+        }
+        if (_size * 2 > _index.length) {
+            buildIndex(); // this will pick up the new oid
+        } else {
+            _index[indexSlot(oid)] = oid;
+        }
+    }
+
+    /**
+     * Removes the specified oid (which must be present) from our index.
+     */
+    private void indexRemove (int oid)
+    {
+        if (oid == EMPTY) {
+            return;
+        }
+
+        // clear the oid's slot and then shift back any subsequent oids in its probe sequence
+        // that would no longer be reachable
+        int mask = _index.length - 1;
+        int hole = indexSlot(oid);
+        for (int ii = (hole + 1) & mask; _index[ii] != EMPTY; ii = (ii + 1) & mask) {
+            int home = hash(_index[ii]) & mask;
+            boolean movable = (hole <= ii) ? (home <= hole || home > ii) :
+                (home <= hole && home > ii);
+            if (movable) {
+                _index[hole] = _index[ii];
+                hole = ii;
+            }
+        }
+        _index[hole] = EMPTY;
+    }
+
+    /**
+     * Returns the index slot that contains the specified oid or the empty slot at which it would
+     * be inserted.
+     */
+    private int indexSlot (int oid)
+    {
+        int mask = _index.length - 1;
+        int slot = hash(oid) & mask;
+        while (_index[slot] != oid && _index[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Spreads the bits of sequentially assigned oids across our index.
+     */
+    private static int hash (int oid)
+    {
+        int hash = oid * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
     protected class OidIterator
         implements Iterator<Integer>
     {
@@ -191,5 +297,14 @@ public class OidList
     private int[] _oids;
     private int _size;
 
+    /** An open-addressed hash set of our oids, or null if we're too small to warrant one. */
+    private transient int[] _index;
+
     protected static final int DEFAULT_SIZE = 4;
+
+    /** The size at which we start maintaining an index (also the smallest index size). */
+    protected static final int INDEX_THRESHOLD = 16;
+
+    /** Marks empty index slots. Not a valid oid, but we cope if someone adds it anyway. */
+    protected static final int EMPTY = Integer.MIN_VALUE;
 }
@@ -32,6 +32,11 @@ import com.threerings.io.ObjectInputStream;
  */
 public class AuthRequest extends UpstreamMessage
 {
+    /** A client capability indicating that the client can read compressed frames. Clients write
+     * their capabilities as an integer following the auth request in the same frame (servers that
+     * don't know about capabilities ignore the extra bytes). */
+    public static final int COMPRESSED_FRAMES = 1 << 0;
+
     /**
      * Zero argument constructor used when unserializing an instance.
      */
@@ -21,6 +21,8 @@
 
 package com.threerings.presents.peer.client;
 
+import com.threerings.io.Streamable;
+
 import com.threerings.presents.client.InvocationService;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.peer.data.NodeObject.Lock;
@@ -37,15 +39,23 @@ public interface PeerService extends InvocationService<ClientObject>
     void ratifyLockAction (Lock lock, boolean acquire);
 
     /**
-     * Requests that the specified action be invoked on this server.
+     * Requests that the specified action be invoked on this server. The action (a
+     * <code>PeerManager.NodeAction</code>) is streamed directly on the peer connection.
+     */
+    void invokeAction (Streamable action);
+
+    /**
+     * Requests that the specified actions be invoked on this server, in order. This is used to
+     * deliver a batch of actions in a single message.
      */
-    void invokeAction (byte[] serializedAction);
+    void invokeActions (Streamable[] actions);
 
     /**
      * Requests that the specified request be invoked on this server and wants a confirmation
-     *  when it's complete.
+     * when it's complete. The request (a <code>PeerManager.NodeRequest</code>) is streamed
+     * directly on the peer connection.
      */
-    void invokeRequest (byte[] serializedAction, ResultListener listener);
+    void invokeRequest (Streamable request, ResultListener listener);
 
     /**
      * Generates a server status report for this peer and returns it to the supplied listener. The
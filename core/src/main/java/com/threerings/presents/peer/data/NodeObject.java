@@ -30,6 +30,7 @@ import com.threerings.io.Streamable;
 
 import com.threerings.presents.dobj.DObject;
 import com.threerings.presents.dobj.DSet;
+import com.threerings.presents.dobj.HashDSet;
 
 /**
  * Contains information that one node published for all of its peers.
@@ -142,7 +143,7 @@ public class NodeObject extends DObject
     public PeerMarshaller peerService;
 
     /** Contains information on all clients connected to this node. */
-    public DSet<ClientInfo> clients = new DSet<ClientInfo>();
+    public DSet<ClientInfo> clients = HashDSet.newHashDSet();
 
     /** The set of locks held by this node. */
     public DSet<Lock> locks = new DSet<Lock>();
@@ -23,6 +23,8 @@ package com.threerings.presents.peer.data;
 
 import javax.annotation.Generated;
 
+import com.threerings.io.Streamable;
+
 import com.threerings.presents.client.InvocationService;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.data.InvocationMarshaller;
@@ -57,18 +59,29 @@ public class PeerMarshaller extends InvocationMarshaller<ClientObject>
     public static final int INVOKE_ACTION = 2;
 
     // from interface PeerService
-    public void invokeAction (byte[] arg1)
+    public void invokeAction (Streamable arg1)
     {
         sendRequest(INVOKE_ACTION, new Object[] {
             arg1
         });
     }
 
+    /** The method id used to dispatch {@link #invokeActions} requests. */
+    public static final int INVOKE_ACTIONS = 3;
+
+    // from interface PeerService
+    public void invokeActions (Streamable[] arg1)
+    {
+        sendRequest(INVOKE_ACTIONS, new Object[] {
+            arg1
+        });
+    }
+
     /** The method id used to dispatch {@link #invokeRequest} requests. */
-    public static final int INVOKE_REQUEST = 3;
+    public static final int INVOKE_REQUEST = 4;
 
     // from interface PeerService
-    public void invokeRequest (byte[] arg1, InvocationService.ResultListener arg2)
+    public void invokeRequest (Streamable arg1, InvocationService.ResultListener arg2)
     {
         InvocationMarshaller.ResultMarshaller listener2 = new InvocationMarshaller.ResultMarshaller();
         listener2.listener = arg2;
@@ -78,7 +91,7 @@ public class PeerMarshaller extends InvocationMarshaller<ClientObject>
     }
 
     /** The method id used to dispatch {@link #ratifyLockAction} requests. */
-    public static final int RATIFY_LOCK_ACTION = 4;
+    public static final int RATIFY_LOCK_ACTION = 5;
 
     // from interface PeerService
     public void ratifyLockAction (NodeObject.Lock arg1, boolean arg2)
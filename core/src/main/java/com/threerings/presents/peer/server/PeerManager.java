@@ -21,8 +21,11 @@
 
 package com.threerings.presents.peer.server;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
@@ -38,6 +41,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.name.Named;
 
 import com.samskivert.util.ArrayIntSet;
 import com.samskivert.util.ChainedResultListener;
@@ -52,7 +56,7 @@ import com.samskivert.util.Tuple;
 import com.samskivert.jdbc.RepositoryUnit;
 import com.samskivert.jdbc.WriteOnlyUnit;
 
-import com.threerings.io.ObjectInputStream;
+import com.threerings.io.FlattenedObject;
 import com.threerings.io.ObjectOutputStream;
 import com.threerings.io.Streamable;
 
@@ -60,11 +64,19 @@ import com.threerings.util.Name;
 
 import com.threerings.presents.annotation.PeerInvoker;
 import com.threerings.presents.client.Client;
+import com.threerings.presents.client.ClientDObjectMgr;
 import com.threerings.presents.client.InvocationService;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.data.InvocationCodes;
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.dobj.DEvent;
 import com.threerings.presents.dobj.DObject;
+import com.threerings.presents.dobj.EntryAddedEvent;
+import com.threerings.presents.dobj.EntryRemovedEvent;
+import com.threerings.presents.dobj.EntryUpdatedEvent;
+import com.threerings.presents.dobj.NamedSetAdapter;
 import com.threerings.presents.dobj.ObjectAccessException;
+import com.threerings.presents.dobj.ObjectDestroyedEvent;
 import com.threerings.presents.dobj.Subscriber;
 import com.threerings.presents.net.DownstreamMessage;
 import com.threerings.presents.net.Message;
@@ -85,6 +97,7 @@ import com.threerings.presents.server.PresentsSession;
 import com.threerings.presents.server.ReportManager;
 import com.threerings.presents.server.ServiceAuthenticator;
 import com.threerings.presents.server.SessionFactory;
+import com.threerings.presents.server.metrics.MetricsRegistry;
 import com.threerings.presents.server.net.PresentsConnectionManager;
 
 import static com.threerings.presents.Log.log;
@@ -149,7 +162,9 @@ public abstract class PeerManager
     }
 
     /**
-     * Encapsulates code that is meant to be executed one or more servers.
+     * Encapsulates code that is meant to be executed one or more servers. Actions sent to other
+     * servers are streamed when the peer connection gets around to writing them, so an action
+     * must not be modified after it is passed to {@link #invokeNodeAction}.
      */
     public static abstract class NodeAction implements Streamable.Closure, NodeApplicant
     {
@@ -167,7 +182,8 @@ public abstract class PeerManager
     }
 
     /**
-     * Encapsulates code that is meant to be executed one or more servers and return a result.
+     * Encapsulates code that is meant to be executed one or more servers and return a result. As
+     * with {@link NodeAction}, a request must not be modified after it is sent.
      */
     public static abstract class NodeRequest implements Streamable.Closure, NodeApplicant
     {
@@ -204,17 +220,34 @@ public abstract class PeerManager
         /** The number of node actions we've invoked. */
         public long nodeActionsInvoked;
 
+        /** The number of messages used to deliver batches of node actions to our peers. */
+        public long nodeActionBatches;
+
+        /** The number of node actions delivered to our peers in said batches. */
+        public long nodeActionsBatched;
+
         /** The total number of messages received from all of our peers. This is updated on the
          * conmgr thread which is why it's atomic. */
         public AtomicLong peerMessagesIn = new AtomicLong(0);
 
-        /** The total number of messages sent to all of our peers. */
+        /** The total number of messages (or batches of messages) sent to all of our peers. */
         public long peerMessagesOut;
 
+        /** The number of batches of messages sent to our peers. */
+        public long peerMessageBatches;
+
+        /** The number of messages sent to our peers in said batches. */
+        public long peerMessagesBatched;
+
         public void noteNodeActionInvoked (NodeAction action) {
             nodeActionsInvoked++;
         }
 
+        public void noteNodeActionBatch (int actions) {
+            nodeActionBatches++;
+            nodeActionsBatched += actions;
+        }
+
         public void notePeerMessageReceived (Message msg) {
             peerMessagesIn.incrementAndGet();
         }
@@ -223,6 +256,11 @@ public abstract class PeerManager
             peerMessagesOut++;
         }
 
+        public void notePeerMessageBatch (int messages) {
+            peerMessageBatches++;
+            peerMessagesBatched += messages;
+        }
+
         @Override public Stats clone () {
             try {
                 Stats cstats = (Stats)super.clone();
@@ -369,6 +407,19 @@ public abstract class PeerManager
         _nodeobj.setNodeName(nodeName);
         _nodeobj.setBootStamp(System.currentTimeMillis());
 
+        // keep our client directory current with the clients logged onto this node
+        _nodeobj.addListener(new NamedSetAdapter<ClientInfo>(NodeObject.CLIENTS) {
+            @Override public void namedEntryAdded (EntryAddedEvent<ClientInfo> event) {
+                indexClient(_nodeName, event.getEntry());
+            }
+            @Override public void namedEntryUpdated (EntryUpdatedEvent<ClientInfo> event) {
+                indexClient(_nodeName, event.getEntry());
+            }
+            @Override public void namedEntryRemoved (EntryRemovedEvent<ClientInfo> event) {
+                unindexClient(_nodeName, event.getOldEntry());
+            }
+        });
+
         // register ourselves with the node table
         _self = new NodeRecord(
             _nodeName, hostName, (publicHostName == null) ? hostName : publicHostName,
@@ -397,6 +448,30 @@ public abstract class PeerManager
             }).schedule(5000L, 60*1000L);
         }
 
+        // publish our stats to the metrics registry
+        _repmgr.getMetrics().registerSource("presents.peer", new MetricsRegistry.Source() {
+            public void sample (Map<String, Long> values) {
+                Stats stats = getStats();
+                values.put("peers", (long)_peers.size());
+                values.put("locksAcquired", stats.locksAcquired);
+                values.put("lockAcquireWait", stats.lockAcquireWait);
+                values.put("locksReleased", stats.locksReleased);
+                values.put("locksHijacked", stats.locksHijacked);
+                values.put("lockTimeouts", stats.lockTimeouts);
+                values.put("nodeActionsInvoked", stats.nodeActionsInvoked);
+                values.put("nodeActionBatches", stats.nodeActionBatches);
+                values.put("nodeActionsBatched", stats.nodeActionsBatched);
+                values.put("messagesIn", stats.peerMessagesIn.get());
+                values.put("messagesOut", stats.peerMessagesOut);
+                values.put("messageBatches", stats.peerMessageBatches);
+                values.put("messagesBatched", stats.peerMessagesBatched);
+            }
+        });
+
+        if (_shardedLocks) {
+            useShardedLocks();
+        }
+
         // give derived classes an easy way to get in on the init action
         didInit();
     }
@@ -411,15 +486,23 @@ public abstract class PeerManager
 
     /**
      * Locates the client with the specified name. Returns null if the client is not logged onto
-     * any peer.
+     * any peer. This is a hash lookup in our cluster-wide client directory, which is kept up to
+     * date as clients come and go on each node.
      */
-    public ClientInfo locateClient (final Name key)
+    public ClientInfo locateClient (Name key)
     {
-        return lookupNodeDatum(new Function<NodeObject,ClientInfo>() {
-            public ClientInfo apply (NodeObject nodeobj) {
-                return nodeobj.clients.get(key);
-            }
-        });
+        Tuple<String, ClientInfo> entry = _clients.get(key);
+        return (entry == null) ? null : entry.right;
+    }
+
+    /**
+     * Returns the name of the node onto which the client with the specified name is logged, or
+     * null if the client is not logged onto any peer.
+     */
+    public String locateClientNode (Name key)
+    {
+        Tuple<String, ClientInfo> entry = _clients.get(key);
+        return (entry == null) ? null : entry.left;
     }
 
     /**
@@ -475,32 +558,98 @@ public abstract class PeerManager
      * or any peer node due to failing to match any of the nodes. The runnable will be executed on
      * the dobj event thread.
      */
-    public void invokeNodeAction (final NodeAction action, final Runnable onDropped)
+    public void invokeNodeAction (NodeAction action, Runnable onDropped)
+    {
+        // first serialize the action to make sure we can (before it gets anywhere near a peer
+        // connection's stream), and so that we're not affected by later changes to it
+        invokeNodeAction(action, flattenAction(action), onDropped);
+    }
+
+    /**
+     * Invokes a node action on a specific node <em>without</em> executing {@link
+     * NodeAction#isApplicable} to determine whether the action is applicable.
+     */
+    public void invokeNodeAction (String nodeName, NodeAction action)
+    {
+        FlattenedObject flat = flattenAction(action);
+        PeerNode peer = _peers.get(nodeName);
+        if (peer != null) {
+            if (peer.nodeobj != null) {
+                peer.queueAction(flat);
+
+            } else {
+                log.warning("Dropped NodeAction", "nodeName", nodeName, "action", action);
+            }
+
+        } else if (Objects.equal(nodeName, _nodeName)) {
+            invokeAction(null, unflattenAction(flat));
+        }
+    }
+
+    /**
+     * Invokes the supplied request on all servers in parallel. The request will execute on the
+     * distributed object thread, but this method does not need to be called from there.
+     *
+     * If any one node reports failure, this function reports failure. If all nodes report success,
+     * this function will report success.
+     */
+    public <T> void invokeNodeRequest (NodeRequest request, NodeRequestsListener<T> listener)
+    {
+        // serialize the request to make sure we can
+        invokeNodeRequest(request, flattenRequest(request), listener);
+    }
+
+    /**
+     * Returns all nodes for which <code>applicant.isApplicable</code> returns true.
+     */
+    public Set<String> findApplicableNodes (NodeApplicant applicant)
+    {
+        Set<String> nodes = Sets.newHashSet();
+        if (applicant.isApplicable(_nodeobj)) {
+            nodes.add(_nodeobj.nodeName);
+        }
+        for (PeerNode peer : _peers.values()) {
+            if (peer.nodeobj != null && applicant.isApplicable(peer.nodeobj)) {
+                nodes.add(peer.getNodeName());
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Invokes a node request on a specific node and returns the result through the listener.
+     */
+    public void invokeNodeRequest (String nodeName, NodeRequest request,
+        InvocationService.ResultListener listener)
+    {
+        invokeNodeRequest(nodeName, flattenRequest(request), listener);
+    }
+
+    protected void invokeNodeAction (
+        final NodeAction action, final FlattenedObject flat, final Runnable onDropped)
     {
         // if we're not on the dobjmgr thread, get there
         if (!_omgr.isDispatchThread()) {
             _omgr.postRunnable(new Runnable() {
                 public void run () {
-                    invokeNodeAction(action, onDropped);
+                    invokeNodeAction(action, flat, onDropped);
                 }
             });
             return;
         }
 
-        // first serialize the action to make sure we can
-        byte[] actionBytes = flattenAction(action);
-
-        // invoke the action on our local server if appropriate
+        // invoke a copy of the action on our local server if appropriate
         boolean invoked = false;
         if (action.isApplicable(_nodeobj)) {
-            invokeAction(null, actionBytes);
+            invokeAction(null, unflattenAction(flat));
             invoked = true;
         }
 
-        // now send it to any remote node that is also appropriate
+        // now queue up the flattened action for any remote node that is also appropriate; it is
+        // written to each peer connection as the original action, using that stream's mappings
         for (PeerNode peer : _peers.values()) {
             if (peer.nodeobj != null && action.isApplicable(peer.nodeobj)) {
-                peer.nodeobj.peerService.invokeAction(actionBytes);
+                peer.queueAction(flat);
                 invoked = true;
             }
         }
@@ -515,49 +664,19 @@ public abstract class PeerManager
         }
     }
 
-    /**
-     * Invokes a node action on a specific node <em>without</em> executing {@link
-     * NodeAction#isApplicable} to determine whether the action is applicable.
-     */
-    public void invokeNodeAction (String nodeName, NodeAction action)
-    {
-        PeerNode peer = _peers.get(nodeName);
-        if (peer != null) {
-            if (peer.nodeobj != null) {
-                peer.nodeobj.peerService.invokeAction(flattenAction(action));
-
-            } else {
-                log.warning("Dropped NodeAction", "nodeName", nodeName, "action", action);
-            }
-
-        } else if (Objects.equal(nodeName, _nodeName)) {
-            invokeAction(null, flattenAction(action));
-        }
-    }
-
-    /**
-     * Invokes the supplied request on all servers in parallel. The request will execute on the
-     * distributed object thread, but this method does not need to be called from there.
-     *
-     * If any one node reports failure, this function reports failure. If all nodes report success,
-     * this function will report success.
-     */
-    public <T> void invokeNodeRequest (
-        final NodeRequest request, final NodeRequestsListener<T> listener)
+    protected <T> void invokeNodeRequest (final NodeRequest request, final FlattenedObject flat,
+                                          final NodeRequestsListener<T> listener)
     {
         // if we're not on the dobjmgr thread, get there
         if (!_omgr.isDispatchThread()) {
             _omgr.postRunnable(new Runnable() {
                 public void run () {
-                    invokeNodeRequest(request, listener);
+                    invokeNodeRequest(request, flat, listener);
                 }
             });
             return;
         }
 
-        // serialize the action to make sure we can
-        byte[] requestBytes = flattenRequest(request);
-
         // build a set of node names (including the local node) to which to send the request
         final Set<String> nodes = findApplicableNodes(request);
         if (nodes.isEmpty()) {
@@ -569,7 +688,7 @@ public abstract class PeerManager
         final Map<String, String> failures = Maps.newHashMap();
         final AtomicInteger completedNodes = new AtomicInteger();
         for (final String node : nodes) {
-            invokeNodeRequest(node, requestBytes, new InvocationService.ResultListener() {
+            invokeNodeRequest(node, flat, new InvocationService.ResultListener() {
                 public void requestProcessed (Object result) {
                     // check off this node's successful response
                     @SuppressWarnings("unchecked")
@@ -591,30 +710,22 @@ public abstract class PeerManager
         }
     }
 
-    /**
-     * Returns all nodes for which <code>applicant.isApplicable</code> returns true.
-     */
-    public Set<String> findApplicableNodes (NodeApplicant applicant)
+    protected void invokeNodeRequest (String nodeName, FlattenedObject flat,
+        InvocationService.ResultListener listener)
     {
-        Set<String> nodes = Sets.newHashSet();
-        if (applicant.isApplicable(_nodeobj)) {
-            nodes.add(_nodeobj.nodeName);
-        }
-        for (PeerNode peer : _peers.values()) {
-            if (peer.nodeobj != null && applicant.isApplicable(peer.nodeobj)) {
-                nodes.add(peer.getNodeName());
+        PeerNode peer = _peers.get(nodeName);
+        if (peer != null) {
+            if (peer.nodeobj != null) {
+                peer.nodeobj.peerService.invokeRequest(flat, listener);
+
+            } else {
+                log.warning("Dropped NodeRequest", "nodeName", nodeName);
+                listener.requestFailed(InvocationCodes.INTERNAL_ERROR);
             }
-        }
-        return nodes;
-    }
 
-    /**
-     * Invokes a node request on a specific node and returns the result through the listener.
-     */
-    public void invokeNodeRequest (String nodeName, NodeRequest request,
-        InvocationService.ResultListener listener)
-    {
-        invokeNodeRequest(nodeName, flattenRequest(request), listener);
+        } else if (Objects.equal(nodeName, _nodeName)) {
+            invokeRequest(null, unflattenRequest(flat), listener);
+        }
     }
 
 
@@ -670,6 +781,7 @@ public abstract class PeerManager
             public void objectAvailable (T object) {
                 // make a note of this proxy mapping
                 _proxies.put(remote, new Tuple<Subscriber<?>, DObject>(this, object));
+                _lost.remove(remote);
                 // map the object into our local oid space
                 _omgr.registerProxyObject(object, peer.getDObjectManager());
                 // then tell the caller about the (now remapped) oid
@@ -697,9 +809,19 @@ public abstract class PeerManager
      */
     public void unproxyRemoteObject (DObjectAddress addr)
     {
-        Tuple<Subscriber<?>, DObject> bits = _proxies.remove(addr);
+        // if we're waiting to reconnect to the object's peer, we need only forget about it
+        Tuple<Subscriber<?>, DObject> bits = _suspended.remove(addr);
+        if (bits != null) {
+            _omgr.clearProxyObject(addr.oid, bits.right);
+            return;
+        }
+
+        bits = _proxies.remove(addr);
         if (bits == null) {
-            log.warning("Requested to clear unknown proxy", "addr", addr);
+            // there's nothing left to clear of proxies that we've lost
+            if (!_lost.remove(addr)) {
+                log.warning("Requested to clear unknown proxy", "addr", addr);
+            }
             return;
         }
 
@@ -798,6 +920,11 @@ public abstract class PeerManager
      */
     public void acquireLock (final NodeObject.Lock lock, final ResultListener<String> listener)
     {
+        if (_lockmgr != null) {
+            _lockmgr.acquireLock(lock, listener);
+            return;
+        }
+
         // wait until any pending resolution is complete
         queryLock(lock, new ChainedResultListener<String, String>(listener) {
             public void requestCompleted (String result) {
@@ -821,6 +948,11 @@ public abstract class PeerManager
      */
     public void releaseLock (final NodeObject.Lock lock, final ResultListener<String> listener)
     {
+        if (_lockmgr != null) {
+            _lockmgr.releaseLock(lock, listener);
+            return;
+        }
+
         // wait until any pending resolution is complete
         queryLock(lock, new ChainedResultListener<String, String>(listener) {
             public void requestCompleted (String result) {
@@ -848,9 +980,16 @@ public abstract class PeerManager
      * node requests to release a lock, then receives a lock-related request from another peer, it
      * can use this method to cancel the release reliably, since the lock-related request will have
      * been sent before the peer's ratification of the release.
+     *
+     * <p> Releases cannot be cancelled when using sharded locks.
      */
     public void reacquireLock (NodeObject.Lock lock)
     {
+        if (_lockmgr != null) {
+            log.warning("Cannot reacquire sharded lock", "lock", lock);
+            return;
+        }
+
         // make sure we're releasing it
         LockHandler handler = _locks.get(lock);
         if (handler == null || !Objects.equal(handler.getNodeName(), _nodeName) ||
@@ -875,6 +1014,11 @@ public abstract class PeerManager
      */
     public void queryLock (NodeObject.Lock lock, ResultListener<String> listener)
     {
+        if (_lockmgr != null) {
+            _lockmgr.queryLock(lock, listener);
+            return;
+        }
+
         // if it's being resolved, add the listener to the list
         LockHandler handler = _locks.get(lock);
         if (handler != null) {
@@ -888,10 +1032,14 @@ public abstract class PeerManager
 
     /**
      * Finds the owner of the specified lock (if any) among this node and its peers.  This answer
-     * is not definitive, as the lock may be in the process of resolving.
+     * is not definitive, as the lock may be in the process of resolving. When using sharded
+     * locks, only locks held by this node or owned by it are known without asking.
      */
     public String queryLock (NodeObject.Lock lock)
     {
+        if (_lockmgr != null) {
+            return _lockmgr.queryLock(lock);
+        }
         for (NodeObject nodeobj : getNodeObjects()) {
             if (nodeobj.locks.contains(lock)) {
                 return nodeobj.nodeName;
@@ -931,6 +1079,21 @@ public abstract class PeerManager
         });
     }
 
+    /**
+     * Switches this node to the sharded lock protocol, in which each lock is tracked by a single
+     * node chosen by consistent hashing rather than by all nodes, so that acquiring a lock costs
+     * one request regardless of the size of the cluster. See {@link ShardedLockManager}. Every
+     * node in the cluster must do this (or set <code>presents.peer.shardedLocks</code>) before
+     * acquiring any locks.
+     */
+    public void useShardedLocks ()
+    {
+        if (_lockmgr == null) {
+            _lockmgr = _injector.getInstance(ShardedLockManager.class);
+            _lockmgr.peersChanged();
+        }
+    }
+
     /**
      * Adds an observer to notify when this peer has been forced to drop a lock immediately.
      */
@@ -1012,6 +1175,39 @@ public abstract class PeerManager
         return _stats.clone();
     }
 
+    /**
+     * Configures the batching of node actions sent to our peers. Actions bound for a peer are
+     * queued up and delivered together in a single message, in the order in which they were
+     * invoked, so that a burst of small actions costs one message per peer rather than one per
+     * action. Requests sent to a peer are always preceded by any actions queued for it.
+     *
+     * @param window the number of milliseconds for which the first action in a batch may be held
+     * waiting for others to join it; zero batches only those actions invoked before the dobjmgr
+     * gets around to sending the first.
+     * @param maxActions the maximum number of actions to deliver in a single message; one
+     * disables batching.
+     */
+    public void setActionBatching (long window, int maxActions)
+    {
+        _actionBatchWindow = Math.max(window, 0L);
+        _actionBatchSize = Math.max(maxActions, 1);
+    }
+
+    /**
+     * Configures the batching of messages sent from this node to the peers connected to it. The
+     * events for proxied objects, and any other messages, sent to a peer during one pass through
+     * the dobjmgr queue are delivered in a single frame rather than one frame each. See
+     * {@link PeerSession#setMessageBatching}. This applies to peer sessions started after it is
+     * called.
+     *
+     * @param maxMessages the maximum number of messages to deliver in a single frame; one
+     * disables batching.
+     */
+    public void setMessageBatching (int maxMessages)
+    {
+        _messageBatchSize = Math.max(maxMessages, 1);
+    }
+
     // from interface Lifecycle.ShutdownComponent
     public void shutdown ()
     {
@@ -1056,38 +1252,36 @@ public abstract class PeerManager
     }
 
     // from interface PeerProvider
-    public void invokeAction (ClientObject caller, byte[] serializedAction)
+    public void invokeAction (ClientObject caller, Streamable action)
     {
-        NodeAction action = null;
         try {
-            ObjectInputStream oin =
-                new ObjectInputStream(new ByteArrayInputStream(serializedAction));
-            action = (NodeAction)oin.readObject();
             _injector.injectMembers(action);
-            action.invoke();
+            ((NodeAction)action).invoke();
         } catch (Exception e) {
             log.warning("Failed to execute node action",
-                        "from", (caller == null) ? "self" : caller.who(),
-                        "action", action, "serializedSize", serializedAction.length, e);
+                        "from", (caller == null) ? "self" : caller.who(), "action", action, e);
         }
     }
 
     // from interface PeerProvider
-    public void invokeRequest (ClientObject caller, byte[] serializedAction,
+    public void invokeActions (ClientObject caller, Streamable[] actions)
+    {
+        for (Streamable action : actions) {
+            invokeAction(caller, action);
+        }
+    }
+
+    // from interface PeerProvider
+    public void invokeRequest (ClientObject caller, Streamable request,
         InvocationService.ResultListener listener)
     {
-        NodeRequest request = null;
         try {
-            ObjectInputStream oin =
-                new ObjectInputStream(new ByteArrayInputStream(serializedAction));
-            request = (NodeRequest)oin.readObject();
             _injector.injectMembers(request);
-            request.invoke(listener);
+            ((NodeRequest)request).invoke(listener);
 
         } catch (Exception e) {
             log.warning("Failed to execute node request",
-                        "from", (caller == null) ? "self" : caller.who(),
-                        "request", request, "serializedSize", serializedAction.length, e);
+                        "from", (caller == null) ? "self" : caller.who(), "request", request, e);
             listener.requestFailed("Failed to execute node request");
         }
     }
@@ -1301,7 +1495,9 @@ public abstract class PeerManager
      */
     protected void droppedLock (final NodeObject.Lock lock)
     {
-        _nodeobj.removeFromLocks(lock);
+        if (_nodeobj.locks.contains(lock)) {
+            _nodeobj.removeFromLocks(lock);
+        }
         _stats.locksHijacked++;
         _dropobs.apply(new ObserverList.ObserverOp<DroppedLockObserver>() {
             public boolean apply (DroppedLockObserver observer) {
@@ -1351,6 +1547,38 @@ public abstract class PeerManager
         return _self.region;
     }
 
+    /**
+     * Notes in our client directory that the supplied client is logged onto the specified node.
+     */
+    protected void indexClient (String nodeName, ClientInfo clinfo)
+    {
+        _clients.put(clinfo.getKey(), Tuple.newTuple(nodeName, clinfo));
+    }
+
+    /**
+     * Clears the supplied client from our client directory, if it is listed there as logged onto
+     * the specified node.
+     */
+    protected void unindexClient (String nodeName, ClientInfo clinfo)
+    {
+        Comparable<?> key = clinfo.getKey();
+        Tuple<String, ClientInfo> entry = _clients.get(key);
+        if (entry == null || !entry.left.equals(nodeName)) {
+            return;
+        }
+        _clients.remove(key);
+
+        // a client that is moving between nodes may briefly be logged onto both; if it is still
+        // logged onto some other node, list it there instead
+        for (NodeObject nodeobj : getNodeObjects()) {
+            ClientInfo other = nodeobj.nodeName.equals(nodeName) ? null : nodeobj.clients.get(key);
+            if (other != null) {
+                indexClient(nodeobj.nodeName, other);
+                break;
+            }
+        }
+    }
+
     /**
      * Called when we hear about a client logging on to another node.
      */
@@ -1382,6 +1610,7 @@ public abstract class PeerManager
         refreshPeers();
         // pass our stats record in so that it can count up messages in/out
         session.setStats(_stats);
+        session.setMessageBatching(_messageBatchSize);
     }
 
     /**
@@ -1408,6 +1637,155 @@ public abstract class PeerManager
         // nothing by default
     }
 
+    /**
+     * Called by our peer nodes after they connect or disconnect, whether or not derived classes
+     * pass along {@link #connectedToPeer} and {@link #disconnectedFromPeer}.
+     */
+    protected void peersChanged ()
+    {
+        if (_lockmgr != null) {
+            _lockmgr.peersChanged();
+        }
+    }
+
+    /**
+     * Called when we lose our connection to a peer. The proxies of that peer's objects are set
+     * aside until we reconnect, whereupon {@link #resumeProxies} resubscribes to them.
+     */
+    protected void suspendProxies (PeerNode peer)
+    {
+        String nodeName = peer.getNodeName();
+        for (Iterator<Map.Entry<DObjectAddress, Tuple<Subscriber<?>, DObject>>> iter =
+                 _proxies.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<DObjectAddress, Tuple<Subscriber<?>, DObject>> entry = iter.next();
+            if (nodeName.equals(entry.getKey().nodeName)) {
+                _suspended.put(entry.getKey(), entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Called when we reconnect to a peer. Each of the proxies we set aside when we lost our
+     * connection is resubscribed individually and brought up to date, unless the peer has
+     * restarted in the meantime (and thus reassigned its oids), in which case they are destroyed.
+     */
+    protected void resumeProxies (PeerNode peer, boolean restarted)
+    {
+        String nodeName = peer.getNodeName();
+        for (Iterator<Map.Entry<DObjectAddress, Tuple<Subscriber<?>, DObject>>> iter =
+                 _suspended.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<DObjectAddress, Tuple<Subscriber<?>, DObject>> entry = iter.next();
+            if (!nodeName.equals(entry.getKey().nodeName)) {
+                continue;
+            }
+            iter.remove();
+            if (restarted || _proxies.containsKey(entry.getKey())) {
+                proxyLost(entry.getKey(), entry.getValue().right);
+            } else {
+                resubscribeProxy(peer.getClient(), entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Resubscribes to a proxied object after reconnecting to its peer. The local proxy object
+     * keeps its oid and subscribers, takes over the new subscription and is updated with any
+     * changes that were made to the object while we were disconnected.
+     */
+    protected void resubscribeProxy (final Client peer, final DObjectAddress addr,
+                                     final Tuple<Subscriber<?>, DObject> bits)
+    {
+        _proxies.put(addr, bits);
+        peer.getDObjectManager().subscribeToObject(addr.oid, new Subscriber<DObject>() {
+            public void objectAvailable (DObject object) {
+                if (_proxies.get(addr) != bits) {
+                    // we were unproxied while resubscribing
+                    peer.getDObjectManager().unsubscribeFromObject(addr.oid, this);
+                    return;
+                }
+                DObject proxy = bits.right;
+                ((ClientDObjectMgr)peer.getDObjectManager()).replaceObject(addr.oid, proxy);
+                _omgr.updateProxyObject(proxy, peer.getDObjectManager());
+                refreshProxy(proxy, object);
+            }
+            public void requestFailed (int oid, ObjectAccessException cause) {
+                if (_proxies.get(addr) == bits) {
+                    _proxies.remove(addr);
+                    proxyLost(addr, bits.right);
+                }
+            }
+        });
+    }
+
+    /**
+     * Dispatches attribute changes on a resubscribed proxy for any of its fields that differ from
+     * the supplied up to date copy, as if we had received the events that we missed.
+     */
+    protected void refreshProxy (DObject proxy, DObject current)
+    {
+        for (Field field : proxy.getClass().getFields()) {
+            int mods = field.getModifiers();
+            if (Modifier.isStatic(mods) || Modifier.isTransient(mods)) {
+                continue;
+            }
+            String name = field.getName();
+            Object value = current.getAttribute(name);
+            if (!sameContents(proxy.getAttribute(name), value)) {
+                dispatchProxyEvent(proxy, new AttributeChangedEvent(proxy.getOid(), name, value));
+            }
+        }
+    }
+
+    /**
+     * Returns true if the supplied attribute values are equal or, as sets, lists and arrays don't
+     * compare their contents, would be streamed identically.
+     */
+    protected boolean sameContents (Object a, Object b)
+    {
+        if (Objects.equal(a, b)) {
+            return true;
+        }
+        if (a == null || b == null || a.getClass() != b.getClass()) {
+            return false;
+        }
+        try {
+            return Arrays.equals(flatten(a), flatten(b));
+        } catch (Exception e) {
+            return false; // assume it changed
+        }
+    }
+
+    /**
+     * Destroys a proxy whose remote object could not be resubscribed.
+     */
+    protected void proxyLost (DObjectAddress addr, DObject proxy)
+    {
+        log.info("Lost proxied object while disconnected from peer", "addr", addr,
+                 "proxy", proxy.which());
+        // the proxy's subscribers will likely unproxy it when they hear it was destroyed
+        _lost.add(addr);
+        _omgr.clearProxyObject(addr.oid, proxy);
+        dispatchProxyEvent(proxy, new ObjectDestroyedEvent(proxy.getOid()));
+    }
+
+    /**
+     * Applies an event to a proxy object and notifies its listeners and subscribers, just as the
+     * events that arrive from its peer are dispatched.
+     */
+    protected void dispatchProxyEvent (DObject proxy, DEvent event)
+    {
+        event.eventId = _omgr.getNextEventId(true);
+        proxy.notifyProxies(event);
+        try {
+            if (event.applyToObject(proxy)) {
+                proxy.notifyListeners(event);
+            }
+        } catch (ObjectAccessException oae) {
+            log.warning("Failed to apply proxy event", "event", event, "proxy", proxy.which(), oae);
+        }
+    }
+
     /**
      * Called when a peer announces its intention to acquire a lock.
      */
@@ -1507,15 +1885,12 @@ public abstract class PeerManager
     }
 
     /**
-     * Flattens the supplied node action into bytes.
+     * Flattens the supplied node action so that it can be written to any number of peers.
      */
-    protected byte[] flattenAction (NodeAction action)
+    protected FlattenedObject flattenAction (NodeAction action)
     {
         try {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            ObjectOutputStream oout = new ObjectOutputStream(bout);
-            oout.writeObject(action);
-            return bout.toByteArray();
+            return FlattenedObject.flatten(action);
         } catch (Exception e) {
             throw new IllegalArgumentException(
                 "Failed to serialize node action [action=" + action + "].", e);
@@ -1523,36 +1898,51 @@ public abstract class PeerManager
     }
 
     /**
-     * Flattens the supplied node request into bytes.
+     * Flattens the supplied node request so that it can be written to any number of peers.
      */
-    protected byte[] flattenRequest (NodeRequest request)
+    protected FlattenedObject flattenRequest (NodeRequest request)
     {
         try {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            ObjectOutputStream oout = new ObjectOutputStream(bout);
-            oout.writeObject(request);
-            return bout.toByteArray();
+            return FlattenedObject.flatten(request);
         } catch (Exception e) {
             throw new IllegalArgumentException(
                 "Failed to serialize node request [request=" + request + "].", e);
         }
     }
 
-    protected void invokeNodeRequest (String nodeName, byte[] requestBytes,
-        InvocationService.ResultListener listener)
+    /**
+     * Reads a copy of a node action back out of the form produced by {@link #flattenAction}.
+     */
+    protected NodeAction unflattenAction (FlattenedObject flat)
     {
-        PeerNode peer = _peers.get(nodeName);
-        if (peer != null) {
-            if (peer.nodeobj != null) {
-                peer.nodeobj.peerService.invokeRequest(requestBytes, listener);
+        return (NodeAction)unflatten(flat);
+    }
 
-            } else {
-                log.warning("Dropped NodeRequest", "nodeName", nodeName);
-                listener.requestFailed(InvocationCodes.INTERNAL_ERROR);
-            }
+    /**
+     * Reads a copy of a node request back out of the form produced by {@link #flattenRequest}.
+     */
+    protected NodeRequest unflattenRequest (FlattenedObject flat)
+    {
+        return (NodeRequest)unflatten(flat);
+    }
 
-        } else if (Objects.equal(nodeName, _nodeName)) {
-            invokeRequest(null, requestBytes, listener);
+    protected byte[] flatten (Object object)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(object);
+        oout.flush();
+        return bout.toByteArray();
+    }
+
+    protected Object unflatten (FlattenedObject flat)
+    {
+        try {
+            return flat.unflatten();
+        } catch (Exception e) {
+            // we just flattened this object ourselves, so this should not happen
+            throw new RuntimeException("Failed to unserialize flattened object", e);
         }
     }
 
@@ -1841,6 +2231,12 @@ public abstract class PeerManager
     /** Contains a mapping of proxied objects to subscriber instances. */
     protected Map<DObjectAddress, Tuple<Subscriber<?>, DObject>> _proxies = Maps.newHashMap();
 
+    /** Proxies of objects on peers to which we have lost our connection. */
+    protected Map<DObjectAddress, Tuple<Subscriber<?>, DObject>> _suspended = Maps.newHashMap();
+
+    /** Proxies that we lost while disconnected and that have yet to be unproxied. */
+    protected Set<DObjectAddress> _lost = Sets.newHashSet();
+
     /** Our stale cache observers. */
     protected Map<String, ObserverList<StaleCacheObserver>> _cacheobs = Maps.newHashMap();
 
@@ -1853,6 +2249,32 @@ public abstract class PeerManager
     /** Used to track runtime statistics. */
     protected Stats _stats = new Stats();
 
+    /** Our cluster-wide client directory: the name of the node onto which each client is logged
+     * and its client info, indexed by {@link ClientInfo#getKey}. */
+    protected Map<Comparable<?>, Tuple<String, ClientInfo>> _clients = Maps.newHashMap();
+
+    /** The number of milliseconds for which node actions bound for a peer are held to be batched
+     * with others, or zero to batch only those queued before the dobjmgr gets around to sending
+     * them. See {@link #setActionBatching}. */
+    @Inject(optional=true) @Named("presents.peer.actionBatchWindow")
+    protected long _actionBatchWindow = 0L;
+
+    /** The maximum number of node actions delivered to a peer in a single message. */
+    @Inject(optional=true) @Named("presents.peer.actionBatchSize")
+    protected int _actionBatchSize = 64;
+
+    /** The maximum number of messages batched together for delivery to a peer session. See
+     * {@link #setMessageBatching}. */
+    @Inject(optional=true) @Named("presents.peer.messageBatchSize")
+    protected int _messageBatchSize = 128;
+
+    /** Whether to start out using sharded locks; see {@link #useShardedLocks}. */
+    @Inject(optional=true) @Named("presents.peer.shardedLocks")
+    protected boolean _shardedLocks;
+
+    /** Tracks locks when using the sharded protocol, or null when using the broadcast one. */
+    protected ShardedLockManager _lockmgr;
+
     // our service dependencies
     @Inject protected @PeerInvoker Invoker _invoker;
     @Inject protected ClientManager _clmgr;
@@ -24,12 +24,20 @@ package com.threerings.presents.peer.server;
 import java.net.ConnectException;
 
 import java.util.Date;
+import java.util.List;
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 
+import com.samskivert.util.Interval;
+
+import com.threerings.io.FlattenedObject;
+import com.threerings.io.Streamable;
+
 import com.threerings.presents.client.Client;
 import com.threerings.presents.client.ClientObserver;
 import com.threerings.presents.client.Communicator;
+import com.threerings.presents.client.InvocationDirector;
 import com.threerings.presents.dobj.AttributeChangeListener;
 import com.threerings.presents.dobj.AttributeChangedEvent;
 import com.threerings.presents.dobj.DEvent;
@@ -41,6 +49,7 @@ import com.threerings.presents.dobj.EntryUpdatedEvent;
 import com.threerings.presents.dobj.ObjectAccessException;
 import com.threerings.presents.dobj.SetListener;
 import com.threerings.presents.dobj.Subscriber;
+import com.threerings.presents.net.Transport;
 import com.threerings.presents.peer.data.ClientInfo;
 import com.threerings.presents.peer.data.NodeObject;
 import com.threerings.presents.peer.net.PeerBootstrapData;
@@ -84,6 +93,17 @@ public class PeerNode
                 return (type != FailureType.UNSUBSCRIBE_NOT_PROXIED) &&
                         super.isFailureLoggable(type);
             }
+            {
+                // deliver any queued actions ahead of every other request we send to this peer so
+                // that they arrive in the order in which they were made
+                _invdir = new InvocationDirector() {
+                    @Override public void sendRequest (int invOid, int invCode, int methodId,
+                                                       Object[] args, Transport transport) {
+                        flushActions();
+                        super.sendRequest(invOid, invCode, methodId, args, transport);
+                    }
+                };
+            }
         };
         _client.addClientObserver(this);
     }
@@ -160,8 +180,64 @@ public class PeerNode
         _lastConnectStamp = System.currentTimeMillis();
     }
 
+    /**
+     * Queues the supplied action for delivery to this peer. Queued actions are delivered together
+     * when the peer manager's batching window elapses or a batch fills up, in the order in which
+     * they were queued, or ahead of any other request sent to this peer in the meantime. See
+     * {@link PeerManager#setActionBatching}. This must be called on the dobjmgr thread.
+     *
+     * @param action a {@link PeerManager.NodeAction} or a {@link FlattenedObject} of one.
+     */
+    public void queueAction (Streamable action)
+    {
+        _actions.add(action);
+        if (_actions.size() >= _peermgr._actionBatchSize) {
+            flushActions();
+
+        } else if (!_flushScheduled) {
+            _flushScheduled = true;
+            long window = _peermgr._actionBatchWindow;
+            if (window > 0) {
+                if (_flushInterval == null) {
+                    _flushInterval = _omgr.newInterval(_flusher);
+                }
+                _flushInterval.schedule(window);
+            } else {
+                _omgr.postRunnable(_flusher);
+            }
+        }
+    }
+
+    /**
+     * Delivers any actions queued for this peer. This must be called on the dobjmgr thread.
+     */
+    public void flushActions ()
+    {
+        _flushScheduled = false;
+        if (_flushInterval != null) {
+            _flushInterval.cancel();
+        }
+        int count = _actions.size();
+        if (count == 0) {
+            return;
+        }
+
+        // clear the queue before sending, as sending a request flushes it again
+        Streamable[] actions = _actions.toArray(new Streamable[count]);
+        _actions.clear();
+        if (nodeobj == null) {
+            log.warning("Dropping actions for disconnected peer", "peer", _record, "count", count);
+        } else if (count == 1) {
+            nodeobj.peerService.invokeAction(actions[0]);
+        } else {
+            nodeobj.peerService.invokeActions(actions);
+            _peermgr._stats.noteNodeActionBatch(count);
+        }
+    }
+
     public void shutdown ()
     {
+        flushActions();
         if (_client.isActive()) {
             log.info("Logging off of peer " + _record + ".");
             _client.logoff(false);
@@ -222,6 +298,7 @@ public class PeerNode
         }
         String nodeName = getNodeName();
         for (ClientInfo clinfo : nodeobj.clients) {
+            _peermgr.unindexClient(nodeName, clinfo);
             _peermgr.clientLoggedOff(nodeName, clinfo);
         }
         for (NodeObject.Lock lock : nodeobj.locks) {
@@ -229,10 +306,12 @@ public class PeerNode
         }
 
         nodeobj.removeListener(_listener);
+        _peermgr.suspendProxies(this);
 
         _peermgr.disconnectedFromPeer(this);
         _listener = null;
         nodeobj = null;
+        _peermgr.peersChanged();
     }
 
     // documentation inherited from interface ClientObserver
@@ -248,9 +327,19 @@ public class PeerNode
         nodeobj = object;
         nodeobj.addListener(_listener = createListener());
 
+        // pick up any proxies from before we lost our last connection, unless the peer has
+        // restarted since then
+        boolean restarted = (_bootStamp != 0L && _bootStamp != nodeobj.bootStamp);
+        _bootStamp = nodeobj.bootStamp;
+        _peermgr.resumeProxies(this, restarted);
+
         _peermgr.connectedToPeer(this);
+        _peermgr.peersChanged();
 
         String nodeName = getNodeName();
+        for (ClientInfo clinfo : nodeobj.clients) {
+            _peermgr.indexClient(nodeName, clinfo);
+        }
         for (ClientInfo clinfo : nodeobj.clients) {
             _peermgr.clientLoggedOn(nodeName, clinfo);
         }
@@ -302,6 +391,7 @@ public class PeerNode
         public void entryAdded (EntryAddedEvent<DSet.Entry> event) {
             String name = event.getName();
             if (NodeObject.CLIENTS.equals(name)) {
+                _peermgr.indexClient(getNodeName(), (ClientInfo)event.getEntry());
                 _peermgr.clientLoggedOn(getNodeName(), (ClientInfo)event.getEntry());
 
             } else if (NodeObject.LOCKS.equals(name)) {
@@ -311,7 +401,10 @@ public class PeerNode
 
         // documentation inherited from interface SetListener
         public void entryUpdated (EntryUpdatedEvent<DSet.Entry> event) {
-            if (NodeObject.LOCKS.equals(event.getName())) {
+            if (NodeObject.CLIENTS.equals(event.getName())) {
+                _peermgr.indexClient(getNodeName(), (ClientInfo)event.getEntry());
+
+            } else if (NodeObject.LOCKS.equals(event.getName())) {
                 _peermgr.peerUpdatedLock(getNodeName(), (NodeObject.Lock)event.getEntry());
             }
         }
@@ -320,6 +413,7 @@ public class PeerNode
         public void entryRemoved (EntryRemovedEvent<DSet.Entry> event) {
             String name = event.getName();
             if (NodeObject.CLIENTS.equals(name)) {
+                _peermgr.unindexClient(getNodeName(), (ClientInfo)event.getOldEntry());
                 _peermgr.clientLoggedOff(getNodeName(), (ClientInfo)event.getOldEntry());
 
             } else if (NodeObject.LOCKS.equals(name)) {
@@ -333,6 +427,25 @@ public class PeerNode
     protected Client _client;
     protected long _lastConnectStamp;
 
+    /** The boot stamp of this peer when we last connected to it, or zero. */
+    protected long _bootStamp;
+
+    /** Node actions waiting to be delivered to this peer. */
+    protected List<Streamable> _actions = Lists.newArrayList();
+
+    /** Whether a flush of {@link #_actions} has been scheduled. */
+    protected boolean _flushScheduled;
+
+    /** Used to flush {@link #_actions} when batching with a window; created as needed. */
+    protected Interval _flushInterval;
+
+    /** Flushes {@link #_actions}. */
+    protected Runnable _flusher = new Runnable() {
+        public void run () {
+            flushActions();
+        }
+    };
+
     @Inject protected PeerManager _peermgr;
     @Inject protected PresentsDObjectMgr _omgr;
     @Inject protected PresentsConnectionManager _conmgr;
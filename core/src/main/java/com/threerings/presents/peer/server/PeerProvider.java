@@ -23,6 +23,8 @@ package com.threerings.presents.peer.server;
 
 import javax.annotation.Generated;
 
+import com.threerings.io.Streamable;
+
 import com.threerings.presents.client.InvocationService;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.peer.client.PeerService;
@@ -46,12 +48,17 @@ public interface PeerProvider extends InvocationProvider
     /**
      * Handles a {@link PeerService#invokeAction} request.
      */
-    void invokeAction (ClientObject caller, byte[] arg1);
+    void invokeAction (ClientObject caller, Streamable arg1);
+
+    /**
+     * Handles a {@link PeerService#invokeActions} request.
+     */
+    void invokeActions (ClientObject caller, Streamable[] arg1);
 
     /**
      * Handles a {@link PeerService#invokeRequest} request.
      */
-    void invokeRequest (ClientObject caller, byte[] arg1, InvocationService.ResultListener arg2)
+    void invokeRequest (ClientObject caller, Streamable arg1, InvocationService.ResultListener arg2)
         throws InvocationException;
 
     /**
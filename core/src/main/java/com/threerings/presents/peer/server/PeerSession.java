@@ -23,10 +23,12 @@ package com.threerings.presents.peer.server;
 
 import com.google.inject.Inject;
 
+import com.samskivert.util.Interval;
 import com.samskivert.util.Throttle;
 
 import com.threerings.presents.dobj.DObject;
 import com.threerings.presents.net.BootstrapData;
+import com.threerings.presents.net.CompoundDownstreamMessage;
 import com.threerings.presents.net.DownstreamMessage;
 import com.threerings.presents.net.Message;
 import com.threerings.presents.peer.data.NodeObject;
@@ -57,6 +59,21 @@ public class PeerSession extends PresentsSession
         _stats = stats;
     }
 
+    /**
+     * Configures the batching of messages sent to our peer. The events for all of the objects to
+     * which our peer subscribes (which are mostly objects it proxies), along with any other
+     * messages, that are sent during one pass through the dobjmgr queue are delivered together in
+     * a single {@link CompoundDownstreamMessage}. While our connection to the peer is backed up,
+     * batches are held and continue to fill until they reach the maximum size.
+     *
+     * @param maxMessages the maximum number of messages to deliver in a single frame; one
+     * disables batching.
+     */
+    public void setMessageBatching (int maxMessages)
+    {
+        _batchSize = Math.max(maxMessages, 1);
+    }
+
     @Override // from PresentsSession
     public void handleMessage (Message message)
     {
@@ -111,6 +128,12 @@ public class PeerSession extends PresentsSession
     @Override // from PresentsSession
     protected void sessionDidEnd ()
     {
+        // our connection is gone, so there's no use holding on to a batch
+        if (_backlogInterval != null) {
+            _backlogInterval.cancel();
+        }
+        flushMessages();
+
         super.sessionDidEnd();
 
         // let the peer manager know that we're audi
@@ -120,15 +143,75 @@ public class PeerSession extends PresentsSession
     @Override // from PresentsSession
     protected final boolean postMessage (DownstreamMessage msg, PresentsConnection expect)
     {
+        // start a batch if we're not already collecting messages (or sending a batch)
+        if (_batchSize > 1 && _compound == null && !(msg instanceof CompoundDownstreamMessage) &&
+                getConnection() != null) {
+            startCompoundMessage();
+            _batching = true;
+            _omgr.postRunnable(_flusher);
+        }
+
+        boolean direct = (_compound == null);
         if (!super.postMessage(msg, expect)) {
             return false;
         }
-        if (_stats != null) {
-            _stats.notePeerMessageSent(msg);
+        if (direct) {
+            if (_stats != null) {
+                _stats.notePeerMessageSent(msg);
+            }
+        } else if (_batching && _compound.msgs.size() >= _batchSize) {
+            flushMessages();
         }
         return true;
     }
 
+    /**
+     * Sends the current batch of messages, if we have one.
+     */
+    protected void flushMessages ()
+    {
+        if (!_batching) {
+            return;
+        }
+        _batching = false;
+
+        // there's no point in wrapping a lone message
+        if (_compoundDepth == 1 && _compound.msgs.size() == 1) {
+            DownstreamMessage msg = _compound.msgs.get(0);
+            _compound = null;
+            _compoundDepth = 0;
+            if (super.postMessage(msg, null) && _stats != null) {
+                _stats.notePeerMessageSent(msg);
+            }
+            return;
+        }
+
+        if (_stats != null && !_compound.msgs.isEmpty()) {
+            _stats.notePeerMessageBatch(_compound.msgs.size());
+        }
+        finishCompoundMessage();
+    }
+
+    /**
+     * Called at the end of the dobjmgr pass in which we started a batch, and periodically after
+     * that while our connection is backed up.
+     */
+    protected void batchExpired ()
+    {
+        if (!_batching) {
+            return; // sent early because it filled up
+        }
+        PresentsConnection conn = getConnection();
+        if (conn != null && conn.isBackedUp()) {
+            if (_backlogInterval == null) {
+                _backlogInterval = _omgr.newInterval(_flusher);
+            }
+            _backlogInterval.schedule(BACKLOG_RECHECK);
+            return;
+        }
+        flushMessages();
+    }
+
     @Override // from PresentsSession
     protected void subscribedToObject (DObject object)
     {
@@ -168,4 +251,23 @@ public class PeerSession extends PresentsSession
     protected PeerManager.Stats _stats;
     protected int _cloid;
     protected long _nextThrottleWarning;
+
+    /** The maximum number of messages in a batch; see {@link #setMessageBatching}. */
+    protected int _batchSize = 1;
+
+    /** Whether we have started a batch which has yet to be sent. */
+    protected boolean _batching;
+
+    /** Used to check back on a batch held while our connection is backed up. */
+    protected Interval _backlogInterval;
+
+    /** Sends or holds our current batch. */
+    protected Runnable _flusher = new Runnable() {
+        public void run () {
+            batchExpired();
+        }
+    };
+
+    /** The number of milliseconds between checks on a backed up connection. */
+    protected static final long BACKLOG_RECHECK = 10L;
 }
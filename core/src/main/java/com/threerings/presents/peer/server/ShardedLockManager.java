@@ -0,0 +1,570 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.presents.peer.server;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.samskivert.util.Interval;
+import com.samskivert.util.ResultListener;
+
+import com.threerings.presents.client.InvocationService;
+import com.threerings.presents.peer.data.NodeObject;
+import com.threerings.presents.server.InvocationException;
+import com.threerings.presents.server.PresentsDObjectMgr;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * An alternative to the broadcast lock protocol used by {@link PeerManager}. Rather than
+ * announcing each acquisition on our {@link NodeObject} and waiting for every peer to ratify it,
+ * each lock is owned by a single node, chosen by consistent hashing of the lock over the nodes to
+ * which we are connected, and that node alone keeps track of who holds it. Acquiring, releasing or
+ * querying a lock is thus a single request to the lock's owner (or no request at all if that is
+ * us), regardless of the size of the cluster, and locks no longer appear in
+ * {@link NodeObject#locks}.
+ *
+ * <p> When nodes join or leave the cluster, ownership of some locks moves to another node. The
+ * holders of those locks reassert them with the new owner; if some other node managed to acquire
+ * a lock from the new owner in the meantime, the original holder drops the lock and notifies the
+ * {@link PeerManager.DroppedLockObserver}s, just as when a lock is hijacked under the broadcast
+ * protocol. Owners forget locks held by nodes that have left the cluster.
+ *
+ * <p> Every node must place a lock on the same point of the ring, so lock ids are hashed by their
+ * enum name or string form rather than their hash codes, and must be strings, numbers, enums or
+ * other values whose string form is the same on every node. An owner refuses to grant a lock that
+ * it does not think it owns, so that nodes that disagree about the ring fail to acquire the lock
+ * rather than both holding it.
+ *
+ * <p> All nodes in a cluster must use the same protocol; see {@link PeerManager#useShardedLocks}.
+ * All methods must be called on the dobjmgr thread.
+ */
+@Singleton
+public class ShardedLockManager
+{
+    /**
+     * Acquires the specified lock. The listener will receive this node's name if the lock was
+     * acquired (or was already held by this node), or the name of the node that holds it.
+     */
+    public void acquireLock (final NodeObject.Lock lock, final ResultListener<String> listener)
+    {
+        final String owner = getLockOwner(lock);
+        final long start = System.currentTimeMillis();
+        sendLockRequest(owner, lock, ACQUIRE, new ResultListener<String>() {
+            public void requestCompleted (String holder) {
+                if (isSelf(holder) && _held.put(lock, owner) == null) {
+                    _peermgr._stats.locksAcquired++;
+                    _peermgr._stats.lockAcquireWait += System.currentTimeMillis() - start;
+                }
+                listener.requestCompleted(holder);
+            }
+            public void requestFailed (Exception cause) {
+                listener.requestFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * Releases the specified lock. The listener will receive <code>null</code> if the lock was
+     * released, or the name of the node that holds it if that is not this node. This node holds
+     * the lock until the release is confirmed.
+     */
+    public void releaseLock (NodeObject.Lock lock, ResultListener<String> listener)
+    {
+        // we continue to hold the lock until its owner confirms the release, but stop reasserting
+        // it in the meantime
+        _releasing.add(lock);
+        sendRelease(lock, listener, 1);
+    }
+
+    /**
+     * Asks the owner of the specified lock which node holds it.
+     */
+    public void queryLock (NodeObject.Lock lock, ResultListener<String> listener)
+    {
+        sendLockRequest(getLockOwner(lock), lock, QUERY, listener);
+    }
+
+    /**
+     * Returns the name of the node that holds the specified lock, as far as this node knows
+     * without asking: this node if it holds the lock, otherwise the holder recorded here if this
+     * node owns the lock, otherwise <code>null</code>.
+     */
+    public String queryLock (NodeObject.Lock lock)
+    {
+        if (_held.containsKey(lock)) {
+            return _peermgr._nodeName;
+        }
+        return isSelf(getLockOwner(lock)) ? _holders.get(lock) : null;
+    }
+
+    /**
+     * Returns the name of the node that owns (tracks the holder of) the specified lock.
+     *
+     * @exception IllegalArgumentException thrown if the lock's id has no string form that is the
+     * same on every node.
+     */
+    public String getLockOwner (NodeObject.Lock lock)
+    {
+        int hash = hashLock(lock);
+        if (_points.length == 0) {
+            return _peermgr._nodeName;
+        }
+        int idx = Arrays.binarySearch(_points, mix(hash));
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return _pointNodes[(idx == _points.length) ? 0 : idx];
+    }
+
+    /**
+     * Called by the peer manager when a peer joins or leaves the cluster. Rebuilds the hash ring
+     * and hands off locks whose ownership has moved.
+     */
+    public void peersChanged ()
+    {
+        // rebuild the ring from ourselves and all peers whose node objects we have
+        Set<String> members = Sets.newTreeSet();
+        members.add(_peermgr._nodeName);
+        for (PeerNode peer : _peermgr._peers.values()) {
+            if (peer.nodeobj != null) {
+                members.add(peer.getNodeName());
+            }
+        }
+        buildRing(members);
+
+        // forget locks we no longer own and those held by nodes that have left; the holders of
+        // the former will reassert them with their new owners
+        for (Iterator<Map.Entry<NodeObject.Lock, String>> it = _holders.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<NodeObject.Lock, String> entry = it.next();
+            if (!members.contains(entry.getValue()) || !isSelf(getLockOwner(entry.getKey()))) {
+                it.remove();
+            }
+        }
+
+        // reassert any of our locks that have moved to a new owner
+        for (Map.Entry<NodeObject.Lock, String> entry : Maps.newHashMap(_held).entrySet()) {
+            String owner = getLockOwner(entry.getKey());
+            if (!owner.equals(entry.getValue()) && !_releasing.contains(entry.getKey())) {
+                reassertLock(entry.getKey(), owner);
+            }
+        }
+    }
+
+    /**
+     * Handles a lock request on the node that owns the lock.
+     *
+     * @return the name of the node holding the lock once the request has been processed.
+     */
+    protected String handleLockRequest (String nodeName, NodeObject.Lock lock, int op)
+        throws InvocationException
+    {
+        String holder = _holders.get(lock);
+        switch (op) {
+        case ACQUIRE:
+            // refuse locks we don't own, lest the node that does own them grant them as well
+            String owner = getLockOwner(lock);
+            if (!isSelf(owner)) {
+                log.warning("Refusing lock owned by another node", "node", nodeName, "lock", lock,
+                            "owner", owner);
+                throw new InvocationException("Lock owned by another node");
+            }
+            if (holder == null) {
+                _holders.put(lock, holder = nodeName);
+            }
+            return holder;
+
+        case RELEASE:
+            if (nodeName.equals(holder)) {
+                _holders.remove(lock);
+                holder = null;
+            }
+            return holder;
+
+        case QUERY:
+            return holder;
+
+        default:
+            log.warning("Received unknown lock request", "node", nodeName, "lock", lock, "op", op);
+            return holder;
+        }
+    }
+
+    /**
+     * Asks the current owner of the specified lock to release it, retrying a few times if the
+     * request fails before giving up on the lock.
+     */
+    protected void sendRelease (
+        final NodeObject.Lock lock, final ResultListener<String> listener, final int attempt)
+    {
+        final String owner = getLockOwner(lock);
+        sendLockRequest(owner, lock, RELEASE, new ResultListener<String>() {
+            public void requestCompleted (String holder) {
+                boolean held = releasedLock(lock);
+                if (holder == null) {
+                    if (held) {
+                        _peermgr._stats.locksReleased++;
+                    }
+                } else if (!isSelf(holder)) {
+                    log.warning("Tried to release lock held by another peer", "lock", lock,
+                                "owner", holder);
+                }
+                listener.requestCompleted(holder);
+            }
+            public void requestFailed (Exception cause) {
+                if (attempt < RETRY_ATTEMPTS && _held.containsKey(lock)) {
+                    log.info("Retrying failed lock release", "lock", lock, "owner", owner,
+                             "attempt", attempt, "cause", cause.getMessage());
+                    _omgr.newInterval(new Runnable() {
+                        public void run () {
+                            sendRelease(lock, listener, attempt + 1);
+                        }
+                    }).schedule(RETRY_DELAY);
+                    return;
+                }
+                // give up on the lock; its owner will forget it should we leave the cluster
+                log.warning("Giving up on lock release", "lock", lock, "owner", owner, cause);
+                releasedLock(lock);
+                listener.requestFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * Stops holding the specified lock once its release is complete, returning whether we held
+     * it.
+     */
+    protected boolean releasedLock (NodeObject.Lock lock)
+    {
+        _releasing.remove(lock);
+        return (_held.remove(lock) != null);
+    }
+
+    /**
+     * Called when a request to acquire the specified lock times out. The owner may yet grant it to
+     * us, so unless we hold the lock anyway, we ask it to release the lock on our behalf. That
+     * request follows the acquisition on the same connection, so it takes effect either way.
+     */
+    protected void acquireTimedOut (final NodeObject.Lock lock, final String owner)
+    {
+        if (_held.containsKey(lock)) {
+            return;
+        }
+        sendLockRequest(owner, lock, RELEASE, new ResultListener<String>() {
+            public void requestCompleted (String holder) {
+                // nothing doing
+            }
+            public void requestFailed (Exception cause) {
+                // the owner will forget the lock if it has lost track of us
+                log.warning("Failed to release timed out lock", "lock", lock, "owner", owner,
+                            cause);
+            }
+        });
+    }
+
+    /**
+     * Reacquires a lock we hold from its new owner, dropping it if another node got there first.
+     */
+    protected void reassertLock (NodeObject.Lock lock, String owner)
+    {
+        _held.put(lock, owner);
+        reassertLock(lock, owner, 1);
+    }
+
+    /**
+     * Sends a request to reacquire a lock, retrying a few times if the request fails while the
+     * lock is still ours and still owned by the same node (which may not yet have noticed that
+     * it owns the lock).
+     */
+    protected void reassertLock (final NodeObject.Lock lock, final String owner, final int attempt)
+    {
+        sendLockRequest(owner, lock, ACQUIRE, new ResultListener<String>() {
+            public void requestCompleted (String holder) {
+                if (isSelf(holder) || !_held.containsKey(lock) || _releasing.contains(lock)) {
+                    return; // reasserted, or released in the meantime
+                }
+                log.warning("Lost lock while moving to new owner", "lock", lock,
+                            "owner", owner, "holder", holder);
+                _held.remove(lock);
+                _peermgr.droppedLock(lock);
+            }
+            public void requestFailed (Exception cause) {
+                if (!owner.equals(_held.get(lock)) || _releasing.contains(lock)) {
+                    return; // released or moved in the meantime
+                }
+                if (attempt < RETRY_ATTEMPTS && owner.equals(getLockOwner(lock))) {
+                    log.info("Retrying failed lock reassertion", "lock", lock, "owner", owner,
+                             "attempt", attempt, "cause", cause.getMessage());
+                    _omgr.newInterval(new Runnable() {
+                        public void run () {
+                            if (owner.equals(_held.get(lock)) && !_releasing.contains(lock)) {
+                                reassertLock(lock, owner, attempt + 1);
+                            }
+                        }
+                    }).schedule(RETRY_DELAY);
+                    return;
+                }
+                // we'll try again when the ring next changes
+                log.warning("Failed to reassert lock", "lock", lock, "owner", owner, cause);
+            }
+        });
+    }
+
+    /**
+     * Sends a lock request to the specified owner, or handles it directly if that is us.
+     */
+    protected void sendLockRequest (String owner, NodeObject.Lock lock, int op,
+                                    final ResultListener<String> listener)
+    {
+        String nodeName = _peermgr._nodeName;
+        if (isSelf(owner)) {
+            String holder;
+            try {
+                holder = handleLockRequest(nodeName, lock, op);
+            } catch (InvocationException ie) {
+                listener.requestFailed(ie);
+                return;
+            }
+            listener.requestCompleted(holder);
+            return;
+        }
+        _peermgr.invokeNodeRequest(owner, new LockRequest(nodeName, lock, op),
+                                   new LockResponse(owner, lock, op, listener));
+    }
+
+    /**
+     * Computes the points on the ring for the supplied members.
+     */
+    protected void buildRing (Set<String> members)
+    {
+        int count = members.size() * VIRTUAL_NODES;
+        long[] entries = new long[count];
+        String[] names = members.toArray(new String[members.size()]);
+        int idx = 0;
+        for (int nn = 0; nn < names.length; nn++) {
+            for (int ii = 0; ii < VIRTUAL_NODES; ii++) {
+                // pack the point above its node index so that sorting keeps them together
+                int point = mix(names[nn].hashCode() * 31 + ii);
+                entries[idx++] = ((long)point << 32) | nn;
+            }
+        }
+        Arrays.sort(entries);
+        _points = new int[count];
+        _pointNodes = new String[count];
+        for (int ii = 0; ii < count; ii++) {
+            _points[ii] = (int)(entries[ii] >> 32);
+            _pointNodes[ii] = names[(int)entries[ii]];
+        }
+    }
+
+    protected boolean isSelf (String nodeName)
+    {
+        return Objects.equal(nodeName, _peermgr._nodeName);
+    }
+
+    /**
+     * Hashes the supplied lock by its type and the name or string form of its id, which, unlike
+     * its hash code (which may be an enum's or an object's identity hash code), is the same on
+     * every node.
+     */
+    protected static int hashLock (NodeObject.Lock lock)
+    {
+        Comparable<?> id = lock.id;
+        String key;
+        if (id == null) {
+            key = "";
+        } else if (id instanceof Enum<?>) {
+            key = ((Enum<?>)id).name();
+        } else if (id instanceof String || id instanceof Number || id instanceof Boolean ||
+                   id instanceof Character || hasOwnToString(id.getClass())) {
+            key = id.toString();
+        } else {
+            throw new IllegalArgumentException(
+                "Lock id has no node-independent string form [lock=" + lock + "].");
+        }
+        return lock.type.hashCode() * 31 + key.hashCode();
+    }
+
+    /**
+     * Returns true if the supplied class overrides {@link Object#toString}.
+     */
+    protected static boolean hasOwnToString (Class<?> clazz)
+    {
+        try {
+            return clazz.getMethod("toString").getDeclaringClass() != Object.class;
+        } catch (NoSuchMethodException nsme) {
+            return false; // can't happen
+        }
+    }
+
+    /**
+     * Scrambles a hash code so that similar keys land on distant points of the ring.
+     */
+    protected static int mix (int hash)
+    {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Delivers a lock request to the node that owns the lock.
+     */
+    protected static class LockRequest extends PeerManager.NodeRequest
+    {
+        public LockRequest (String nodeName, NodeObject.Lock lock, int op)
+        {
+            _nodeName = nodeName;
+            _lock = lock;
+            _op = op;
+        }
+
+        public boolean isApplicable (NodeObject nodeobj)
+        {
+            return true;
+        }
+
+        @Override protected void execute (InvocationService.ResultListener listener)
+        {
+            try {
+                listener.requestProcessed(_lockmgr.handleLockRequest(_nodeName, _lock, _op));
+            } catch (InvocationException ie) {
+                listener.requestFailed(ie.getMessage());
+            }
+        }
+
+        protected String _nodeName;
+        protected NodeObject.Lock _lock;
+        protected int _op;
+
+        @Inject protected transient ShardedLockManager _lockmgr;
+    }
+
+    /**
+     * Relays the response to a lock request, failing it if no response arrives in time.
+     */
+    protected class LockResponse
+        implements InvocationService.ResultListener, Runnable
+    {
+        public LockResponse (
+            String owner, NodeObject.Lock lock, int op, ResultListener<String> listener)
+        {
+            _owner = owner;
+            _lock = lock;
+            _op = op;
+            _listener = listener;
+            (_timeout = _omgr.newInterval(this)).schedule(_peermgr.getLockTimeout());
+        }
+
+        public void requestProcessed (Object result)
+        {
+            if (complete()) {
+                _listener.requestCompleted((String)result);
+            } else {
+                // an acquisition granted after we gave up on it was released when we did so
+                log.info("Ignoring late lock response", "lock", _lock, "owner", _owner,
+                         "op", _op, "holder", result);
+            }
+        }
+
+        public void requestFailed (String cause)
+        {
+            if (complete()) {
+                _listener.requestFailed(new InvocationException(cause));
+            }
+        }
+
+        // from interface Runnable
+        public void run ()
+        {
+            if (!complete()) {
+                return;
+            }
+            log.warning("Lock request timed out", "lock", _lock, "owner", _owner, "op", _op);
+            _peermgr._stats.lockTimeouts++;
+            if (_op == ACQUIRE) {
+                acquireTimedOut(_lock, _owner);
+            }
+            _listener.requestFailed(new InvocationException("Lock request timed out"));
+        }
+
+        /**
+         * Marks the request as complete, returning false if it already was.
+         */
+        protected boolean complete ()
+        {
+            if (_complete) {
+                return false;
+            }
+            _complete = true;
+            _timeout.cancel();
+            return true;
+        }
+
+        protected String _owner;
+        protected NodeObject.Lock _lock;
+        protected int _op;
+        protected ResultListener<String> _listener;
+        protected Interval _timeout;
+        protected boolean _complete;
+    }
+
+    /** The ring's points, in ascending order, and the names of the nodes to which they belong. */
+    protected int[] _points = new int[0];
+    protected String[] _pointNodes = new String[0];
+
+    /** The holders of the locks this node owns. */
+    protected Map<NodeObject.Lock, String> _holders = Maps.newHashMap();
+
+    /** The locks this node holds, mapped to the node with which each is registered. */
+    protected Map<NodeObject.Lock, String> _held = Maps.newHashMap();
+
+    /** The locks we hold whose release has yet to be confirmed by their owners. */
+    protected Set<NodeObject.Lock> _releasing = Sets.newHashSet();
+
+    @Inject protected PeerManager _peermgr;
+    @Inject protected PresentsDObjectMgr _omgr;
+
+    /** Lock request operations. */
+    protected static final int ACQUIRE = 0, RELEASE = 1, QUERY = 2;
+
+    /** The number of times we try to release or reassert a lock before giving up on it. */
+    protected static final int RETRY_ATTEMPTS = 3;
+
+    /** The time to wait before retrying a failed lock release or reassertion, in milliseconds. */
+    protected static final long RETRY_DELAY = 1000L;
+
+    /** The number of points each node occupies on the ring. */
+    protected static final int VIRTUAL_NODES = 64;
+}
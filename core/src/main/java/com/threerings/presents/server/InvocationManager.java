@@ -26,6 +26,12 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Lists;
@@ -33,14 +39,17 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 import com.samskivert.util.IntMap;
 import com.samskivert.util.IntMaps;
 import com.samskivert.util.LRUHashMap;
+import com.samskivert.util.Lifecycle;
 import com.samskivert.util.StringUtil;
 
 import com.threerings.io.Streamable;
 
+import com.threerings.presents.annotation.ConcurrentDispatch;
 import com.threerings.presents.client.Client;
 import com.threerings.presents.data.ClientObject;
 import com.threerings.presents.data.InvocationCodes;
@@ -70,18 +79,23 @@ import static com.threerings.presents.Log.log;
  * them on to the invocation provider registered for the requested invocation module. It also
  * provides a mechanism by which responses and asynchronous notification invocations can be
  * delivered to the client.
+ *
+ * <p> Provider methods are normally called on the distributed object thread. Those annotated with
+ * {@link ConcurrentDispatch} are instead called on an executor, see {@link
+ * #registerDispatchExecutor}.
  */
 @Singleton
 public class InvocationManager
-    implements EventListener
+    implements EventListener, Lifecycle.ShutdownComponent
 {
     /**
      * Constructs an invocation manager which will use the supplied distributed object manager to
      * operate its invocation services. Generally only one invocation manager should be operational
      * in a particular system.
      */
-    @Inject public InvocationManager (PresentsDObjectMgr omgr)
+    @Inject public InvocationManager (PresentsDObjectMgr omgr, Lifecycle cycle)
     {
+        cycle.addComponent(this);
         _omgr = omgr;
         _omgr._invmgr = this;
 
@@ -128,45 +142,13 @@ public class InvocationManager
     {
         _omgr.requireEventThread(); // sanity check
 
-        // find the invocation provider interface class (defaulting to the concrete class to cope
-        // with legacy non-interface based providers)
-        Class<?> pclass = provider.getClass();
-        String pname = mclass.getSimpleName().replaceAll("Marshaller", "Provider");
-      OUTER:
-        for (Class<?> sclass = pclass; sclass != null; sclass = sclass.getSuperclass()) {
-            for (Class<?> iclass : sclass.getInterfaces()) {
-                if (InvocationProvider.class.isAssignableFrom(iclass) &&
-                    iclass.getSimpleName().equals(pname)) {
-                    pclass = iclass;
-                    break OUTER;
-                }
-            }
-        }
-
         // determine the invocation service code mappings
-        final Map<Integer,Method> invmeths = Maps.newHashMap();
-        for (Method method : pclass.getMethods()) {
-            Class<?>[] ptypes = method.getParameterTypes();
-            // only consider methods whose first argument is of type ClientObject; this is a
-            // non-issue if we are looking at an auto-generated FooProvider interface, but is
-            // necessary to avoid problems for legacy concrete FooProvider implementations that
-            // also happen to have overloaded methods with the same name as invocation service
-            // methods; I'm looking at you ChatProvider...
-            if (ptypes.length == 0 || !ClientObject.class.isAssignableFrom(ptypes[0])) {
-                continue;
-            }
-            try {
-                Field code = mclass.getField(StringUtil.unStudlyName(method.getName()));
-                invmeths.put(code.getInt(null), method);
-            } catch (IllegalAccessException iae) {
-                throw new RuntimeException(iae); // Field.get failed? shouldn't happen
-            } catch (NoSuchFieldException nsfe) {
-                // not a problem, they just added some extra methods to their provider
-            }
-        }
+        final Map<Integer,Method> invmeths =
+            getServiceMethods(getProviderClass(provider, mclass), mclass);
 
         // get the next invocation code
         int invCode = nextInvCode();
+        noteConcurrentMethods(invCode, provider, invmeths);
 
         // create a marshaller instance and initialize it
         T marsh;
@@ -275,6 +257,11 @@ public class InvocationManager
         T marsh = dispatcher.createMarshaller();
         marsh.init(_invoid, invCode, _standaloneClient == null ?
             null : _standaloneClient.getInvocationDirector());
+        if (dispatcher.provider != null) {
+            Class<?> mclass = marsh.getClass();
+            noteConcurrentMethods(invCode, dispatcher.provider, getServiceMethods(
+                getProviderClass(dispatcher.provider, mclass), mclass));
+        }
 
         // register the dispatcher
         _dispatchers.put(invCode, dispatcher);
@@ -307,6 +294,18 @@ public class InvocationManager
             log.warning("Requested to remove unregistered marshaller?", "marsh", marsh,
                         new Exception());
         }
+        _concurrentMethods.remove(marsh.getInvocationCode());
+    }
+
+    /**
+     * Registers an executor on which to call the provider methods whose {@link ConcurrentDispatch}
+     * annotation names it. This may be done before or after the providers are registered, but
+     * requests to methods whose executor has not been registered are dispatched on the
+     * distributed object thread.
+     */
+    public void registerDispatchExecutor (String name, Executor executor)
+    {
+        _dispatchExecutors.put(name, executor);
     }
 
     /**
@@ -334,6 +333,18 @@ public class InvocationManager
         return (dispatcher == null) ? null : dispatcher.getClass();
     }
 
+    // from interface Lifecycle.ShutdownComponent
+    public void shutdown ()
+    {
+        // let any requests already handed to the default pool finish, but accept no more
+        ExecutorService[] stripes = _dispatchStripes;
+        if (stripes != null) {
+            for (ExecutorService stripe : stripes) {
+                stripe.shutdown();
+            }
+        }
+    }
+
     // documentation inherited from interface
     public void eventReceived (DEvent event)
     {
@@ -390,13 +401,37 @@ public class InvocationManager
 
         log.debug("Dispatching invreq", "caller", source.who(), "provider", disp.getProvider(),
                   "methId", methodId, "args", args);
+        if (rlist != null) {
+            rlist.setInvocationId(
+                StringUtil.shortClassName(disp.getProvider()) + ", methodId=" + methodId);
+        }
+
+        // if the method is happy to run elsewhere, send it on its way
+        Executor executor = getDispatchExecutor(clientOid, invCode, methodId);
+        if (executor != null) {
+            final Dispatcher fdisp = disp;
+            final ClientObject fsource = source;
+            final int finvCode = invCode, fmethodId = methodId;
+            final Object[] fargs = args;
+            final ListenerMarshaller frlist = rlist;
+            executor.execute(new Runnable() {
+                public void run () {
+                    dispatchRequest(fdisp, fsource, finvCode, fmethodId, fargs, frlist);
+                }
+            });
+        } else {
+            dispatchRequest(disp, source, invCode, methodId, args, rlist);
+        }
+    }
 
-        // dispatch the request
+    /**
+     * Calls the dispatcher for a request and copes with failure. This is called on the
+     * distributed object thread unless the requested method is dispatched concurrently.
+     */
+    protected void dispatchRequest (Dispatcher disp, ClientObject source, int invCode,
+                                    int methodId, Object[] args, ListenerMarshaller rlist)
+    {
         try {
-            if (rlist != null) {
-                rlist.setInvocationId(
-                    StringUtil.shortClassName(disp.getProvider()) + ", methodId=" + methodId);
-            }
             disp.dispatchRequest(source, methodId, args);
 
         } catch (InvocationException ie) {
@@ -421,6 +456,118 @@ public class InvocationManager
         }
     }
 
+    /**
+     * Returns the executor on which to dispatch the specified request, or null if it should be
+     * dispatched on the distributed object thread.
+     */
+    protected Executor getDispatchExecutor (int clientOid, int invCode, int methodId)
+    {
+        IntMap<String> methods = _concurrentMethods.get(invCode);
+        String name = (methods == null) ? null : methods.get(methodId);
+        if (name == null) {
+            return null;
+        } else if (name.length() > 0) {
+            return _dispatchExecutors.get(name);
+        }
+
+        // requests to the default pool are striped by caller so that they stay in order
+        ExecutorService[] stripes = _dispatchStripes;
+        if (stripes == null) {
+            stripes = new ExecutorService[Math.max(_dispatchThreads, 1)];
+            for (int ii = 0; ii < stripes.length; ii++) {
+                stripes[ii] = Executors.newSingleThreadExecutor(DISPATCH_THREADS);
+            }
+            _dispatchStripes = stripes;
+        }
+        ExecutorService stripe = stripes[(clientOid & Integer.MAX_VALUE) % stripes.length];
+        // once we've been shut down, any stragglers are dispatched on the dobj thread
+        return stripe.isShutdown() ? null : stripe;
+    }
+
+    /**
+     * Returns the provider interface implemented by the supplied provider for the service whose
+     * marshaller class is supplied, or the provider's concrete class to cope with legacy
+     * non-interface based providers.
+     */
+    protected Class<?> getProviderClass (InvocationProvider provider, Class<?> mclass)
+    {
+        String pname = mclass.getSimpleName().replaceAll("Marshaller", "Provider");
+        for (Class<?> sclass = provider.getClass(); sclass != null;
+             sclass = sclass.getSuperclass()) {
+            for (Class<?> iclass : sclass.getInterfaces()) {
+                if (InvocationProvider.class.isAssignableFrom(iclass) &&
+                    iclass.getSimpleName().equals(pname)) {
+                    return iclass;
+                }
+            }
+        }
+        return provider.getClass();
+    }
+
+    /**
+     * Maps the codes of the methods of an invocation service to the provider methods that
+     * implement them.
+     *
+     * @param pclass the provider class or interface.
+     * @param mclass the marshaller class, which defines the method codes.
+     */
+    protected Map<Integer, Method> getServiceMethods (Class<?> pclass, Class<?> mclass)
+    {
+        Map<Integer,Method> invmeths = Maps.newHashMap();
+        for (Method method : pclass.getMethods()) {
+            Class<?>[] ptypes = method.getParameterTypes();
+            // only consider methods whose first argument is of type ClientObject; this is a
+            // non-issue if we are looking at an auto-generated FooProvider interface, but is
+            // necessary to avoid problems for legacy concrete FooProvider implementations that
+            // also happen to have overloaded methods with the same name as invocation service
+            // methods; I'm looking at you ChatProvider...
+            if (ptypes.length == 0 || !ClientObject.class.isAssignableFrom(ptypes[0])) {
+                continue;
+            }
+            try {
+                Field code = mclass.getField(StringUtil.unStudlyName(method.getName()));
+                invmeths.put(code.getInt(null), method);
+            } catch (IllegalAccessException iae) {
+                throw new RuntimeException(iae); // Field.get failed? shouldn't happen
+            } catch (NoSuchFieldException nsfe) {
+                // not a problem, they just added some extra methods to their provider
+            }
+        }
+        return invmeths;
+    }
+
+    /**
+     * Notes which of the supplied service methods are annotated with {@link ConcurrentDispatch},
+     * either in the provider interface or in the provider's class.
+     */
+    protected void noteConcurrentMethods (
+        int invCode, InvocationProvider provider, Map<Integer, Method> invmeths)
+    {
+        IntMap<String> methods = null;
+        for (Map.Entry<Integer, Method> entry : invmeths.entrySet()) {
+            Method method = entry.getValue();
+            ConcurrentDispatch cd = method.getAnnotation(ConcurrentDispatch.class);
+            if (cd == null) {
+                try {
+                    cd = provider.getClass().getMethod(
+                        method.getName(), method.getParameterTypes()).getAnnotation(
+                            ConcurrentDispatch.class);
+                } catch (NoSuchMethodException nsme) {
+                    // no problem, nothing to annotate
+                }
+            }
+            if (cd != null) {
+                if (methods == null) {
+                    methods = IntMaps.newHashIntMap();
+                }
+                methods.put(entry.getKey(), cd.value());
+            }
+        }
+        if (methods != null) {
+            _concurrentMethods.put(invCode, methods);
+        }
+    }
+
     /**
      * Used to generate monotonically increasing provider ids.
      */
@@ -453,8 +600,33 @@ public class InvocationManager
     /** Maps bootstrap group to lists of services to be provided to clients at boot time. */
     protected Multimap<String, InvocationMarshaller<?>> _bootlists = ArrayListMultimap.create();
 
+    /** The executor names of concurrently dispatched methods, by invocation code and method. */
+    protected IntMap<IntMap<String>> _concurrentMethods = IntMaps.newHashIntMap();
+
+    /** Executors registered for concurrent dispatch, by name. */
+    protected Map<String, Executor> _dispatchExecutors = new ConcurrentHashMap<String, Executor>();
+
+    /** The default concurrent dispatch pool, created on first use and shut down with the
+     * server. */
+    protected volatile ExecutorService[] _dispatchStripes;
+
+    /** The number of threads in the default concurrent dispatch pool. */
+    @Inject(optional=true) @Named("presents.invmgr.dispatchThreads")
+    protected int _dispatchThreads = Runtime.getRuntime().availableProcessors();
+
     /** Tracks recently registered services so that we can complain informatively if a request
      * comes in on a service we don't know about. */
     protected final Map<Integer, String> _recentRegServices =
         new LRUHashMap<Integer, String>(10000);
+
+    /** Creates the daemon threads of the default concurrent dispatch pool. */
+    protected static final ThreadFactory DISPATCH_THREADS = new ThreadFactory() {
+        public Thread newThread (Runnable runnable) {
+            Thread thread = new Thread(
+                runnable, "InvocationDispatcher-" + _count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+        protected AtomicInteger _count = new AtomicInteger();
+    };
 }
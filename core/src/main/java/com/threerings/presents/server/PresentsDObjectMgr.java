@@ -24,22 +24,25 @@ package com.threerings.presents.server;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
-import com.samskivert.util.Histogram;
 import com.samskivert.util.IntMap;
 import com.samskivert.util.IntMaps;
 import com.samskivert.util.Interval;
-import com.samskivert.util.Queue;
 import com.samskivert.util.StringUtil;
 import com.samskivert.util.Throttle;
+import com.samskivert.util.Tuple;
 
 import com.threerings.presents.dobj.AccessController;
+import com.threerings.presents.dobj.AttributeChangedEvent;
 import com.threerings.presents.dobj.CompoundEvent;
 import com.threerings.presents.dobj.DEvent;
 import com.threerings.presents.dobj.DObject;
@@ -53,6 +56,10 @@ import com.threerings.presents.dobj.ObjectRemovedEvent;
 import com.threerings.presents.dobj.OidList;
 import com.threerings.presents.dobj.RootDObjectManager;
 import com.threerings.presents.dobj.Subscriber;
+import com.threerings.presents.server.metrics.Counter;
+import com.threerings.presents.server.metrics.Histogram;
+import com.threerings.presents.server.metrics.MetricsRegistry;
+import com.threerings.presents.util.UnitQueue;
 
 import static com.threerings.presents.Log.log;
 
@@ -78,6 +85,32 @@ public class PresentsDObjectMgr
 
         /** The number of events dispatched during the period. */
         public int eventCount;
+
+        /** The number of attribute changes that were collapsed into later changes. */
+        public int coalescedCount;
+    }
+
+    /** Describes a unit that took a long time to process. Returned by {@link #getSlowUnits}. */
+    public static class SlowUnit
+    {
+        /** The profiling name of the unit, which identifies its type. */
+        public String name;
+
+        /** The string representation of the unit itself. */
+        public String unit;
+
+        /** The time at which the unit finished processing, in epoch millis. */
+        public long when;
+
+        /** The time spent processing the unit and waiting in the queue, in microseconds. The
+         * queue wait is -1 if it is not known. */
+        public long elapsed, queueWait;
+
+        @Override
+        public String toString ()
+        {
+            return StringUtil.fieldsToString(this);
+        }
     }
 
     /** Post instances of these if you know you're going to tie up the distributed object thread
@@ -112,6 +145,10 @@ public class PresentsDObjectMgr
                 } else {
                     report.append(" (inf/s)\n");
                 }
+                if (stats.coalescedCount > 0) {
+                    report.append("- Attribute changes coalesced: ");
+                    report.append(stats.coalescedCount).append("\n");
+                }
             }
         });
         repmgr.registerReporter(ReportManager.PROFILE_TYPE, new ReportManager.Reporter() {
@@ -123,12 +160,31 @@ public class PresentsDObjectMgr
                         report.append("  ").append(entry.getKey());
                         report.append(" ").append(entry.getValue()).append("\n");
                     }
+                    report.append("- Queue wait: ").append(_queueWait.getRecent()).append("\n");
+                    List<SlowUnit> slow = getSlowUnits();
+                    report.append("- Slow units: ").append(slow.size()).append("\n");
+                    for (SlowUnit unit : slow) {
+                        report.append("  ").append(unit).append("\n");
+                    }
                 } else {
                     report.append("- Unit profiles disabled.\n");
                 }
             }
         });
 
+        // publish our vital signs to the metrics registry
+        MetricsRegistry metrics = repmgr.getMetrics();
+        metrics.registerSource("presents.dobjmgr", new MetricsRegistry.Source() {
+            public void sample (Map<String, Long> values) {
+                values.put("queueSize", (long)_evqueue.size());
+                values.put("events", _eventCount);
+                values.put("objects", (long)_objects.size());
+            }
+        });
+        _coalesced = metrics.counter("presents.dobjmgr.coalesced");
+        _unitTime = metrics.histogram("presents.dobjmgr.unitTime");
+        _queueWait = metrics.histogram("presents.dobjmgr.queueWait");
+
         // register our event helpers
         registerEventHelpers();
     }
@@ -178,6 +234,20 @@ public class PresentsDObjectMgr
         _proxies.put(object.getOid(), new ProxyReference(origObjectId, omgr));
     }
 
+    /**
+     * Updates the manager to which events on a proxied object are forwarded, as when our
+     * connection to the object's originating server has been reestablished.
+     */
+    public void updateProxyObject (DObject object, DObjectManager omgr)
+    {
+        ProxyReference proxy = _proxies.get(object.getOid());
+        if (proxy == null) {
+            log.warning("Missing proxy mapping for updated proxy", "oid", object.getOid());
+            return;
+        }
+        proxy.origManager = omgr;
+    }
+
     /**
      * Clears a proxy object reference from our local distributed object space. This merely removes
      * it from our internal tables, the caller is responsible for coordinating the deregistration
@@ -394,9 +464,26 @@ public class PresentsDObjectMgr
             _dobjThread = Thread.currentThread();
         }
 
+        List<Object> units = Lists.newArrayListWithCapacity(MAX_UNITS_PER_DRAIN);
         while (isRunning()) {
-            // pop the next unit off the queue and process it
-            processUnit(_evqueue.get());
+            // grab as many units as are ready (up to a limit) and process them
+            _evqueue.waitForElements();
+            _evqueue.drainTo(units, MAX_UNITS_PER_DRAIN, _stamps);
+
+            // keep track of the largest queue size we've seen
+            int queueSize = units.size() + _evqueue.size();
+            if (queueSize > _current.maxQueueSize) {
+                _current.maxQueueSize = queueSize;
+            }
+
+            coalesceAttributeChanges(units);
+            for (int ii = 0, ll = units.size(); ii < ll && _running; ii++) {
+                Object unit = units.get(ii);
+                if (unit != null) {
+                    processUnit(unit, _stamps[ii]);
+                }
+            }
+            units.clear();
         }
 
         log.info("DOMGR exited.");
@@ -417,19 +504,20 @@ public class PresentsDObjectMgr
     }
 
     /**
-     * Sets the frequency at which we take profiling samples.
+     * Formerly set the frequency at which we took profiling samples. Every unit is now profiled.
      */
+    @Deprecated
     public void setUnitProfInterval (int interval)
     {
-        _unitProfInterval = interval;
     }
 
     /**
-     * Returns the profiling sample frequency.
+     * Formerly returned the profiling sample frequency. Every unit is now profiled.
      */
+    @Deprecated
     public int getUnitProfInterval ()
     {
-        return _unitProfInterval;
+        return 1;
     }
 
     /**
@@ -440,14 +528,38 @@ public class PresentsDObjectMgr
         for (Map.Entry<String, UnitProfile> entry : _profiles.entrySet()) {
             log.info("P: " + entry.getKey() + " => " + entry.getValue());
         }
+        for (SlowUnit unit : getSlowUnits()) {
+            log.info("S: " + unit);
+        }
     }
 
     /**
-     * Clears the current set of unit profiles.
+     * Clears the current set of unit profiles and slow units.
      */
     public void clearUnitProfiles ()
     {
         _profiles.clear();
+        _classProfiles.clear();
+        _intervalProfiles.clear();
+        _invocationProfiles.clear();
+        Arrays.fill(_slowUnits, null);
+    }
+
+    /**
+     * Returns the most recent units that took longer than the slow unit threshold to process,
+     * most recent first. This must be called on the dobjmgr thread.
+     */
+    public List<SlowUnit> getSlowUnits ()
+    {
+        List<SlowUnit> units = Lists.newArrayList();
+        for (int ii = 0; ii < _slowUnits.length; ii++) {
+            SlowUnit unit = _slowUnits[(_slowUnitIdx - ii - 1 + _slowUnits.length) %
+                                       _slowUnits.length];
+            if (unit != null) {
+                units.add(unit);
+            }
+        }
+        return units;
     }
 
     /**
@@ -648,16 +760,54 @@ public class PresentsDObjectMgr
     }
 
     /**
-     * Processes a single unit from the queue.
+     * Collapses coalescible changes to the same attribute of the same object in the supplied
+     * batch of units into the last such change, replacing the earlier changes with null.
+     */
+    protected void coalesceAttributeChanges (List<Object> units)
+    {
+        for (int ii = 0, ll = units.size(); ii < ll; ii++) {
+            Object unit = units.get(ii);
+            if (!(unit instanceof AttributeChangedEvent) ||
+                    !((AttributeChangedEvent)unit).isCoalescible()) {
+                continue;
+            }
+            AttributeChangedEvent event = (AttributeChangedEvent)unit;
+            Integer pidx = _pendingChanges.put(
+                Tuple.newTuple(event.getTargetOid(), event.getName()), ii);
+            if (pidx != null) {
+                AttributeChangedEvent prev = (AttributeChangedEvent)units.get(pidx);
+                // don't let an unreliable change supplant a reliable one (or vice versa)
+                if (prev.getTransport().equals(event.getTransport())) {
+                    event.coalesce(prev);
+                    units.set(pidx, null);
+                    _current.coalescedCount++;
+                    _coalesced.increment();
+                }
+            }
+        }
+        _pendingChanges.clear();
+    }
+
+    /**
+     * Processes a single unit whose time in the queue is not known.
      */
     protected void processUnit (Object unit)
     {
-        long start = System.nanoTime();
+        processUnit(unit, UNKNOWN_STAMP);
+    }
 
-        // keep track of the largest queue size we've seen
-        int queueSize = _evqueue.size();
-        if (queueSize > _current.maxQueueSize) {
-            _current.maxQueueSize = queueSize;
+    /**
+     * Processes a single unit from the queue.
+     *
+     * @param enqueued the {@link System#nanoTime} at which the unit was queued.
+     */
+    protected void processUnit (Object unit, long enqueued)
+    {
+        long start = System.nanoTime();
+        long queueWait = -1;
+        if (enqueued != UNKNOWN_STAMP) {
+            queueWait = (start - enqueued)/1000;
+            _queueWait.record(queueWait);
         }
 
         try {
@@ -700,28 +850,79 @@ public class PresentsDObjectMgr
                         "time", (elapsed/1000) + "ms");
         }
 
-        // periodically sample and record the time spent processing a unit
-        if (UNIT_PROF_ENABLED && _eventCount % _unitProfInterval == 0) {
-            String cname;
-            // do some jiggery pokery to get more fine grained profiling details on certain
-            // "popular" unit types
-            if (unit instanceof Interval.RunBuddy) {
-                cname = StringUtil.shortClassName(
-                    ((Interval.RunBuddy)unit).getIntervalClassName());
-            } else if (unit instanceof InvocationRequestEvent) {
-                InvocationRequestEvent ire = (InvocationRequestEvent)unit;
-                Class<?> c = _invmgr.getDispatcherClass(ire.getInvCode());
-                cname = (c == null) ? "dobj.InvocationRequestEvent:(no longer registered)" :
-                    StringUtil.shortClassName(c) + ":" + ire.getMethodId();
-            } else {
-                cname = StringUtil.shortClassName(unit);
+        // record the time spent processing the unit
+        _unitTime.record(elapsed);
+        if (UNIT_PROF_ENABLED) {
+            UnitProfile uprof = getUnitProfile(unit);
+            uprof.record(elapsed);
+            if (elapsed >= _slowUnitMicros) {
+                noteSlowUnit(uprof.name, unit, elapsed, queueWait);
+            }
+        }
+    }
+
+    /**
+     * Returns the profile that tracks units of the supplied unit's type, creating it if needed.
+     * Profiles are looked up by class, interval class name or invocation code and method, so that
+     * no names need be built once a type of unit has been seen.
+     */
+    protected UnitProfile getUnitProfile (Object unit)
+    {
+        UnitProfile uprof;
+        // do some jiggery pokery to get more fine grained profiling details on certain "popular"
+        // unit types
+        if (unit instanceof Interval.RunBuddy) {
+            String iname = ((Interval.RunBuddy)unit).getIntervalClassName();
+            if ((uprof = _intervalProfiles.get(iname)) == null) {
+                _intervalProfiles.put(
+                    iname, uprof = getUnitProfile(StringUtil.shortClassName(iname)));
             }
-            UnitProfile uprof = _profiles.get(cname);
-            if (uprof == null) {
-                _profiles.put(cname, uprof = new UnitProfile());
+
+        } else if (unit instanceof InvocationRequestEvent && _invmgr != null) {
+            InvocationRequestEvent ire = (InvocationRequestEvent)unit;
+            int key = (ire.getInvCode() << 8) | (ire.getMethodId() & 0xFF);
+            if ((uprof = _invocationProfiles.get(key)) == null) {
+                Class<?> c = _invmgr.getDispatcherClass(ire.getInvCode());
+                if (c == null) {
+                    // don't remember this, in case the code is later registered
+                    return getUnitProfile("dobj.InvocationRequestEvent:(no longer registered)");
+                }
+                String name = StringUtil.shortClassName(c) + ":" + ire.getMethodId();
+                _invocationProfiles.put(key, uprof = getUnitProfile(name));
             }
-            uprof.record(elapsed);
+
+        } else if ((uprof = _classProfiles.get(unit.getClass())) == null) {
+            _classProfiles.put(
+                unit.getClass(), uprof = getUnitProfile(StringUtil.shortClassName(unit)));
+        }
+        return uprof;
+    }
+
+    /**
+     * Returns the profile with the specified name, creating it if needed.
+     */
+    protected UnitProfile getUnitProfile (String name)
+    {
+        UnitProfile uprof = _profiles.get(name);
+        if (uprof == null) {
+            _profiles.put(name, uprof = new UnitProfile(name));
         }
+        return uprof;
+    }
+
+    /**
+     * Records a unit that took longer than the slow unit threshold, replacing the oldest such.
+     */
+    protected void noteSlowUnit (String name, Object unit, long elapsed, long queueWait)
+    {
+        SlowUnit slow = new SlowUnit();
+        slow.name = name;
+        slow.unit = StringUtil.truncate(StringUtil.safeToString(unit), 200, "...");
+        slow.when = System.currentTimeMillis();
+        slow.elapsed = elapsed;
+        slow.queueWait = queueWait;
+        _slowUnits[_slowUnitIdx] = slow;
+        _slowUnitIdx = (_slowUnitIdx + 1) % _slowUnits.length;
     }
 
     /**
@@ -1034,23 +1235,29 @@ public class PresentsDObjectMgr
      * enabled. */
     protected static class UnitProfile
     {
+        /** The name of the type of unit we profile. */
+        public final String name;
+
+        public UnitProfile (String name)
+        {
+            this.name = name;
+        }
+
         public void record (long elapsed)
         {
-            _totalElapsed += elapsed;
-            _histo.addValue((int)elapsed);
-            _longest = Math.max(elapsed, _longest);
+            _histo.record(elapsed);
         }
 
         @Override
         public String toString ()
         {
-            int count = _histo.size();
-            return _totalElapsed + "us/" + count + " = " + (_totalElapsed/count) + "us avg " +
-                StringUtil.toString(_histo.getBuckets()) + " " + _longest + "us longest";
+            Histogram.Snapshot snap = _histo.getCurrent();
+            return snap.sum + "us/" + snap.count + " = " + snap.getMean() + "us avg, p50 " +
+                snap.getPercentile(50) + "us, p99 " + snap.getPercentile(99) + "us, p999 " +
+                snap.getPercentile(99.9) + "us, " + snap.max + "us longest";
         }
 
-        protected long _totalElapsed, _longest;
-        protected Histogram _histo = new Histogram(0, 20000, 10);
+        protected Histogram _histo = new Histogram();
     }
 
     /** Tracks necessary information on a proxy distributed object. */
@@ -1076,7 +1283,7 @@ public class PresentsDObjectMgr
     protected boolean _running = true;
 
     /** The event queue via which all events are processed. */
-    protected Queue<Object> _evqueue = new Queue<Object>();
+    protected UnitQueue<Object> _evqueue = new UnitQueue<Object>();
 
     /** The managed distributed objects table. */
     protected IntMap<DObject> _objects = IntMaps.newHashIntMap();
@@ -1107,27 +1314,58 @@ public class PresentsDObjectMgr
     /** A monotonically increasing counter used to assign an id to all dispatched events. */
     protected long _nextEventId = 1;
 
-    /** Used to profile our events and runnable units. */
-    protected Map<String, UnitProfile> _profiles = Maps.newHashMap();
+    /** Used to find coalescible attribute changes in a batch of units. */
+    protected Map<Tuple<Integer, String>, Integer> _pendingChanges = Maps.newHashMap();
+
+    /** Used to profile our events and runnable units, by name. */
+    protected Map<String, UnitProfile> _profiles = Maps.newTreeMap();
+
+    /** Our unit profiles, by unit class, interval class name and invocation code and method. */
+    protected Map<Class<?>, UnitProfile> _classProfiles = Maps.newHashMap();
+    protected Map<String, UnitProfile> _intervalProfiles = Maps.newHashMap();
+    protected IntMap<UnitProfile> _invocationProfiles = IntMaps.newHashIntMap();
+
+    /** A ring buffer of recent slow units and the index at which to record the next. */
+    protected SlowUnit[] _slowUnits = new SlowUnit[SLOW_UNIT_COUNT];
+    protected int _slowUnitIdx;
+
+    /** Units that take at least this many microseconds are noted in {@link #_slowUnits}. */
+    @Inject(optional=true) @Named("presents.dobjmgr.slowUnitMicros")
+    protected long _slowUnitMicros = 20 * 1000L;
+
+    /** The time spent processing each unit and waiting in the queue, in microseconds. */
+    protected Histogram _unitTime, _queueWait;
+
+    /** The enqueue times of the units being processed. */
+    protected long[] _stamps = new long[MAX_UNITS_PER_DRAIN];
 
     /** Used to track runtime statistics. */
     protected Stats _recent = new Stats(), _current = _recent;
 
+    /** Counts attribute changes collapsed into later changes over the life of the server. */
+    protected Counter _coalesced;
+
     /** Maps event classes to helpers that perform additional processing for particular events. */
     protected Map<Class<?>, EventHelper> _helpers = Maps.newHashMap();
 
     /** Used to resolve unit names when profiling. Injected by the invmgr when it's created. */
     protected InvocationManager _invmgr;
 
-    /** The frequency at which we take a profiling sample. */
-    protected int _unitProfInterval = 100;
-
     /** Whether or not unit profiling is enabled. */
     protected static final boolean UNIT_PROF_ENABLED = true;
 
     /** The default size of an oid list refs vector. */
     protected static final int DEFREFVEC_SIZE = 4;
 
+    /** The maximum number of units we take from the event queue at once. */
+    protected static final int MAX_UNITS_PER_DRAIN = 128;
+
+    /** The number of recent slow units we remember. */
+    protected static final int SLOW_UNIT_COUNT = 32;
+
+    /** Passed to {@link #processUnit(Object,long)} when a unit's enqueue time is not known. */
+    protected static final long UNKNOWN_STAMP = Long.MIN_VALUE;
+
     /**
      * The oid of the DObject created during object manager startup that isn't actually
      * distributed.
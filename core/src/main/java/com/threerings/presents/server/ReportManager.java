@@ -23,11 +23,13 @@ package com.threerings.presents.server;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import com.samskivert.util.StringUtil;
 
 import com.threerings.presents.dobj.RootDObjectManager;
+import com.threerings.presents.server.metrics.MetricsRegistry;
 
 import static com.threerings.presents.Log.log;
 
@@ -61,6 +63,17 @@ public class ReportManager
     /** A string constant representing a report with detailed profiling information. */
     public static final String PROFILE_TYPE = "profile";
 
+    /** A string constant representing a report listing the contents of the metrics registry. */
+    public static final String METRICS_TYPE = "metrics";
+
+    /**
+     * Returns the registry into which components record structured metrics.
+     */
+    public MetricsRegistry getMetrics ()
+    {
+        return _metrics;
+    }
+
     /**
      * Starts up our periodic report generation task.
      */
@@ -132,6 +145,11 @@ public class ReportManager
             report.append(max/1024).append("k max\n");
         }
 
+        // the metrics report is simply the contents of the registry
+        if (METRICS_TYPE.equals(type)) {
+            _metrics.appendText(report);
+        }
+
         for (Reporter rptr : _reporters.get(type)) {
             try {
                 rptr.appendReport(report, now, sinceLast, reset);
@@ -187,6 +205,9 @@ public class ReportManager
     /** The last time at which {@link #generateReport(String,long,boolean)} was run. */
     protected long _lastReportStamp = _serverStartTime;
 
+    /** Holds structured metrics recorded by the server's components. */
+    @Inject protected MetricsRegistry _metrics;
+
     /** Used to generate "state of server" reports. */
     protected Multimap<String, Reporter> _reporters = ArrayListMultimap.create();
 
@@ -21,11 +21,14 @@
 
 package com.threerings.presents.server;
 
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 import com.samskivert.util.Invoker;
 import com.samskivert.util.StringUtil;
 
+import com.threerings.presents.server.metrics.MetricsRegistry;
+
 /**
  * Extends invoker with a reporter implementation that shows current queue status, maximum
  * historical size and the results of unit profiling if enabled.
@@ -40,7 +43,7 @@ public class ReportingInvoker extends Invoker
 
     /**
      * Creates a new reporting invoker. The instance will be registered with the report manager
-     * if profiling is enabled ({@link Invoker#PERF_TRACK}).
+     * if profiling is enabled ({@link Invoker#PERF_TRACK}), and with the metrics registry always.
      */
     public ReportingInvoker (String name, Executor receiver, ReportManager repmgr)
     {
@@ -49,6 +52,12 @@ public class ReportingInvoker extends Invoker
             repmgr.registerReporter(ReportManager.DEFAULT_TYPE, _defrep);
             repmgr.registerReporter(ReportManager.PROFILE_TYPE, _profrep);
         }
+        repmgr.getMetrics().registerSource("invoker." + name, new MetricsRegistry.Source() {
+            public void sample (Map<String, Long> values) {
+                values.put("queueSize", (long)_queue.size());
+                values.put("unitsRun", (long)_totalUnitsRun);
+            }
+        });
     }
 
     /**
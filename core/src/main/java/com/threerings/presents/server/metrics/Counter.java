@@ -0,0 +1,64 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count, safe to update from any thread. Obtain one via {@link
+ * MetricsRegistry#counter}.
+ */
+public class Counter
+{
+    /**
+     * Adds one to this counter.
+     */
+    public void increment ()
+    {
+        _count.incrementAndGet();
+    }
+
+    /**
+     * Adds the specified amount to this counter.
+     */
+    public void add (long amount)
+    {
+        _count.addAndGet(amount);
+    }
+
+    /**
+     * Returns the current value of this counter.
+     */
+    public long get ()
+    {
+        return _count.get();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return String.valueOf(get());
+    }
+
+    protected AtomicLong _count = new AtomicLong();
+}
@@ -0,0 +1,37 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+/**
+ * Reports an instantaneous value, like a queue size, when the metrics are sampled. Gauges are
+ * sampled by exporters on their own threads, so they must be cheap and must not block.
+ *
+ * @see MetricsRegistry#registerGauge
+ */
+public interface Gauge
+{
+    /**
+     * Returns the current value of the gauge.
+     */
+    long getValue ();
+}
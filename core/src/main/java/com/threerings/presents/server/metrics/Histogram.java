@@ -0,0 +1,202 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the distribution of recorded values (typically latencies) in the manner of an HDR
+ * histogram: each power of two is split into {@link #SUB_BUCKETS} linear buckets, so percentiles
+ * are reported to within about six percent of the true value over the full range of a long, while
+ * recording is a handful of lock-free atomic increments. Obtain one via {@link
+ * MetricsRegistry#histogram}.
+ *
+ * <p> The registry periodically {@link #roll}s its histograms, and exporters report the
+ * distribution seen during the most recently completed period.
+ */
+public class Histogram
+{
+    /** A point in time view of a histogram's distribution. */
+    public static class Snapshot
+    {
+        /** The number of values recorded. */
+        public final long count;
+
+        /** The smallest and largest values recorded, or zero if none were recorded. */
+        public final long min, max;
+
+        /** The sum of all values recorded. */
+        public final long sum;
+
+        /**
+         * Returns the mean of the recorded values, or zero if none were recorded.
+         */
+        public long getMean ()
+        {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        /**
+         * Returns the value below which the specified percentage of the recorded values fall, or
+         * zero if none were recorded.
+         *
+         * @param percentile a percentage between 0 and 100.
+         */
+        public long getPercentile (double percentile)
+        {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(count * Math.min(percentile, 100) / 100));
+            long seen = 0;
+            for (int ii = 0; ii < _counts.length; ii++) {
+                seen += _counts[ii];
+                if (seen >= target) {
+                    return Math.max(min, Math.min(max, bucketMidpoint(ii)));
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "[count=" + count + ", min=" + min + ", mean=" + getMean() +
+                ", p50=" + getPercentile(50) + ", p90=" + getPercentile(90) +
+                ", p99=" + getPercentile(99) + ", max=" + max + "]";
+        }
+
+        protected Snapshot (long[] counts, long count, long sum, long min, long max)
+        {
+            _counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = (count == 0) ? 0 : min;
+            this.max = (count == 0) ? 0 : max;
+        }
+
+        protected final long[] _counts;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     */
+    public void record (long value)
+    {
+        value = Math.max(value, 0L);
+        _counts.incrementAndGet(bucketIndex(value));
+        _sum.addAndGet(value);
+        for (long min; value < (min = _min.get()) && !_min.compareAndSet(min, value); ) {
+            // retry
+        }
+        for (long max; value > (max = _max.get()) && !_max.compareAndSet(max, value); ) {
+            // retry
+        }
+    }
+
+    /**
+     * Returns a snapshot of the values recorded since the last {@link #roll}.
+     */
+    public Snapshot getCurrent ()
+    {
+        return snapshot(false);
+    }
+
+    /**
+     * Returns a snapshot of the values recorded in the period that ended with the most recent
+     * {@link #roll}, or of the values recorded thus far if the histogram has never been rolled.
+     */
+    public Snapshot getRecent ()
+    {
+        Snapshot recent = _recent;
+        return (recent == null) ? getCurrent() : recent;
+    }
+
+    /**
+     * Ends the current recording period, making its values available via {@link #getRecent}, and
+     * starts a new, empty period. A value recorded concurrently with a roll will be counted in
+     * one period or the other, though its contribution to the min and max may be lost.
+     */
+    public Snapshot roll ()
+    {
+        return (_recent = snapshot(true));
+    }
+
+    @Override
+    public String toString ()
+    {
+        return getRecent().toString();
+    }
+
+    protected Snapshot snapshot (boolean reset)
+    {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            count += (counts[ii] = reset ? _counts.getAndSet(ii, 0) : _counts.get(ii));
+        }
+        return reset ?
+            new Snapshot(counts, count, _sum.getAndSet(0), _min.getAndSet(Long.MAX_VALUE),
+                         _max.getAndSet(Long.MIN_VALUE)) :
+            new Snapshot(counts, count, _sum.get(), _min.get(), _max.get());
+    }
+
+    /**
+     * Returns the bucket into which the supplied non-negative value falls.
+     */
+    protected static int bucketIndex (long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the value in the middle of the range of values covered by the specified bucket.
+     */
+    protected static long bucketMidpoint (int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long low = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return low + ((1L << shift) >>> 1);
+    }
+
+    /** The number of linear buckets into which each power of two is divided. */
+    protected static final int SUB_BITS = 4, SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** The total number of buckets, enough to cover all non-negative longs. */
+    protected static final int BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+    protected AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    protected AtomicLong _sum = new AtomicLong();
+    protected AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+    protected AtomicLong _max = new AtomicLong(Long.MIN_VALUE);
+    protected volatile Snapshot _recent;
+}
@@ -0,0 +1,157 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Publishes the contents of a metrics registry as the read-only attributes of an MBean on the
+ * platform MBean server.
+ */
+public class JmxMetricsExporter
+    implements MetricsExporter, DynamicMBean
+{
+    /**
+     * Creates an exporter that registers itself under the default object name,
+     * <code>com.threerings.presents:type=Metrics</code>.
+     */
+    public JmxMetricsExporter ()
+    {
+        this("com.threerings.presents:type=Metrics");
+    }
+
+    /**
+     * Creates an exporter that registers itself under the supplied object name.
+     */
+    public JmxMetricsExporter (String name)
+    {
+        _name = name;
+    }
+
+    // from interface MetricsExporter
+    public void start (MetricsRegistry registry)
+    {
+        _registry = registry;
+        try {
+            _oname = new ObjectName(_name);
+            getServer().registerMBean(this, _oname);
+        } catch (Exception e) {
+            log.warning("Failed to register metrics MBean", "name", _name, e);
+            _oname = null;
+        }
+    }
+
+    // from interface MetricsExporter
+    public void stop ()
+    {
+        if (_oname != null) {
+            try {
+                getServer().unregisterMBean(_oname);
+            } catch (Exception e) {
+                log.warning("Failed to unregister metrics MBean", "name", _name, e);
+            }
+            _oname = null;
+        }
+    }
+
+    // from interface DynamicMBean
+    public Object getAttribute (String attribute)
+        throws AttributeNotFoundException
+    {
+        Long value = _registry.sample().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    // from interface DynamicMBean
+    public AttributeList getAttributes (String[] attributes)
+    {
+        Map<String, Long> values = _registry.sample();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    // from interface DynamicMBean
+    public void setAttribute (Attribute attribute)
+        throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    // from interface DynamicMBean
+    public AttributeList setAttributes (AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    // from interface DynamicMBean
+    public Object invoke (String actionName, Object[] params, String[] signature)
+    {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    // from interface DynamicMBean
+    public MBeanInfo getMBeanInfo ()
+    {
+        // the set of metrics can grow as components register, so we describe what's there now
+        Map<String, Long> values = _registry.sample();
+        MBeanAttributeInfo[] attrs = new MBeanAttributeInfo[values.size()];
+        int idx = 0;
+        for (String name : values.keySet()) {
+            attrs[idx++] = new MBeanAttributeInfo(
+                name, Long.class.getName(), name, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Presents server metrics", attrs,
+                             null, new MBeanOperationInfo[0], null);
+    }
+
+    protected MBeanServer getServer ()
+    {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+
+    protected String _name;
+    protected ObjectName _oname;
+    protected MetricsRegistry _registry;
+}
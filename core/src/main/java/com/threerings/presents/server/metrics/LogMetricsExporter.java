@@ -0,0 +1,67 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import com.samskivert.util.Interval;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Periodically logs the contents of a metrics registry.
+ */
+public class LogMetricsExporter
+    implements MetricsExporter
+{
+    /**
+     * Creates an exporter that logs the metrics every <code>interval</code> milliseconds.
+     */
+    public LogMetricsExporter (long interval)
+    {
+        _interval = interval;
+    }
+
+    // from interface MetricsExporter
+    public void start (final MetricsRegistry registry)
+    {
+        _logger = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                StringBuilder buf = new StringBuilder("Metrics:\n");
+                registry.appendText(buf);
+                log.info(buf.deleteCharAt(buf.length()-1).toString());
+            }
+        };
+        _logger.schedule(_interval, true);
+    }
+
+    // from interface MetricsExporter
+    public void stop ()
+    {
+        if (_logger != null) {
+            _logger.cancel();
+            _logger = null;
+        }
+    }
+
+    protected long _interval;
+    protected Interval _logger;
+}
@@ -0,0 +1,295 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.samskivert.util.Interval;
+import com.samskivert.util.Lifecycle;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * A registry of named counters, gauges and latency histograms into which server components
+ * record their runtime behavior, and from which {@link MetricsExporter}s publish it. Recording is
+ * lock-free and may be done from any thread.
+ *
+ * <p> Metric names are dotted paths, like <code>presents.dobjmgr.queueSize</code>. When sampled,
+ * each counter and gauge yields a single value under its name, each histogram yields its count,
+ * min, mean, max and a few percentiles under its name plus a suffix (<code>.p99</code>), and each
+ * {@link Source} yields whatever values it supplies under its prefix.
+ *
+ * <p> The following exporters may be enabled via configuration:
+ * <ul>
+ * <li> <code>presents.metrics.logInterval</code>: if non-zero, the metrics are logged every so
+ * many milliseconds.
+ * <li> <code>presents.metrics.jmx</code>: if true, the metrics are published as the attributes of
+ * a JMX MBean.
+ * <li> <code>presents.metrics.port</code>: if non-zero, the metrics are served as plain text on
+ * this port of the loopback interface.
+ * </ul>
+ */
+@Singleton
+public class MetricsRegistry
+    implements Lifecycle.Component
+{
+    /** Supplies a set of related values, generally from a stats snapshot, when sampled. */
+    public static interface Source
+    {
+        /**
+         * Adds this source's values to the supplied map. The names should not include the prefix
+         * with which the source was registered.
+         */
+        void sample (Map<String, Long> values);
+    }
+
+    /**
+     * Creates a registry that is not bound to the server lifecycle, and which will not roll its
+     * histograms until {@link #rollHistograms} is called.
+     */
+    public MetricsRegistry ()
+    {
+    }
+
+    /**
+     * Creates a registry that starts its configured exporters when the server is initialized and
+     * stops them when it shuts down.
+     */
+    @Inject public MetricsRegistry (Lifecycle cycle)
+    {
+        cycle.addComponent(this);
+    }
+
+    /**
+     * Returns the counter with the specified name, creating it if necessary.
+     */
+    public Counter counter (String name)
+    {
+        Counter counter = _counters.get(name);
+        if (counter == null) {
+            Counter ncounter = new Counter();
+            counter = _counters.putIfAbsent(name, ncounter);
+            if (counter == null) {
+                counter = ncounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the specified name, creating it if necessary.
+     */
+    public Histogram histogram (String name)
+    {
+        Histogram histo = _histograms.get(name);
+        if (histo == null) {
+            Histogram nhisto = new Histogram();
+            histo = _histograms.putIfAbsent(name, nhisto);
+            if (histo == null) {
+                histo = nhisto;
+            }
+        }
+        return histo;
+    }
+
+    /**
+     * Registers a gauge with the specified name, replacing any existing gauge of that name.
+     */
+    public void registerGauge (String name, Gauge gauge)
+    {
+        _gauges.put(name, gauge);
+    }
+
+    /**
+     * Registers a source whose values will be named with the supplied prefix (and a dot),
+     * replacing any existing source with that prefix.
+     */
+    public void registerSource (String prefix, Source source)
+    {
+        _sources.put(prefix, source);
+    }
+
+    /**
+     * Removes any counter, histogram, gauge or source registered with the specified name.
+     */
+    public void remove (String name)
+    {
+        _counters.remove(name);
+        _histograms.remove(name);
+        _gauges.remove(name);
+        _sources.remove(name);
+    }
+
+    /**
+     * Adds and starts an exporter.
+     */
+    public void addExporter (MetricsExporter exporter)
+    {
+        _exporters.add(exporter);
+        exporter.start(this);
+    }
+
+    /**
+     * Stops and removes an exporter.
+     */
+    public void removeExporter (MetricsExporter exporter)
+    {
+        if (_exporters.remove(exporter)) {
+            exporter.stop();
+        }
+    }
+
+    /**
+     * Returns the current value of all metrics, sorted by name. Histograms report on their most
+     * recently completed period.
+     */
+    public SortedMap<String, Long> sample ()
+    {
+        SortedMap<String, Long> values = Maps.newTreeMap();
+        for (Map.Entry<String, Counter> entry : _counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : _gauges.entrySet()) {
+            try {
+                values.put(entry.getKey(), entry.getValue().getValue());
+            } catch (Throwable t) {
+                log.warning("Gauge choked", "name", entry.getKey(), t);
+            }
+        }
+        for (Map.Entry<String, Histogram> entry : _histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram.Snapshot snap = entry.getValue().getRecent();
+            values.put(name + ".count", snap.count);
+            values.put(name + ".min", snap.min);
+            values.put(name + ".mean", snap.getMean());
+            values.put(name + ".p50", snap.getPercentile(50));
+            values.put(name + ".p90", snap.getPercentile(90));
+            values.put(name + ".p99", snap.getPercentile(99));
+            values.put(name + ".p999", snap.getPercentile(99.9));
+            values.put(name + ".max", snap.max);
+        }
+        Map<String, Long> svalues = Maps.newHashMap();
+        for (Map.Entry<String, Source> entry : _sources.entrySet()) {
+            try {
+                svalues.clear();
+                entry.getValue().sample(svalues);
+                for (Map.Entry<String, Long> sentry : svalues.entrySet()) {
+                    values.put(entry.getKey() + "." + sentry.getKey(), sentry.getValue());
+                }
+            } catch (Throwable t) {
+                log.warning("Metrics source choked", "prefix", entry.getKey(), t);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Appends the current value of all metrics to the supplied buffer, one per line in the form
+     * <code>name value</code>.
+     */
+    public void appendText (StringBuilder buf)
+    {
+        for (Map.Entry<String, Long> entry : sample().entrySet()) {
+            buf.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+    }
+
+    /**
+     * Ends the current recording period of all histograms.
+     */
+    public void rollHistograms ()
+    {
+        for (Histogram histo : _histograms.values()) {
+            histo.roll();
+        }
+    }
+
+    // from interface Lifecycle.InitComponent
+    public void init ()
+    {
+        _roller = new Interval(Interval.RUN_DIRECT) {
+            @Override public void expired () {
+                rollHistograms();
+            }
+        };
+        _roller.schedule(_rollInterval, true);
+
+        if (_logInterval > 0) {
+            addExporter(new LogMetricsExporter(_logInterval));
+        }
+        if (_jmx) {
+            addExporter(new JmxMetricsExporter());
+        }
+        if (_port > 0) {
+            addExporter(new TextMetricsExporter(_port));
+        }
+    }
+
+    // from interface Lifecycle.ShutdownComponent
+    public void shutdown ()
+    {
+        if (_roller != null) {
+            _roller.cancel();
+            _roller = null;
+        }
+        for (MetricsExporter exporter : _exporters) {
+            removeExporter(exporter);
+        }
+    }
+
+    protected ConcurrentMap<String, Counter> _counters = new ConcurrentHashMap<String, Counter>();
+    protected ConcurrentMap<String, Histogram> _histograms =
+        new ConcurrentHashMap<String, Histogram>();
+    protected ConcurrentMap<String, Gauge> _gauges = new ConcurrentHashMap<String, Gauge>();
+    protected ConcurrentMap<String, Source> _sources = new ConcurrentHashMap<String, Source>();
+    protected List<MetricsExporter> _exporters = new CopyOnWriteArrayList<MetricsExporter>();
+
+    /** Rolls our histograms over at the end of each period. */
+    protected Interval _roller;
+
+    /** The length of a histogram recording period in milliseconds. */
+    @Inject(optional=true) @Named("presents.metrics.rollInterval")
+    protected long _rollInterval = 60 * 1000L;
+
+    /** How often to log our metrics, in milliseconds, or zero not to. */
+    @Inject(optional=true) @Named("presents.metrics.logInterval")
+    protected long _logInterval = 0L;
+
+    /** Whether to publish our metrics via JMX. */
+    @Inject(optional=true) @Named("presents.metrics.jmx")
+    protected boolean _jmx = false;
+
+    /** The loopback port on which to serve our metrics as text, or zero not to. */
+    @Inject(optional=true) @Named("presents.metrics.port")
+    protected int _port = 0;
+}
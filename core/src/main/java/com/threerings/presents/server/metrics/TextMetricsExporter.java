@@ -0,0 +1,154 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import static com.threerings.presents.Log.log;
+
+/**
+ * Serves the contents of a metrics registry as plain text to anything that connects to a port on
+ * the loopback interface. The response is a minimal HTTP response, so the metrics can be fetched
+ * with a web browser, <code>curl</code> or a monitoring agent, and a raw connection (via
+ * <code>nc</code>, say) shows the same text after the headers.
+ */
+public class TextMetricsExporter
+    implements MetricsExporter
+{
+    /**
+     * Creates an exporter that will listen on the specified port of the loopback interface.
+     */
+    public TextMetricsExporter (int port)
+    {
+        _port = port;
+    }
+
+    /**
+     * Returns the port on which we are listening, or -1 if we are not.
+     */
+    public int getLocalPort ()
+    {
+        ServerSocket ssock = _ssock;
+        return (ssock == null) ? -1 : ssock.getLocalPort();
+    }
+
+    // from interface MetricsExporter
+    public void start (final MetricsRegistry registry)
+    {
+        try {
+            _ssock = new ServerSocket();
+            _ssock.bind(new InetSocketAddress(InetAddress.getByName(null), _port));
+        } catch (IOException ioe) {
+            log.warning("Failed to bind metrics port", "port", _port, ioe);
+            _ssock = null;
+            return;
+        }
+
+        Thread server = new Thread("MetricsExporter") {
+            @Override public void run () {
+                ServerSocket ssock;
+                while ((ssock = _ssock) != null) {
+                    try {
+                        serve(ssock.accept(), registry);
+                    } catch (IOException ioe) {
+                        if (_ssock != null) {
+                            log.warning("Failed to serve metrics", "error", ioe);
+                        }
+                    }
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+        log.info("Serving metrics", "port", getLocalPort());
+    }
+
+    // from interface MetricsExporter
+    public void stop ()
+    {
+        ServerSocket ssock = _ssock;
+        _ssock = null;
+        if (ssock != null) {
+            try {
+                ssock.close();
+            } catch (IOException ioe) {
+                log.warning("Failed to close metrics socket", "error", ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics to the supplied socket and closes it. We have only one thing to say, so
+     * the request is read only so that closing the socket doesn't reset the connection.
+     */
+    protected void serve (Socket sock, MetricsRegistry registry)
+        throws IOException
+    {
+        try {
+            skipRequest(sock);
+            StringBuilder body = new StringBuilder();
+            registry.appendText(body);
+            byte[] data = body.toString().getBytes("UTF-8");
+            String header = "HTTP/1.0 200 OK\r\n" +
+                "Content-Type: text/plain; charset=utf-8\r\n" +
+                "Content-Length: " + data.length + "\r\n\r\n";
+            OutputStream out = sock.getOutputStream();
+            out.write(header.getBytes("US-ASCII"));
+            out.write(data);
+            out.flush();
+        } finally {
+            sock.close();
+        }
+    }
+
+    /**
+     * Reads until the end of the request headers, end of stream or a short timeout.
+     */
+    protected void skipRequest (Socket sock)
+        throws IOException
+    {
+        sock.setSoTimeout(REQUEST_TIMEOUT);
+        InputStream in = sock.getInputStream();
+        try {
+            for (int ii = 0, crlfs = 0, c; ii < MAX_REQUEST && crlfs < 4 && (c = in.read()) >= 0;
+                 ii++) {
+                crlfs = (c == '\r' || c == '\n') ? crlfs + 1 : 0;
+            }
+        } catch (SocketTimeoutException ste) {
+            // no proper request; answer anyway
+        }
+    }
+
+    protected int _port;
+    protected volatile ServerSocket _ssock;
+
+    /** The maximum number of milliseconds to wait for a request, and bytes to read from one. */
+    protected static final int REQUEST_TIMEOUT = 1000, MAX_REQUEST = 8192;
+}
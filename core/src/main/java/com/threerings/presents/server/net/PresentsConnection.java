@@ -38,6 +38,7 @@ import com.threerings.io.FramingOutputStream;
 import com.threerings.io.ObjectInputStream;
 import com.threerings.io.ObjectOutputStream;
 
+import com.threerings.presents.net.AuthRequest;
 import com.threerings.presents.net.Message;
 import com.threerings.presents.util.DatagramSequencer;
 
@@ -219,7 +220,7 @@ public class PresentsConnection extends Connection
             // we're lazy about creating our input streams because we may be inheriting them from
             // our authing connection and we don't want to unnecessarily create them in that case
             if (_fin == null) {
-                _oin = createObjectInputStream(_fin = new FramedInputStream());
+                _oin = createObjectInputStream(_fin = createFramedInputStream());
                 if (_loader != null) {
                     _oin.setClassLoader(_loader);
                 }
@@ -234,6 +235,11 @@ public class PresentsConnection extends Connection
                 // parse the message and pass it on
                 Message msg = (Message)_oin.readObject();
                 msg.received = when;
+                if (msg instanceof AuthRequest && _fin.available() >= 4) {
+                    // newer clients follow their auth request with their capabilities
+                    int caps = _oin.readInt();
+                    _compressFrames = (caps & AuthRequest.COMPRESSED_FRAMES) != 0;
+                }
 //                 Log.info("Read message " + msg + ".");
                 _handler.handleMessage(msg);
             }
@@ -261,6 +267,16 @@ public class PresentsConnection extends Connection
         return bytesIn;
     }
 
+    @Override
+    protected void closeSocket ()
+    {
+        // whether we're closed or have failed, we won't be reading any more frames
+        if (_channel != null && _fin != null) {
+            releaseFramedInputStream(_fin);
+        }
+        super.closeSocket();
+    }
+
     /**
      * Returns the object input stream associated with this connection.  This should only be used
      * by the connection manager.
@@ -289,6 +305,8 @@ public class PresentsConnection extends Connection
         _fin = other._fin;
         _oin = other._oin;
         _oout = other._oout;
+        _encoder = other._encoder;
+        _compressFrames = other._compressFrames;
         if (_loader != null) {
             _oin.setClassLoader(_loader);
         }
@@ -330,6 +348,14 @@ public class PresentsConnection extends Connection
     protected ObjectInputStream _oin;
     protected ObjectOutputStream _oout;
 
+    /** The encoder thread that frames our outgoing messages, if the connection manager is using
+     * them. Assigned by the connection manager on the dobjmgr thread, but also read on the conmgr
+     * thread. */
+    protected volatile PresentsConnectionManager.Encoder _encoder;
+
+    /** Whether our client can read compressed frames. Used only by the connection manager. */
+    protected boolean _compressFrames;
+
     protected InetSocketAddress _datagramAddress;
     protected DatagramChannel _datagramChannel;
     protected byte[] _datagramSecret;
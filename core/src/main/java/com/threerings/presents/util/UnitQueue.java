@@ -0,0 +1,204 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free queue into which any number of threads may append, but from which only a single
+ * thread may remove. Appending never blocks and never acquires a monitor: each append is a single
+ * atomic swap of the queue's tail. The consumer removes elements one at a time or in batches and
+ * parks (rather than waiting on a monitor) when the queue is empty; appenders only unpark it if it
+ * is actually parked. Null elements are not allowed. Each element is stamped with the time at which
+ * it was appended, so that the consumer can measure how long elements wait in the queue.
+ */
+public class UnitQueue<T>
+{
+    /**
+     * Appends an element to the queue. This may be called from any thread.
+     */
+    public void append (T element)
+    {
+        if (element == null) {
+            throw new NullPointerException("Null elements are not allowed.");
+        }
+        // count the element before linking it so that our size never underestimates
+        _size.incrementAndGet();
+        Node<T> node = new Node<T>(element, System.nanoTime());
+        Node<T> prev = _tail.getAndSet(node);
+        // there's a brief window here in which the consumer cannot see this node (or any appended
+        // after it); the consumer treats that as empty, and we unpark it below if needed
+        prev.next = node;
+
+        if (_parked) {
+            LockSupport.unpark(_consumer);
+        }
+    }
+
+    /**
+     * Removes and returns the element at the head of the queue, blocking until one is available.
+     * This must only be called by the consumer thread.
+     */
+    public T get ()
+    {
+        T element;
+        while ((element = getNonBlocking()) == null) {
+            waitForElements();
+        }
+        return element;
+    }
+
+    /**
+     * Removes and returns the element at the head of the queue, or returns null if the queue is
+     * empty. This must only be called by the consumer thread.
+     */
+    public T getNonBlocking ()
+    {
+        Node<T> next = _head.next;
+        if (next == null) {
+            return null;
+        }
+        T element = next.element;
+        next.element = null;
+        _head = next;
+        _size.decrementAndGet();
+        return element;
+    }
+
+    /**
+     * Removes up to the specified number of elements from the queue and adds them to the supplied
+     * collection, without blocking. This must only be called by the consumer thread.
+     *
+     * @return the number of elements removed.
+     */
+    public int drainTo (Collection<? super T> into, int max)
+    {
+        return drainTo(into, max, null);
+    }
+
+    /**
+     * Removes up to the specified number of elements from the queue and adds them to the supplied
+     * collection, without blocking, and notes the {@link System#nanoTime} at which each was
+     * appended. This must only be called by the consumer thread.
+     *
+     * @param stamps if non-null, the append time of the <code>ii</code>th element removed is
+     * stored in <code>stamps[ii]</code>. It must be at least <code>max</code> long.
+     *
+     * @return the number of elements removed.
+     */
+    public int drainTo (Collection<? super T> into, int max, long[] stamps)
+    {
+        Node<T> head = _head;
+        int count = 0;
+        for (Node<T> next; count < max && (next = head.next) != null; count++) {
+            into.add(next.element);
+            if (stamps != null) {
+                stamps[count] = next.stamp;
+            }
+            next.element = null;
+            head = next;
+        }
+        if (count > 0) {
+            _head = head;
+            _size.addAndGet(-count);
+        }
+        return count;
+    }
+
+    /**
+     * Blocks until the queue has at least one element. This must only be called by the consumer
+     * thread.
+     */
+    public void waitForElements ()
+    {
+        if (_head.next != null) {
+            return;
+        }
+        _consumer = Thread.currentThread();
+        _parked = true;
+        try {
+            // appenders check _parked after linking their node, so either we see their node here
+            // or they see that we're parked and unpark us
+            while (_head.next == null) {
+                LockSupport.park(this);
+                // clear any interrupt, lest we spin; like Queue.get() we don't abort on interrupt
+                Thread.interrupted();
+            }
+        } finally {
+            _parked = false;
+        }
+    }
+
+    /**
+     * Returns true if the queue contains elements. This may be called from any thread, but the
+     * result is only a snapshot.
+     */
+    public boolean hasElements ()
+    {
+        return _size.get() > 0;
+    }
+
+    /**
+     * Returns the number of elements in the queue. This may be called from any thread, but the
+     * result is only a snapshot and may briefly include elements that are still being appended.
+     */
+    public int size ()
+    {
+        return _size.get();
+    }
+
+    /** A node in our linked list. */
+    protected static class Node<T>
+    {
+        /** The element, which is cleared when the node is consumed. */
+        public T element;
+
+        /** The time at which the element was appended, per {@link System#nanoTime}. */
+        public final long stamp;
+
+        /** The next node, written by the appender of said node. */
+        public volatile Node<T> next;
+
+        public Node (T element, long stamp)
+        {
+            this.element = element;
+            this.stamp = stamp;
+        }
+    }
+
+    /** The most recently consumed node (initially a dummy), accessed only by the consumer. */
+    protected Node<T> _head = new Node<T>(null, 0L);
+
+    /** The most recently appended node. */
+    protected final AtomicReference<Node<T>> _tail = new AtomicReference<Node<T>>(_head);
+
+    /** The number of elements in the queue. */
+    protected final AtomicInteger _size = new AtomicInteger();
+
+    /** The consumer thread, set before it parks. */
+    protected volatile Thread _consumer;
+
+    /** Whether the consumer is (about to be) parked waiting for elements. */
+    protected volatile boolean _parked;
+}
@@ -0,0 +1,105 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the writing and reading of compressed frames.
+ */
+public class CompressedFrameTest
+{
+    @Test public void testRoundTrip ()
+        throws IOException
+    {
+        FramingOutputStream fout = new FramingOutputStream();
+        DataOutputStream dout = new DataOutputStream(fout);
+        Pipe pipe = Pipe.open();
+
+        // a big repetitive frame should be compressed
+        writeStrings(dout, BIG_COUNT);
+        dout.flush();
+        int rawLength = fout.getBuffer().position();
+        ByteBuffer buffer = fout.frameAndReturnBuffer(THRESHOLD);
+        assertTrue(buffer.limit() < rawLength);
+        assertTrue((buffer.getInt(0) & FramingOutputStream.COMPRESSED) != 0);
+        write(pipe, buffer);
+        fout.resetFrame();
+
+        // a small frame should go out as is
+        writeStrings(dout, 1);
+        dout.flush();
+        rawLength = fout.getBuffer().position();
+        buffer = fout.frameAndReturnBuffer(THRESHOLD);
+        assertEquals(rawLength, buffer.limit());
+        assertEquals(rawLength, buffer.getInt(0));
+        write(pipe, buffer);
+        fout.resetFrame();
+
+        // and the compressor should be reusable
+        writeStrings(dout, BIG_COUNT);
+        dout.flush();
+        write(pipe, fout.frameAndReturnBuffer(THRESHOLD));
+        fout.resetFrame();
+
+        FramedInputStream fin = new FramedInputStream();
+        DataInputStream din = new DataInputStream(fin);
+        for (int count : new int[] { BIG_COUNT, 1, BIG_COUNT }) {
+            while (!fin.readFrame(pipe.source())) {
+                // keep reading
+            }
+            for (int ii = 0; ii < count; ii++) {
+                assertEquals(STRING + ii, din.readUTF());
+            }
+            assertEquals(-1, fin.read());
+        }
+    }
+
+    protected static void writeStrings (DataOutputStream dout, int count)
+        throws IOException
+    {
+        for (int ii = 0; ii < count; ii++) {
+            dout.writeUTF(STRING + ii);
+        }
+    }
+
+    protected static void write (Pipe pipe, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            pipe.sink().write(buffer);
+        }
+    }
+
+    protected static final String STRING = "The quick brown fox jumps over the lazy dog ";
+    protected static final int BIG_COUNT = 200;
+    protected static final int THRESHOLD = 256;
+}
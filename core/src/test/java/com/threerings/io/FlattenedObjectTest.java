@@ -0,0 +1,168 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.io.StreamableTest.Widget;
+import com.threerings.io.StreamableTest.Wocket;
+
+/**
+ * Tests the {@link FlattenedObject} class.
+ */
+public class FlattenedObjectTest
+{
+    @Test
+    public void testSameBytes ()
+        throws IOException
+    {
+        FlattenedObject flat = FlattenedObject.flatten(new Widget());
+
+        // write to a fresh stream and to streams that already have some class mappings and
+        // interns, and make sure we produce exactly what writeObject() would have
+        for (int primed = 0; primed < 3; primed++) {
+            ByteArrayOutputStream eout = new ByteArrayOutputStream();
+            ObjectOutputStream expect = new ObjectOutputStream(eout);
+            ByteArrayOutputStream aout = new ByteArrayOutputStream();
+            ObjectOutputStream actual = new ObjectOutputStream(aout);
+            for (int ii = 0; ii < primed; ii++) {
+                prime(expect);
+                prime(actual);
+            }
+            expect.writeObject(new Widget());
+            actual.writeFlattened(flat);
+            assertArrayEquals(eout.toByteArray(), aout.toByteArray());
+        }
+    }
+
+    @Test
+    public void testRepeatedWrites ()
+        throws IOException, ClassNotFoundException
+    {
+        Widget w = new Widget();
+        FlattenedObject flat = FlattenedObject.flatten(w);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeFlattened(flat);
+        oout.writeFlattened(flat);
+        oout.writeObject(w);
+
+        ObjectInputStream oin = new ObjectInputStream(
+            new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(w, oin.readObject());
+        assertEquals(w, oin.readObject());
+        assertEquals(w, oin.readObject());
+    }
+
+    @Test
+    public void testWriteObject ()
+        throws IOException, ClassNotFoundException
+    {
+        Widget w = new Widget();
+        FlattenedObject flat = FlattenedObject.flatten(w);
+
+        // a flattened object written via writeObject(), alone, nested in an array or flattened
+        // again, should produce exactly the bytes of the original object
+        ByteArrayOutputStream eout = new ByteArrayOutputStream();
+        ObjectOutputStream expect = new ObjectOutputStream(eout);
+        ByteArrayOutputStream aout = new ByteArrayOutputStream();
+        ObjectOutputStream actual = new ObjectOutputStream(aout);
+        prime(expect);
+        prime(actual);
+        expect.writeObject(w);
+        actual.writeObject(flat);
+        expect.writeObject(new Object[] { w, "monkey butter", w });
+        actual.writeObject(new Object[] { flat, "monkey butter", flat });
+        expect.writeObject(w);
+        actual.writeFlattened(FlattenedObject.flatten(flat));
+        assertArrayEquals(eout.toByteArray(), aout.toByteArray());
+
+        assertEquals(w, flat.unflatten());
+        assertNotSame(flat.unflatten(), flat.unflatten());
+    }
+
+    @Test
+    public void testReentrantFlatten ()
+        throws IOException, ClassNotFoundException
+    {
+        // a failed flatten leaves nothing behind for the next one
+        try {
+            FlattenedObject.flatten(new Object[] { new Widget(), new Object() });
+            fail("Unstreamable object was flattened");
+        } catch (IOException ioe) {
+            // expected
+        }
+
+        // nor does flattening an object that itself flattens something while being written
+        Nester nester = new Nester();
+        FlattenedObject flat = FlattenedObject.flatten(nester);
+        ByteArrayOutputStream eout = new ByteArrayOutputStream();
+        new ObjectOutputStream(eout).writeObject(nester);
+        ByteArrayOutputStream aout = new ByteArrayOutputStream();
+        new ObjectOutputStream(aout).writeFlattened(flat);
+        assertArrayEquals(eout.toByteArray(), aout.toByteArray());
+        assertEquals(nester.widget, nester.flat.unflatten());
+        assertEquals(nester.widget, ((Nester)flat.unflatten()).widget);
+    }
+
+    @Test
+    public void testNull ()
+        throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeFlattened(FlattenedObject.flatten(null));
+        assertNull(new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject());
+    }
+
+    public static class Nester extends SimpleStreamableObject
+    {
+        public Widget widget = new Widget();
+        public transient FlattenedObject flat;
+
+        public void writeObject (ObjectOutputStream out)
+            throws IOException
+        {
+            flat = FlattenedObject.flatten(widget);
+            out.defaultWriteObject();
+        }
+
+        public void readObject (ObjectInputStream in)
+            throws IOException, ClassNotFoundException
+        {
+            in.defaultReadObject();
+        }
+    }
+
+    protected static void prime (ObjectOutputStream oout)
+        throws IOException
+    {
+        oout.writeObject(new Wocket());
+        oout.writeIntern("monkey butter");
+    }
+}
@@ -383,6 +383,32 @@ public class StreamableTest
         assertEquals(w, unflatten(flatten(w)));
     }
 
+    @Test
+    public void testGeneratedMarshaller ()
+        throws IOException, ClassNotFoundException
+    {
+        // a class with no fields to stream is streamed reflectively, without disabling generation
+        // for the classes streamed after it
+        assertNull(new Streamer.ClassStreamer(Marker.class)._cmarsh);
+        assertTrue(unflatten(flatten(new Marker())) instanceof Marker);
+
+        Streamer.ClassStreamer generated = new Streamer.ClassStreamer(Widget.class);
+        Streamer.ClassStreamer reflective = new Streamer.ClassStreamer(Widget.class);
+        assertNotNull(generated._cmarsh);
+        reflective._cmarsh = null;
+
+        // the generated marshaller must produce exactly what reflective streaming produces
+        Widget w = new Widget();
+        byte[] gdata = flattenWith(generated, w), rdata = flattenWith(reflective, w);
+        assertArrayEquals(rdata, gdata);
+
+        // and must be able to read it back
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(rdata));
+        Object rw = generated.createObject(in);
+        generated.readObject(rw, in, true);
+        assertEquals(w, rw);
+    }
+
     @Test
     public void testPostStreamingMutation ()
         throws IOException, ClassNotFoundException
@@ -476,6 +502,10 @@ public class StreamableTest
         assertEquals(act.act(), react.act());
     }
 
+    protected static class Marker implements Streamable
+    {
+    }
+
     protected static class LegacyClosure implements Streamable.Closure
     {
         public int arg;
@@ -509,6 +539,16 @@ public class StreamableTest
         return bout.toByteArray();
     }
 
+    protected static byte[] flattenWith (Streamer streamer, Object object)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        streamer.writeObject(object, oout, true);
+        oout.flush();
+        return bout.toByteArray();
+    }
+
     protected static Object unflatten (byte[] data)
         throws IOException, ClassNotFoundException
     {
@@ -0,0 +1,103 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Compares the speed of streaming objects via reflection and via generated {@link
+ * ClassMarshaller}s. Run via <code>main</code>; this is not a unit test.
+ */
+public class StreamerBenchmark
+{
+    /** A typical small message payload. */
+    public static class Payload extends SimpleStreamableObject
+    {
+        public int oid = 42;
+        public short type = 7;
+        public boolean flag = true;
+        public long stamp = System.currentTimeMillis();
+        public float x = 1.5f, y = 2.5f;
+        public String name = "payload";
+        @Intern public String key = "monkey butter";
+        public Date when = new Date(42L);
+        public int[] values = { 1, 2, 3, 4, 5 };
+        public Integer boxed = 99;
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        int iters = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        run(new Payload(), iters);
+        run(new StreamableTest.Widget(), iters / 20);
+    }
+
+    protected static void run (Object object, int iters)
+        throws Exception
+    {
+        Streamer.ClassStreamer generated = new Streamer.ClassStreamer(object.getClass());
+        Streamer.ClassStreamer reflective = new Streamer.ClassStreamer(object.getClass());
+        reflective._cmarsh = null;
+        if (generated._cmarsh == null) {
+            System.out.println("Marshaller generation is not available.");
+        }
+
+        // warm up both paths, then measure
+        for (int ii = 0; ii < 2; ii++) {
+            time(reflective, object, iters);
+            time(generated, object, iters);
+        }
+        long rtime = time(reflective, object, iters);
+        long gtime = time(generated, object, iters);
+        System.out.println(object.getClass().getSimpleName() + " x" + iters +
+                           ": reflective " + rtime + "ms, generated " + gtime + "ms.");
+    }
+
+    protected static long time (Streamer streamer, Object object, int iters)
+        throws IOException, ClassNotFoundException
+    {
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        for (int ii = 0; ii < iters; ii += BATCH) {
+            bout.reset();
+            ObjectOutputStream out = new ObjectOutputStream(bout);
+            for (int bb = 0; bb < BATCH; bb++) {
+                streamer.writeObject(object, out, true);
+            }
+            out.flush();
+
+            ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bout.toByteArray()));
+            for (int bb = 0; bb < BATCH; bb++) {
+                streamer.readObject(streamer.createObject(in), in, true);
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /** The number of objects written to each stream. */
+    protected static final int BATCH = 100;
+}
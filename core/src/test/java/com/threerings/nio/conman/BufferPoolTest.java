@@ -0,0 +1,99 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link BufferPool} class.
+ */
+public class BufferPoolTest
+{
+    @Test
+    public void testSizeClasses ()
+    {
+        BufferPool pool = new BufferPool(1000, 60 * 1024, 1024 * 1024);
+        assertEquals(64 * 1024, pool.getMaxSize());
+
+        ByteBuffer buf = pool.acquire(1);
+        assertTrue(buf.isDirect());
+        assertEquals(1024, buf.capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+        assertEquals(64 * 1024, pool.acquire(64 * 1024).capacity());
+
+        try {
+            pool.acquire(64 * 1024 + 1);
+            fail("Acquired a buffer larger than the maximum size");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReuse ()
+    {
+        BufferPool pool = new BufferPool(1024, 4096, 4096);
+        ByteBuffer buf = pool.acquire(2000);
+        buf.put(new byte[100]);
+        pool.release(buf);
+        assertEquals(1, pool.getAllocations());
+
+        // the same buffer comes back, cleared
+        ByteBuffer again = pool.acquire(1500);
+        assertSame(buf, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        assertEquals(1, pool.getAllocations());
+
+        // but a buffer of another size class must be allocated
+        pool.acquire(100);
+        assertEquals(2, pool.getAllocations());
+    }
+
+    @Test
+    public void testLimits ()
+    {
+        // we retain at most 4096 bytes' worth of buffers in each size class
+        BufferPool pool = new BufferPool(1024, 4096, 4096);
+        ByteBuffer[] bufs = new ByteBuffer[6];
+        for (int ii = 0; ii < bufs.length; ii++) {
+            bufs[ii] = pool.acquire(1024);
+        }
+        for (ByteBuffer buf : bufs) {
+            pool.release(buf);
+        }
+        for (int ii = 0; ii < bufs.length; ii++) {
+            pool.acquire(1024);
+        }
+        assertEquals(bufs.length + 2, pool.getAllocations());
+
+        // buffers that didn't come from the pool are ignored
+        pool.release(ByteBuffer.allocateDirect(1000));
+        pool.release(ByteBuffer.allocateDirect(8192));
+        pool.acquire(1000);
+        assertEquals(bufs.length + 3, pool.getAllocations());
+    }
+}
@@ -0,0 +1,388 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.samskivert.util.Lifecycle;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ConnectionManager}'s handling of connections and outgoing messages.
+ */
+public class ConnectionManagerTest
+{
+    @After
+    public void closeSockets ()
+        throws IOException
+    {
+        if (_peer != null) {
+            _peer.close();
+        }
+        if (_server != null) {
+            _server.close();
+        }
+    }
+
+    @Test
+    public void testGatheringWrite ()
+        throws Exception
+    {
+        TestConnectionManager cmgr = new TestConnectionManager();
+        Connection conn = connect(cmgr, 0);
+
+        // a few small frames and one that spans several pooled buffers
+        List<byte[]> msgs = Lists.newArrayList(
+            frame(1, 10), frame(2, 1000), frame(3, 150 * 1024), frame(4, 7));
+        Reader reader = new Reader(total(msgs));
+        for (byte[] msg : msgs) {
+            cmgr.queueMessage(conn, msg);
+        }
+        flush(cmgr);
+        assertArrayEquals(concat(msgs), reader.await());
+
+        // everything was written, and the buffers went back to the pool
+        ConMgrStats stats = cmgr.getStats();
+        assertEquals(msgs.size(), stats.msgsOut);
+        assertEquals(total(msgs), stats.bytesOut);
+        int allocs = cmgr._mainLoop._bufpool.getAllocations();
+        assertTrue(allocs > 0);
+        cmgr.queueMessage(conn, frame(5, 150 * 1024));
+        reader = new Reader(150 * 1024);
+        flush(cmgr);
+        reader.await();
+        assertEquals(allocs, cmgr._mainLoop._bufpool.getAllocations());
+    }
+
+    @Test
+    public void testPartialWrite ()
+        throws Exception
+    {
+        TestConnectionManager cmgr = new TestConnectionManager();
+        Connection conn = connect(cmgr, 4096);
+
+        // queue up more than the socket can take, an asynchronous close and a final frame
+        List<byte[]> msgs = Lists.newArrayList();
+        for (int ii = 0; ii < 64; ii++) {
+            msgs.add(frame(ii, 16 * 1024));
+        }
+        byte[] last = frame(99, 100);
+        for (byte[] msg : msgs) {
+            cmgr.queueMessage(conn, msg);
+        }
+        cmgr.postAsyncClose(conn);
+        cmgr.queueMessage(conn, last);
+        cmgr.sendOutgoingMessages(System.currentTimeMillis());
+
+        // the remainder should be waiting in an overflow queue behind the leftover buffers
+        ConnectionManager.OverflowQueue oqueue = cmgr._oflowqs.get(conn);
+        assertNotNull(oqueue);
+        assertTrue(conn.isBackedUp());
+        assertSame(ConnectionManager.ASYNC_CLOSE_REQUEST, oqueue.get(oqueue.size()-2));
+        assertSame(last, oqueue.get(oqueue.size()-1));
+
+        // only a limited amount of the backlog was copied into direct buffers
+        int partial = 0;
+        for (ByteBuffer buffer : oqueue._partial) {
+            partial += buffer.capacity();
+        }
+        assertTrue(partial <= ConnectionManager.MAX_GATHER_BUFFERS *
+                   cmgr._mainLoop._bufpool.getMaxSize());
+        assertTrue(oqueue.size() > msgs.size() / 2);
+
+        // once the peer starts reading, all of the frames go out in order and then we close
+        msgs.add(last);
+        Reader reader = new Reader(total(msgs));
+        flush(cmgr);
+        assertFalse(conn.isBackedUp());
+        assertArrayEquals(concat(msgs), reader.await());
+        cmgr._mainLoop.closeDeadConnections();
+        assertTrue(conn.isClosed());
+    }
+
+    @Test
+    public void testIOThreads ()
+        throws Exception
+    {
+        TestConnectionManager cmgr = new TestConnectionManager();
+        cmgr._ioThreads = 2;
+        cmgr._nextIOThread = Integer.MAX_VALUE; // make sure we cope with the counter wrapping
+        ServerSocketChannelAcceptor acceptor =
+            new ServerSocketChannelAcceptor("127.0.0.1", new int[] { 0 }, cmgr);
+        assertTrue(acceptor.bind());
+        InetSocketAddress addr = new InetSocketAddress(
+            "127.0.0.1", acceptor._ssockets.get(0).socket().getLocalPort());
+        cmgr.start();
+        try {
+            // accepted sockets are distributed among the selector threads, which read from them
+            List<SocketChannel> clients = Lists.newArrayList();
+            for (int ii = 0; ii < 4; ii++) {
+                SocketChannel client = SocketChannel.open(addr);
+                client.write(ByteBuffer.wrap(new byte[] { (byte)ii }));
+                clients.add(client);
+            }
+            waitFor(cmgr, 4, 1 + 4);
+            TestConnection[] conns = new TestConnection[4];
+            Set<Thread> threads = Sets.newHashSet();
+            for (TestConnection conn : cmgr.conns) {
+                while (conn.reader == null) {
+                    Thread.sleep(5);
+                }
+                assertSame(conn._ioloop.thread, conn.reader);
+                threads.add(conn.reader);
+                conns[conn.ident] = conn;
+            }
+            assertEquals(2, threads.size());
+            assertFalse(threads.contains(cmgr));
+
+            // messages are written by the thread that services each connection
+            for (int ii = 0; ii < 4; ii++) {
+                cmgr.queueMessage(conns[ii], frame(ii, 100));
+            }
+            for (int ii = 0; ii < 4; ii++) {
+                ByteBuffer buf = ByteBuffer.allocate(100);
+                while (buf.hasRemaining()) {
+                    assertTrue(clients.get(ii).read(buf) > 0);
+                }
+                assertArrayEquals(frame(ii, 100), buf.array());
+            }
+
+            // connections are closed when the other end goes away, when queued for closure and
+            // when closed directly from another thread
+            clients.get(0).close();
+            cmgr.closeConnection(conns[1]);
+            conns[2].close();
+            waitFor(cmgr, 4, 1 + 1);
+            for (int ii = 1; ii < 3; ii++) {
+                assertEquals(-1, clients.get(ii).read(ByteBuffer.allocate(1)));
+            }
+            assertEquals(3, cmgr.getStats().closes);
+            assertFalse(conns[3].isClosed());
+
+        } finally {
+            acceptor.shutdown();
+            cmgr.shutdown();
+            cmgr.join(10000L);
+        }
+        assertFalse(cmgr.isAlive());
+        for (ConnectionManager.IOThread iothread : cmgr._iothreads) {
+            assertFalse(iothread.isAlive());
+        }
+    }
+
+    /**
+     * Creates a connection to a socket of our own, registered with the supplied connection
+     * manager's main loop, optionally shrinking its socket buffers.
+     */
+    protected Connection connect (ConnectionManager cmgr, int bufferSize)
+        throws IOException
+    {
+        _server = ServerSocketChannel.open();
+        _server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        _peer = SocketChannel.open();
+        if (bufferSize > 0) {
+            _peer.socket().setReceiveBufferSize(bufferSize);
+        }
+        _peer.connect(_server.socket().getLocalSocketAddress());
+        SocketChannel channel = _server.accept();
+        if (bufferSize > 0) {
+            channel.socket().setSendBufferSize(bufferSize);
+        }
+        channel.configureBlocking(false);
+        Connection conn = new TestConnection();
+        cmgr.handleAcceptedSocket(channel, conn);
+        return conn;
+    }
+
+    /**
+     * Sends outgoing messages until no overflow queues remain.
+     */
+    protected void flush (ConnectionManager cmgr)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000L;
+        do {
+            cmgr.sendOutgoingMessages(System.currentTimeMillis());
+            if (cmgr._oflowqs.isEmpty()) {
+                return;
+            }
+            Thread.sleep(5);
+        } while (System.currentTimeMillis() < deadline);
+        fail("Failed to flush overflow queues");
+    }
+
+    /**
+     * Waits for the connection manager to have accepted the specified number of connections and
+     * to be servicing the specified number of handlers.
+     */
+    protected void waitFor (ConnectionManager cmgr, int connects, int handlers)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000L;
+        ConMgrStats stats;
+        do {
+            stats = cmgr.getStats();
+            if (stats.connects == connects && stats.handlerCount == handlers) {
+                return;
+            }
+            Thread.sleep(5);
+        } while (System.currentTimeMillis() < deadline);
+        fail("Timed out waiting for connections " + stats);
+    }
+
+    /** Reads a fixed number of bytes from our peer socket on a separate thread. */
+    protected class Reader extends Thread
+    {
+        public Reader (int length)
+        {
+            _length = length;
+            start();
+        }
+
+        @Override
+        public void run ()
+        {
+            try {
+                InputStream in = _peer.socket().getInputStream();
+                byte[] buf = new byte[8192];
+                while (_data.size() < _length) {
+                    int got = in.read(buf, 0, Math.min(buf.length, _length - _data.size()));
+                    if (got < 0) {
+                        break;
+                    }
+                    _data.write(buf, 0, got);
+                }
+            } catch (IOException ioe) {
+                _error = ioe;
+            }
+        }
+
+        public byte[] await ()
+            throws Exception
+        {
+            join(10000L);
+            if (_error != null) {
+                throw _error;
+            }
+            assertEquals(_length, _data.size());
+            return _data.toByteArray();
+        }
+
+        protected int _length;
+        protected ByteArrayOutputStream _data = new ByteArrayOutputStream();
+        protected IOException _error;
+    }
+
+    protected static class TestConnectionManager extends ConnectionManager
+    {
+        public TestConnectionManager ()
+            throws IOException
+        {
+            super(new Lifecycle(), 60 * 1000L);
+        }
+
+        /** The connections we've accepted, in the order they were accepted. */
+        public List<TestConnection> conns = Collections.synchronizedList(
+            Lists.<TestConnection>newArrayList());
+
+        @Override
+        protected void handleAcceptedSocket (SocketChannel channel)
+        {
+            TestConnection conn = new TestConnection();
+            conns.add(conn);
+            handleAcceptedSocket(channel, conn);
+        }
+    }
+
+    protected static class TestConnection extends Connection
+    {
+        /** The first byte read from our socket. */
+        public volatile int ident = -1;
+
+        /** The thread that first read from our socket. */
+        public volatile Thread reader;
+
+        public int handleEvent (long when)
+        {
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            try {
+                int got = getChannel().read(buf);
+                if (got < 0) {
+                    close();
+                } else if (got > 0 && reader == null) {
+                    ident = buf.get(0);
+                    reader = Thread.currentThread();
+                }
+            } catch (IOException ioe) {
+                networkFailure(ioe);
+            }
+            return 0;
+        }
+    }
+
+    protected static byte[] frame (int tag, int length)
+    {
+        byte[] data = new byte[length];
+        for (int ii = 0; ii < length; ii++) {
+            data[ii] = (byte)(tag + ii);
+        }
+        return data;
+    }
+
+    protected static int total (List<byte[]> msgs)
+    {
+        int total = 0;
+        for (byte[] msg : msgs) {
+            total += msg.length;
+        }
+        return total;
+    }
+
+    protected static byte[] concat (List<byte[]> msgs)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] msg : msgs) {
+            out.write(msg, 0, msg.length);
+        }
+        return out.toByteArray();
+    }
+
+    protected ServerSocketChannel _server;
+    protected SocketChannel _peer;
+}
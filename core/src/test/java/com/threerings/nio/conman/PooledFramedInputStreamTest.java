@@ -0,0 +1,95 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.io.FramingOutputStream;
+
+/**
+ * Tests the {@link PooledFramedInputStream} class.
+ */
+public class PooledFramedInputStreamTest
+{
+    @Test
+    public void testInterleaved ()
+        throws IOException
+    {
+        PooledFramedInputStream.ReadBuffer shared = new PooledFramedInputStream.ReadBuffer();
+        Pipe pipe1 = Pipe.open(), pipe2 = Pipe.open();
+        pipe1.source().configureBlocking(false);
+        pipe2.source().configureBlocking(false);
+        PooledFramedInputStream fin1 = new PooledFramedInputStream(shared);
+        PooledFramedInputStream fin2 = new PooledFramedInputStream(shared);
+
+        // two complete frames and the start of a third on the first stream
+        ByteBuffer frames = frame("one", "two");
+        ByteBuffer third = frame("three");
+        int thirdLength = third.limit();
+        pipe1.sink().write(frames);
+        third.limit(5);
+        pipe1.sink().write(third);
+
+        assertTrue(fin1.readFrame(pipe1.source()));
+        assertEquals("one", new DataInputStream(fin1).readUTF());
+        assertTrue(fin1.readFrame(pipe1.source()));
+        assertEquals("two", new DataInputStream(fin1).readUTF());
+        assertFalse(fin1.readFrame(pipe1.source()));
+
+        // the second stream uses the shared buffer in the meanwhile
+        pipe2.sink().write(frame("four"));
+        assertTrue(fin2.readFrame(pipe2.source()));
+        assertEquals("four", new DataInputStream(fin2).readUTF());
+        assertFalse(fin2.readFrame(pipe2.source()));
+
+        // now the rest of the first stream's partial frame arrives
+        third.limit(thirdLength);
+        pipe1.sink().write(third);
+        assertTrue(fin1.readFrame(pipe1.source()));
+        assertEquals("three", new DataInputStream(fin1).readUTF());
+        assertEquals(-1, fin1.read());
+        assertFalse(fin1.readFrame(pipe1.source()));
+    }
+
+    protected static ByteBuffer frame (String... values)
+        throws IOException
+    {
+        FramingOutputStream fout = new FramingOutputStream();
+        DataOutputStream dout = new DataOutputStream(fout);
+        ByteBuffer frames = ByteBuffer.allocate(1024);
+        for (String value : values) {
+            dout.writeUTF(value);
+            frames.put(fout.frameAndReturnBuffer());
+            fout.resetFrame();
+        }
+        frames.flip();
+        return frames;
+    }
+}
@@ -0,0 +1,70 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.nio.conman;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TimerWheel} class.
+ */
+public class TimerWheelTest
+{
+    @Test
+    public void testExpire ()
+    {
+        TimerWheel<String> wheel = new TimerWheel<String>(100, 1000, 0);
+        wheel.schedule("a", 250);
+        wheel.schedule("b", 950);
+        wheel.schedule("c", 5000); // several revolutions out
+        wheel.schedule("d", -50); // already due
+        assertEquals(4, wheel.size());
+
+        assertEquals(Arrays.asList("d"), expire(wheel, 150));
+        assertEquals(Arrays.asList(), expire(wheel, 199));
+        assertEquals(Arrays.asList("a"), expire(wheel, 299));
+        assertEquals(Arrays.asList("b"), expire(wheel, 1200));
+        assertEquals(Arrays.asList(), expire(wheel, 4000));
+        assertEquals(1, wheel.size());
+
+        // a long jump must still find everything that has come due
+        wheel.schedule("e", 4500);
+        assertEquals(Arrays.asList("c", "e"), sorted(expire(wheel, 60000)));
+        assertEquals(0, wheel.size());
+    }
+
+    protected static List<String> expire (TimerWheel<String> wheel, long now)
+    {
+        return wheel.expire(now, new ArrayList<String>());
+    }
+
+    protected static List<String> sorted (List<String> list)
+    {
+        Collections.sort(list);
+        return list;
+    }
+}
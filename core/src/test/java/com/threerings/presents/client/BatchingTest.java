@@ -0,0 +1,86 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.client;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.presents.net.CompoundUpstreamMessage;
+import com.threerings.presents.net.UnsubscribeRequest;
+import com.threerings.presents.net.UpstreamMessage;
+
+/**
+ * Tests the batching of outgoing messages by the {@link BlockingCommunicator}.
+ */
+public class BatchingTest
+{
+    @Test
+    public void testUnbatched ()
+    {
+        BlockingCommunicator comm = new BlockingCommunicator(null);
+        comm.postMessage(new UnsubscribeRequest(1));
+        comm.postMessage(new UnsubscribeRequest(2));
+        assertEquals(1, ((UnsubscribeRequest)comm.nextMessage()).getOid());
+        assertEquals(2, ((UnsubscribeRequest)comm.nextMessage()).getOid());
+    }
+
+    @Test
+    public void testBatched ()
+    {
+        BlockingCommunicator comm = new BlockingCommunicator(null);
+        comm.setUpstreamBatching(3, 0L);
+        for (int ii = 1; ii <= 5; ii++) {
+            comm.postMessage(new UnsubscribeRequest(ii));
+        }
+        comm.postMessage(new BlockingCommunicator.TerminationMessage());
+
+        // the queued messages are sent in order, at most three to a frame
+        assertBatch(comm.nextMessage(), 1, 2, 3);
+        assertBatch(comm.nextMessage(), 4, 5);
+        assertTrue(comm.nextMessage() instanceof BlockingCommunicator.TerminationMessage);
+    }
+
+    @Test
+    public void testLoneMessage ()
+    {
+        BlockingCommunicator comm = new BlockingCommunicator(null);
+        comm.setUpstreamBatching(10, 20L);
+        comm.postMessage(new UnsubscribeRequest(7));
+
+        // a message with nothing following it is sent as is once the delay expires
+        long start = System.currentTimeMillis();
+        UpstreamMessage msg = comm.nextMessage();
+        assertEquals(7, ((UnsubscribeRequest)msg).getOid());
+        assertTrue(System.currentTimeMillis() - start >= 15L);
+    }
+
+    protected static void assertBatch (UpstreamMessage msg, int... oids)
+    {
+        assertTrue(msg instanceof CompoundUpstreamMessage);
+        CompoundUpstreamMessage batch = (CompoundUpstreamMessage)msg;
+        assertEquals(oids.length, batch.msgs.size());
+        for (int ii = 0; ii < oids.length; ii++) {
+            assertEquals(oids[ii], ((UnsubscribeRequest)batch.msgs.get(ii)).getOid());
+        }
+    }
+}
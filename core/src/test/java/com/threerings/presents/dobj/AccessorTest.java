@@ -0,0 +1,98 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.presents.data.TestObject;
+
+/**
+ * Tests the generated {@link Accessor}s.
+ */
+public class AccessorTest
+{
+    @Test public void testGeneratedAccessors ()
+    {
+        TestObject obj = new TestObject();
+        for (String name : new String[] { TestObject.FOO, TestObject.BAR, TestObject.INTS,
+                                          TestObject.LIST, TestObject.LONGS }) {
+            assertTrue(obj.getAccessor(name) instanceof Accessor.Generated);
+        }
+
+        obj.setAttribute(TestObject.FOO, 42);
+        assertEquals(42, obj.foo);
+        assertEquals(42, obj.getAttribute(TestObject.FOO));
+        // numeric values are converted as they are by reflection
+        obj.setAttribute(TestObject.FOO, (short)7);
+        assertEquals(7, obj.foo);
+
+        obj.setAttribute(TestObject.BAR, "bar");
+        assertEquals("bar", obj.bar);
+        assertEquals("bar", obj.getAttribute(TestObject.BAR));
+
+        int[] ints = { 1, 2, 3 };
+        obj.setAttribute(TestObject.INTS, ints);
+        assertSame(ints, obj.ints);
+
+        ArrayList<Long> longs = new ArrayList<Long>();
+        obj.setAttribute(TestObject.LONGS, longs);
+        assertSame(longs, obj.getAttribute(TestObject.LONGS));
+
+        try {
+            obj.getAttribute("nonesuch");
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    @Test public void testConversions ()
+        throws Exception
+    {
+        // the generated accessors should accept and reject the same values as Field.set
+        Object[] values = { 3, (short)3, (byte)3, 'c', 3L, 3f, 3d, true, null, "3" };
+        for (String name : new String[] { TestObject.FOO, TestObject.BAR }) {
+            Accessor gacc = new TestObject().getAccessor(name);
+            Accessor racc = new Accessor.ByField(TestObject.class.getField(name));
+            for (Object value : values) {
+                TestObject gobj = new TestObject(), robj = new TestObject();
+                boolean gok = set(gacc, gobj, value), rok = set(racc, robj, value);
+                assertEquals(name + " = " + value, rok, gok);
+                assertEquals(racc.get(robj), gacc.get(gobj));
+            }
+        }
+    }
+
+    protected static boolean set (Accessor acc, DObject obj, Object value)
+    {
+        try {
+            acc.set(obj, value);
+            return true;
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+    }
+}
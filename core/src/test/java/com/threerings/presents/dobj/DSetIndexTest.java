@@ -0,0 +1,80 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link DSetIndex} class.
+ */
+public class DSetIndexTest
+{
+    @Test public void testMaintenance ()
+    {
+        DSet<HashDSetTest.Item> set = DSet.newDSet();
+        set.add(new HashDSetTest.Item("a", 1));
+        set.add(new HashDSetTest.Item("b", 2));
+        ByValue index = new ByValue();
+
+        // the index is built on first use and then maintained as the set changes
+        assertEquals("a", index.get(set, 1).key);
+        assertNull(index.get(set, 3));
+        set.add(new HashDSetTest.Item("c", 3));
+        assertEquals("c", index.get(set, 3).key);
+        set.update(new HashDSetTest.Item("a", 4));
+        assertNull(index.get(set, 1));
+        assertEquals("a", index.get(set, 4).key);
+        set.removeKey("b");
+        assertNull(index.get(set, 2));
+        assertEquals(2, index._entries.size());
+
+        // clones are not indexed until the index is used with them
+        DSet<HashDSetTest.Item> clone = set.clone();
+        clone.removeKey("c");
+        assertEquals("c", index.get(set, 3).key);
+        assertNull(index.get(clone, 3));
+        assertTrue(set._indexes.isEmpty());
+        set.removeKey("a");
+        assertEquals("a", index.get(clone, 4).key);
+
+        // hash sets are indexed too
+        HashDSet<HashDSetTest.Item> hset = HashDSet.newHashDSet();
+        hset.add(new HashDSetTest.Item("d", 5));
+        assertEquals("d", index.get(hset, 5).key);
+        hset.update(new HashDSetTest.Item("d", 6));
+        hset.add(new HashDSetTest.Item("e", 7));
+        assertNull(index.get(hset, 5));
+        assertEquals("d", index.get(hset, 6).key);
+        assertEquals("e", index.get(hset, 7).key);
+        hset.removeKey("e");
+        assertNull(index.get(hset, 7));
+    }
+
+    protected static class ByValue extends DSetIndex<Integer, HashDSetTest.Item>
+    {
+        @Override protected Integer getIndexKey (HashDSetTest.Item item) {
+            return item.value;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.dobj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+import com.threerings.io.SimpleStreamableObject;
+
+/**
+ * Tests the {@link EntryPatchedEvent} class.
+ */
+public class EntryPatchedEventTest
+{
+    public static class Item extends SimpleStreamableObject
+        implements DSet.DeltaEntry, Cloneable
+    {
+        public int id;
+        public String name = "item";
+        public int count;
+        public int[] stats = { 1, 2, 3 };
+        public String description = "A rather long description that we'd rather not resend.";
+        public transient int cached;
+
+        public Item ()
+        {
+        }
+
+        public Item (int id)
+        {
+            this.id = id;
+        }
+
+        public Comparable<?> getKey ()
+        {
+            return id;
+        }
+
+        @Override
+        public Item clone ()
+        {
+            try {
+                return (Item)super.clone();
+            } catch (CloneNotSupportedException cnse) {
+                throw new AssertionError(cnse);
+            }
+        }
+    }
+
+    public static class CustomItem extends Item
+    {
+        public void writeObject (ObjectOutputStream out)
+            throws IOException
+        {
+            out.defaultWriteObject();
+        }
+
+        public void readObject (ObjectInputStream in)
+            throws IOException, ClassNotFoundException
+        {
+            in.defaultReadObject();
+        }
+    }
+
+    public static class FieldItem extends Item
+    {
+        public int extra;
+
+        public void writeField_extra (ObjectOutputStream out)
+            throws IOException
+        {
+            out.writeInt(extra);
+        }
+
+        public void readField_extra (ObjectInputStream in)
+            throws IOException
+        {
+            extra = in.readInt();
+        }
+    }
+
+    public static class ItemObject extends DObject
+    {
+        public DSet<Item> items = DSet.newDSet();
+    }
+
+    @Test
+    public void testPatch ()
+        throws Exception
+    {
+        Item old = new Item(7), item = old.clone();
+        item.count = 42;
+        item.stats = new int[] { 1, 2, 3 }; // equal contents, so not sent
+
+        EntryUpdatedEvent<Item> event = EntryPatchedEvent.create(1, "items", item, old);
+        assertTrue(event instanceof EntryPatchedEvent<?>);
+        assertTrue(event.alreadyApplied());
+        assertSame(old, event.getOldEntry());
+
+        // the patch should be much smaller than the whole entry
+        byte[] data = flatten(event);
+        assertTrue(data.length < flatten(new EntryUpdatedEvent<Item>(1, "items", item)).length);
+
+        // apply the patch to a subscriber's copy of the set
+        ItemObject obj = new ItemObject();
+        Item sold = new Item(7);
+        sold.cached = 99;
+        obj.items.add(sold);
+        @SuppressWarnings("unchecked") EntryUpdatedEvent<Item> revent =
+            (EntryUpdatedEvent<Item>)unflatten(data);
+        assertEquals(7, revent.getKey());
+        assertFalse(revent.alreadyApplied());
+        assertTrue(revent.applyToObject(obj));
+
+        Item patched = obj.items.get(7);
+        assertNotSame(sold, patched);
+        assertSame(sold, revent.getOldEntry());
+        assertSame(patched, revent.getEntry());
+        assertEquals(42, patched.count);
+        assertEquals(0, sold.count);
+        assertEquals(item.name, patched.name);
+        assertSame(sold.stats, patched.stats);
+        assertSame(sold.description, patched.description);
+        assertEquals(0, patched.cached); // transient, so not copied
+    }
+
+    @Test
+    public void testFallback ()
+    {
+        Item old = new Item(7);
+
+        // unknown old entries and in-place updates are sent whole
+        assertFalse(EntryPatchedEvent.create(1, "items", old.clone(), null)
+                    instanceof EntryPatchedEvent<?>);
+        assertFalse(EntryPatchedEvent.create(1, "items", old, old)
+                    instanceof EntryPatchedEvent<?>);
+
+        // as are entries that have not opted in
+        DSetTest.TestEntry plain = new DSetTest.TestEntry(3);
+        assertFalse(EntryPatchedEvent.create(1, "items", plain, new DSetTest.TestEntry(3))
+                    instanceof EntryPatchedEvent<?>);
+
+        // and entries that customize their streaming
+        CustomItem custom = new CustomItem();
+        custom.count = 1;
+        assertFalse(EntryPatchedEvent.create(1, "items", custom, new CustomItem())
+                    instanceof EntryPatchedEvent<?>);
+        FieldItem fielded = new FieldItem();
+        fielded.count = 1;
+        assertFalse(EntryPatchedEvent.create(1, "items", fielded, new FieldItem())
+                    instanceof EntryPatchedEvent<?>);
+    }
+
+    protected static byte[] flatten (Object object)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(object);
+        return bout.toByteArray();
+    }
+
+    protected static Object unflatten (byte[] data)
+        throws IOException, ClassNotFoundException
+    {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
@@ -0,0 +1,156 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import java.util.List;
+import java.util.Random;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+import com.threerings.io.SimpleStreamableObject;
+
+/**
+ * Tests the {@link HashDSet} class.
+ */
+public class HashDSetTest
+{
+    public static class Item extends SimpleStreamableObject
+        implements DSet.Entry
+    {
+        public String key;
+        public int value;
+
+        public Item ()
+        {
+        }
+
+        public Item (String key, int value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Comparable<?> getKey ()
+        {
+            return key;
+        }
+    }
+
+    @Test public void testAgainstDSet ()
+        throws IOException, ClassNotFoundException
+    {
+        Random rando = new Random(42);
+        DSet<Item> expect = DSet.newDSet();
+        HashDSet<Item> set = HashDSet.newHashDSet();
+
+        for (int ii = 0; ii < 5000; ii++) {
+            String key = "item" + rando.nextInt(500);
+            Item item = new Item(key, ii);
+            switch (rando.nextInt(3)) {
+            case 0:
+                // adding duplicates logs a warning, so we test that only once below
+                if (!expect.containsKey(key)) {
+                    assertTrue(expect.add(item));
+                    assertTrue(set.add(item));
+                }
+                break;
+            case 1:
+                assertSame(expect.removeKey(key), set.removeKey(key));
+                break;
+            default:
+                assertSame(expect.update(item), set.update(item));
+                break;
+            }
+            if (ii % 100 == 0) {
+                assertSameEntries(expect, set);
+            }
+        }
+        assertSameEntries(expect, set);
+        assertFalse(set.add(new Item(set.iterator().next().key, 0)));
+        for (int ii = 0; ii < 500; ii++) {
+            String key = "item" + ii;
+            assertSame(expect.get(key), set.get(key));
+        }
+
+        // streamed sets should be read back as normal sets with the same contents
+        @SuppressWarnings("unchecked") DSet<Item> copy = (DSet<Item>)unflatten(flatten(set));
+        assertEquals(DSet.class, copy.getClass());
+        assertSameEntries(expect, copy);
+        assertEquals(expect.size(), copy.size());
+        for (Item item : expect) {
+            assertEquals(item.value, copy.get(item.key).value);
+        }
+
+        // and hash sets should stream exactly like normal sets, class name and all
+        assertArrayEquals(flatten(expect), flatten(set));
+    }
+
+    @Test public void testClone ()
+    {
+        HashDSet<Item> set = HashDSet.newHashDSet();
+        set.add(new Item("a", 1));
+        set.add(new Item("b", 2));
+        HashDSet<Item> clone = set.clone();
+        clone.removeKey("a");
+        clone.add(new Item("c", 3));
+        assertNotNull(set.get("a"));
+        assertNull(set.get("c"));
+        assertEquals(2, set.size());
+        assertNull(clone.get("a"));
+        assertNotNull(clone.get("c"));
+    }
+
+    protected static void assertSameEntries (DSet<Item> expect, DSet<Item> set)
+    {
+        List<Item> eitems = expect.toArrayList(), items = set.toArrayList();
+        assertEquals(eitems.size(), items.size());
+        for (int ii = 0; ii < eitems.size(); ii++) {
+            assertEquals(eitems.get(ii).key, items.get(ii).key);
+        }
+    }
+
+    protected static byte[] flatten (Object object)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(object);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    protected static Object unflatten (byte[] data)
+        throws IOException, ClassNotFoundException
+    {
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
@@ -0,0 +1,124 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.dobj;
+
+import java.util.List;
+import java.util.Random;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+/**
+ * Tests the {@link OidList} class.
+ */
+public class OidListTest
+{
+    @Test public void testAgainstList ()
+        throws IOException, ClassNotFoundException
+    {
+        Random rando = new Random(42);
+        OidList oids = new OidList();
+        List<Integer> expect = Lists.newArrayList();
+
+        // grow well past the indexing threshold, then shrink back below it, and grow again
+        for (int target : new int[] { 1000, 5, 300 }) {
+            for (int ii = 0; ii < 4000; ii++) {
+                int oid = rando.nextInt(2000);
+                boolean adding = (expect.size() < target) ? rando.nextInt(4) != 0 :
+                    rando.nextInt(4) == 0;
+                if (adding) {
+                    assertEquals(!expect.contains(oid), oids.add(oid));
+                    if (!expect.contains(oid)) {
+                        expect.add(oid);
+                    }
+                } else {
+                    assertEquals(expect.remove((Integer)oid), oids.remove(oid));
+                }
+            }
+            assertContents(expect, oids);
+            for (int oid = 0; oid < 2000; oid++) {
+                assertEquals(expect.contains(oid), oids.contains(oid));
+            }
+
+            // the unstreamed list should behave just like the original
+            OidList copy = unflatten(flatten(oids));
+            assertContents(expect, copy);
+            for (int oid : expect) {
+                assertTrue(copy.contains(oid));
+                assertFalse(copy.add(oid));
+            }
+        }
+    }
+
+    @Test public void testOddOids ()
+    {
+        OidList oids = new OidList();
+        for (int ii = 0; ii < 100; ii++) {
+            assertTrue(oids.add(ii * 1024));
+        }
+        assertTrue(oids.add(Integer.MIN_VALUE));
+        assertFalse(oids.add(Integer.MIN_VALUE));
+        assertTrue(oids.contains(Integer.MIN_VALUE));
+        assertTrue(oids.remove(Integer.MIN_VALUE));
+        assertFalse(oids.contains(Integer.MIN_VALUE));
+        for (int ii = 0; ii < 100; ii += 2) {
+            assertTrue(oids.remove(ii * 1024));
+        }
+        for (int ii = 0; ii < 100; ii++) {
+            assertEquals(ii % 2 == 1, oids.contains(ii * 1024));
+        }
+    }
+
+    protected static void assertContents (List<Integer> expect, OidList oids)
+    {
+        assertEquals(expect.size(), oids.size());
+        for (int ii = 0; ii < expect.size(); ii++) {
+            assertEquals((int)expect.get(ii), oids.get(ii));
+        }
+    }
+
+    protected static byte[] flatten (OidList oids)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(oids);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    protected static OidList unflatten (byte[] data)
+        throws IOException, ClassNotFoundException
+    {
+        return (OidList)new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
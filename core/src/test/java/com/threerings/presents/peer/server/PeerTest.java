@@ -21,12 +21,37 @@
 
 package com.threerings.presents.peer.server;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.google.inject.Inject;
+
+import com.samskivert.util.ResultListener;
+
+import com.threerings.util.Name;
+
+import com.threerings.presents.client.InvocationService;
+import com.threerings.presents.data.TestObject;
+import com.threerings.presents.dobj.AttributeChangeListener;
+import com.threerings.presents.dobj.AttributeChangedEvent;
+import com.threerings.presents.dobj.ObjectDeathListener;
+import com.threerings.presents.dobj.ObjectDestroyedEvent;
+import com.threerings.presents.peer.data.ClientInfo;
+import com.threerings.presents.peer.data.NodeObject;
+import com.threerings.presents.server.PresentsDObjectMgr;
+
 /**
  * Tests basic peer network setup and peer communication.
  */
@@ -68,4 +93,604 @@ public class PeerTest
 
         group.shutdown();
     }
+
+    @Test
+    public void testNodeActionAndRequest ()
+        throws Exception
+    {
+        PeerTestGroup group = new PeerTestGroup(2, true);
+        try {
+            final TestPeerManager p1 = connect(group);
+
+            // actions and requests are streamed to the peer and injected and invoked over there
+            final EchoAction local = new EchoAction("local");
+            invoke(group, new Runnable() {
+                public void run () {
+                    // local invocations operate on a copy of the action (and run immediately)
+                    p1.invokeNodeAction("node0", local);
+                    p1.invokeNodeAction("node1", new EchoAction("hello"));
+                    p1.invokeNodeRequest("node1", new EchoRequest("there"), RECEIVER);
+                }
+            });
+            assertEquals("node0:local", _received.poll(5, TimeUnit.SECONDS));
+            assertEquals("node1:hello", _received.poll(5, TimeUnit.SECONDS));
+            assertEquals("node1:there", _received.poll(5, TimeUnit.SECONDS));
+            assertNull(local._peermgr);
+
+            // actions and requests that can't be streamed are rejected on the caller's thread
+            EchoAction bad = new EchoAction("bad");
+            bad._unstreamable = new Object();
+            try {
+                p1.invokeNodeAction(bad);
+                fail("Unstreamable action was accepted");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+            try {
+                p1.invokeNodeAction("node1", bad);
+                fail("Unstreamable action was accepted");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void testActionBatching ()
+        throws Exception
+    {
+        PeerTestGroup group = new PeerTestGroup(2, true);
+        try {
+            final TestPeerManager p1 = connect(group);
+            p1.setActionBatching(0L, 8);
+
+            // a burst of actions is delivered in batches, in order, and ahead of a later request
+            invoke(group, new Runnable() {
+                public void run () {
+                    for (int ii = 0; ii < 10; ii++) {
+                        p1.invokeNodeAction("node1", new EchoAction(String.valueOf(ii)));
+                    }
+                    p1.invokeNodeRequest("node1", new EchoRequest("done"), RECEIVER);
+                }
+            });
+            for (int ii = 0; ii < 10; ii++) {
+                assertEquals("node1:" + ii, _received.poll(5, TimeUnit.SECONDS));
+            }
+            assertEquals("node1:done", _received.poll(5, TimeUnit.SECONDS));
+
+            PeerManager.Stats stats = p1.getStats();
+            assertEquals(2, stats.nodeActionBatches);
+            assertEquals(10, stats.nodeActionsBatched);
+
+            // queued actions are also delivered ahead of anything sent directly via peer services
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.invokeNodeAction("node1", new EchoAction("queued"));
+                    p1._peers.get("node1").nodeobj.peerService.invokeAction(
+                        new EchoAction("direct"));
+                }
+            });
+            assertEquals("node1:queued", _received.poll(5, TimeUnit.SECONDS));
+            assertEquals("node1:direct", _received.poll(5, TimeUnit.SECONDS));
+
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void testClientDirectory ()
+        throws Exception
+    {
+        PeerTestGroup group = new PeerTestGroup(2, true);
+        try {
+            final TestPeerManager p1 = connect(group);
+            final NodeObject remote =
+                group.injectors.get(1).getInstance(TestPeerManager.class).getNodeObject();
+            final Name bob = new Name("bob"), jim = new Name("jim");
+
+            // clients logging onto either node are listed in the directory
+            group.injectors.get(1).getInstance(PresentsDObjectMgr.class).postRunnable(
+                new Runnable() {
+                public void run () {
+                    remote.addToClients(newClientInfo(bob));
+                }
+            });
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.getNodeObject().addToClients(newClientInfo(jim));
+                }
+            });
+            assertEquals("node1", awaitClientNode(group, p1, bob, "node1"));
+            assertEquals("node0", awaitClientNode(group, p1, jim, "node0"));
+
+            // and are cleared from it when they log off
+            group.injectors.get(1).getInstance(PresentsDObjectMgr.class).postRunnable(
+                new Runnable() {
+                public void run () {
+                    remote.removeFromClients(bob);
+                }
+            });
+            assertEquals("null", awaitClientNode(group, p1, bob, null));
+
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void testShardedLocks ()
+        throws Exception
+    {
+        PeerTestGroup group = new PeerTestGroup(2, true);
+        try {
+            final TestPeerManager p1 = group.injectors.get(0).getInstance(TestPeerManager.class);
+            final TestPeerManager p2 = group.injectors.get(1).getInstance(TestPeerManager.class);
+            p1.useShardedLocks();
+            p2.useShardedLocks();
+            connect(group);
+            awaitConnected(group, 1);
+
+            final NodeObject.Lock[] locks = new NodeObject.Lock[LOCK_COUNT];
+            for (int ii = 0; ii < locks.length; ii++) {
+                locks[ii] = new NodeObject.Lock("test", ii);
+            }
+
+            // both nodes agree on which of them owns each lock, and each owns some
+            final BlockingQueue<String> owners = new ArrayBlockingQueue<String>(LOCK_COUNT);
+            invoke(group, new Runnable() {
+                public void run () {
+                    for (NodeObject.Lock lock : locks) {
+                        owners.add(p1._lockmgr.getLockOwner(lock));
+                    }
+                }
+            });
+            final String[] expected = new String[LOCK_COUNT];
+            for (int ii = 0; ii < LOCK_COUNT; ii++) {
+                expected[ii] = owners.poll(5, TimeUnit.SECONDS);
+            }
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    for (NodeObject.Lock lock : locks) {
+                        owners.add(p2._lockmgr.getLockOwner(lock));
+                    }
+                }
+            });
+            for (int ii = 0; ii < LOCK_COUNT; ii++) {
+                assertEquals(expected[ii], owners.poll(5, TimeUnit.SECONDS));
+            }
+            assertTrue(Arrays.asList(expected).contains("node0"));
+            assertTrue(Arrays.asList(expected).contains("node1"));
+
+            // ids must hash the same on every node, which identity hash codes don't
+            try {
+                p1._lockmgr.getLockOwner(new NodeObject.Lock("test", new Comparable<Object>() {
+                    public int compareTo (Object other) {
+                        return 0;
+                    }
+                }));
+                fail("Lock with node-specific id was accepted");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+
+            // a node refuses to grant a lock that it does not own
+            final NodeObject.Lock ownedLock = locks[Arrays.asList(expected).indexOf("node0")];
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.invokeNodeRequest("node1", new ShardedLockManager.LockRequest(
+                        "node0", ownedLock, ShardedLockManager.ACQUIRE), RECEIVER);
+                }
+            });
+            assertEquals("Lock owned by another node", _received.poll(5, TimeUnit.SECONDS));
+
+            // the first node to ask gets each lock
+            invoke(group, new Runnable() {
+                public void run () {
+                    for (NodeObject.Lock lock : locks) {
+                        p1.acquireLock(lock, LOCK_RECEIVER);
+                    }
+                }
+            });
+            awaitLockResults("node0");
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    for (NodeObject.Lock lock : locks) {
+                        p2.acquireLock(lock, LOCK_RECEIVER);
+                    }
+                }
+            });
+            awaitLockResults("node0");
+
+            // and once they're released, the other can have them
+            invoke(group, new Runnable() {
+                public void run () {
+                    for (NodeObject.Lock lock : locks) {
+                        p1.releaseLock(lock, LOCK_RECEIVER);
+                    }
+                }
+            });
+            awaitLockResults("null");
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    for (NodeObject.Lock lock : locks) {
+                        p2.acquireLock(lock, LOCK_RECEIVER);
+                    }
+                }
+            });
+            awaitLockResults("node1");
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.performWithLock(locks[0], new PeerManager.LockedOperation() {
+                        public void run () {
+                            _received.add("ran");
+                        }
+                        public void fail (String peerName) {
+                            _received.add(String.valueOf(peerName));
+                        }
+                    });
+                }
+            });
+            assertEquals("node1", _received.poll(5, TimeUnit.SECONDS));
+
+            // sharded locks are not published in the node objects
+            assertTrue(p1.getNodeObject().locks.isEmpty());
+            assertTrue(p2.getNodeObject().locks.isEmpty());
+            PeerManager.Stats stats = p1.getStats();
+            assertEquals(LOCK_COUNT, stats.locksAcquired);
+            assertEquals(LOCK_COUNT, stats.locksReleased);
+
+            // a lock is held until its owner confirms the release
+            final NodeObject.Lock remoteLock = locks[Arrays.asList(expected).indexOf("node0")];
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    p2.releaseLock(remoteLock, LOCK_RECEIVER);
+                    _received.add(String.valueOf(p2._lockmgr.queryLock(remoteLock)));
+                }
+            });
+            assertEquals("node1", _received.poll(5, TimeUnit.SECONDS));
+            assertEquals("null", _received.poll(5, TimeUnit.SECONDS));
+
+            // an acquisition that times out is released even if the owner grants it late
+            final NodeObject.Lock lateLock = locks[Arrays.asList(expected).indexOf("node1")];
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    p2.releaseLock(lateLock, LOCK_RECEIVER);
+                }
+            });
+            assertEquals("null", _received.poll(5, TimeUnit.SECONDS));
+            p1.setLockTimeout(100L);
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    try {
+                        Thread.sleep(500L); // hold up the owner
+                    } catch (InterruptedException ie) {
+                        // no matter
+                    }
+                }
+            });
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.acquireLock(lateLock, LOCK_RECEIVER);
+                }
+            });
+            assertTrue(String.valueOf(_received.poll(5, TimeUnit.SECONDS)).contains("timed out"));
+            String holder = null;
+            for (int ii = 0; ii < 50; ii++) {
+                invoke(group, 1, new Runnable() {
+                    public void run () {
+                        _received.add(String.valueOf(p2._lockmgr.queryLock(lateLock)));
+                    }
+                });
+                if ("null".equals(holder = (String)_received.poll(5, TimeUnit.SECONDS))) {
+                    break;
+                }
+                Thread.sleep(20);
+            }
+            assertEquals("null", holder);
+
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    @Test
+    public void testProxyResubscription ()
+        throws Exception
+    {
+        PeerTestGroup group = new PeerTestGroup(2, true);
+        try {
+            final TestPeerManager p1 = connect(group);
+            final PresentsDObjectMgr omgr1 =
+                group.injectors.get(0).getInstance(PresentsDObjectMgr.class);
+            final PresentsDObjectMgr omgr2 =
+                group.injectors.get(1).getInstance(PresentsDObjectMgr.class);
+
+            // create an object on the second node and proxy it on the first
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    _received.add(omgr2.registerObject(new TestObject()));
+                }
+            });
+            final TestObject remote = (TestObject)_received.poll(5, TimeUnit.SECONDS);
+            final List<String> changed = Collections.synchronizedList(new ArrayList<String>());
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.proxyRemoteObject("node1", remote.getOid(), new ResultListener<Integer>() {
+                        public void requestCompleted (Integer oid) {
+                            TestObject proxy = (TestObject)omgr1.getObject(oid);
+                            // note changes ahead of FOO_RECEIVER, which wakes the test
+                            proxy.addListener(new AttributeChangeListener() {
+                                public void attributeChanged (AttributeChangedEvent event) {
+                                    changed.add(event.getName());
+                                }
+                            });
+                            proxy.addListener(FOO_RECEIVER);
+                            proxy.addListener(new ObjectDeathListener() {
+                                public void objectDestroyed (ObjectDestroyedEvent event) {
+                                    _received.add("destroyed");
+                                }
+                            });
+                            _received.add(proxy);
+                        }
+                        public void requestFailed (Exception cause) {
+                            _received.add(cause);
+                        }
+                    });
+                }
+            });
+            TestObject proxy = (TestObject)_received.poll(5, TimeUnit.SECONDS);
+            int proxyOid = proxy.getOid();
+
+            // events dispatched together are delivered to the proxy together
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    remote.setFoo(1);
+                    remote.setBar("one");
+                }
+            });
+            assertEquals("foo:1", _received.poll(5, TimeUnit.SECONDS));
+            PeerManager.Stats stats =
+                group.injectors.get(1).getInstance(TestPeerManager.class).getStats();
+            assertTrue(stats.peerMessageBatches > 0);
+
+            // drop our connection to the second node and change the object while we're away
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.getPeerClient("node1").logoff(false);
+                }
+            });
+            for (int ii = 0; ii < 50 && p1.getPeerNodeObject("node1") != null; ii++) {
+                Thread.sleep(100);
+            }
+            assertNull(p1.getPeerNodeObject("node1"));
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    remote.setFoo(2);
+                }
+            });
+
+            // once we reconnect, the proxy catches up and carries on receiving events
+            awaitConnected(group, 0);
+            assertEquals("foo:2", _received.poll(5, TimeUnit.SECONDS));
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    remote.setFoo(3);
+                }
+            });
+            assertEquals("foo:3", _received.poll(5, TimeUnit.SECONDS));
+            // fields whose contents did not change are left alone, arrays and lists included
+            assertEquals(Arrays.asList("foo", "bar", "foo", "foo"), changed);
+            assertEquals(proxyOid, proxy.getOid());
+            assertEquals("one", proxy.bar);
+
+            // if the object goes away while we're disconnected, the proxy is destroyed, after
+            // which it may be unproxied without complaint
+            invoke(group, new Runnable() {
+                public void run () {
+                    p1.getPeerClient("node1").logoff(false);
+                }
+            });
+            for (int ii = 0; ii < 50 && p1.getPeerNodeObject("node1") != null; ii++) {
+                Thread.sleep(100);
+            }
+            invoke(group, 1, new Runnable() {
+                public void run () {
+                    remote.destroy();
+                }
+            });
+            final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+            Handler handler = new Handler() {
+                @Override public void publish (LogRecord record) {
+                    if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                        warnings.add(record.getMessage());
+                    }
+                }
+                @Override public void flush () {}
+                @Override public void close () {}
+            };
+            java.util.logging.Logger.getLogger("com.threerings.presents").addHandler(handler);
+            try {
+                awaitConnected(group, 0);
+                assertEquals("destroyed", _received.poll(5, TimeUnit.SECONDS));
+                invoke(group, new Runnable() {
+                    public void run () {
+                        p1.unproxyRemoteObject("node1", remote.getOid());
+                        _received.add("unproxied");
+                    }
+                });
+                assertEquals("unproxied", _received.poll(5, TimeUnit.SECONDS));
+                assertEquals(Collections.emptyList(), warnings);
+            } finally {
+                java.util.logging.Logger.getLogger("com.threerings.presents").removeHandler(handler);
+            }
+
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    /**
+     * Waits for a result for each of our test locks and checks that they are all as expected.
+     */
+    protected void awaitLockResults (String expected)
+        throws InterruptedException
+    {
+        for (int ii = 0; ii < LOCK_COUNT; ii++) {
+            assertEquals(expected, _received.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    protected static ClientInfo newClientInfo (Name username)
+    {
+        ClientInfo info = new ClientInfo();
+        info.username = username;
+        return info;
+    }
+
+    /**
+     * Waits for the directory of the supplied peer manager to report that the specified client is
+     * logged onto the expected node (or onto none, if that is null) and returns the node that it
+     * last reported.
+     */
+    protected String awaitClientNode (
+        PeerTestGroup group, final PeerManager peermgr, final Name username, String expected)
+        throws InterruptedException
+    {
+        String node = null;
+        for (int ii = 0; ii < 50; ii++) {
+            final BlockingQueue<String> result = new ArrayBlockingQueue<String>(1);
+            invoke(group, new Runnable() {
+                public void run () {
+                    String node = peermgr.locateClientNode(username);
+                    ClientInfo info = peermgr.locateClient(username);
+                    boolean consistent = (info == null) ?
+                        (node == null) : info.username.equals(username);
+                    result.add(consistent ? String.valueOf(node) : "inconsistent");
+                }
+            });
+            node = result.poll(5, TimeUnit.SECONDS);
+            if (String.valueOf(expected).equals(node)) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        return node;
+    }
+
+    /**
+     * Starts up the supplied group and waits for its first server to connect to the second.
+     */
+    protected TestPeerManager connect (PeerTestGroup group)
+        throws InterruptedException
+    {
+        group.start();
+        return awaitConnected(group, 0);
+    }
+
+    /**
+     * Waits for the specified server of a started group to connect to the others.
+     */
+    protected TestPeerManager awaitConnected (PeerTestGroup group, int index)
+        throws InterruptedException
+    {
+        TestPeerManager peermgr = group.injectors.get(index).getInstance(TestPeerManager.class);
+        int peers = group.servers.size() - 1;
+
+        // our peers' node records are written as the servers start up, so keep looking for them
+        // until we connect; we may also have connected already, if they found us first
+        for (int ii = 0; ii < 50 && peermgr.getConnectedPeers().size() < peers; ii++) {
+            peermgr.refreshPeers();
+            Thread.sleep(100);
+        }
+        assertEquals(peers, peermgr.getConnectedPeers().size());
+        return peermgr;
+    }
+
+    /**
+     * Runs the supplied code on the dobjmgr thread of the group's first server.
+     */
+    protected void invoke (PeerTestGroup group, Runnable code)
+    {
+        invoke(group, 0, code);
+    }
+
+    /**
+     * Runs the supplied code on the dobjmgr thread of the specified server of the group.
+     */
+    protected void invoke (PeerTestGroup group, int index, Runnable code)
+    {
+        group.injectors.get(index).getInstance(PresentsDObjectMgr.class).postRunnable(code);
+    }
+
+    protected static class EchoAction extends PeerManager.NodeAction
+    {
+        public EchoAction (String message) {
+            _message = message;
+        }
+
+        public boolean isApplicable (NodeObject nodeobj) {
+            return true;
+        }
+
+        @Override protected void execute () {
+            _received.add(_peermgr.getNodeObject().nodeName + ":" + _message);
+        }
+
+        protected String _message;
+        protected Object _unstreamable;
+        @Inject protected transient PeerManager _peermgr;
+    }
+
+    protected static class EchoRequest extends PeerManager.NodeRequest
+    {
+        public EchoRequest (String message) {
+            _message = message;
+        }
+
+        public boolean isApplicable (NodeObject nodeobj) {
+            return true;
+        }
+
+        @Override protected void execute (InvocationService.ResultListener listener) {
+            listener.requestProcessed(_peermgr.getNodeObject().nodeName + ":" + _message);
+        }
+
+        protected String _message;
+        @Inject protected transient PeerManager _peermgr;
+    }
+
+    protected static final InvocationService.ResultListener RECEIVER =
+        new InvocationService.ResultListener() {
+        public void requestProcessed (Object result) {
+            _received.add(result);
+        }
+        public void requestFailed (String cause) {
+            _received.add(cause);
+        }
+    };
+
+    protected static final AttributeChangeListener FOO_RECEIVER = new AttributeChangeListener() {
+        public void attributeChanged (AttributeChangedEvent event) {
+            if (TestObject.FOO.equals(event.getName())) {
+                _received.add("foo:" + event.getValue());
+            }
+        }
+    };
+
+    protected static final ResultListener<String> LOCK_RECEIVER = new ResultListener<String>() {
+        public void requestCompleted (String result) {
+            _received.add(String.valueOf(result));
+        }
+        public void requestFailed (Exception cause) {
+            _received.add(cause.toString());
+        }
+    };
+
+    protected static BlockingQueue<Object> _received = new ArrayBlockingQueue<Object>(64);
+
+    protected static final int LOCK_COUNT = 16;
 }
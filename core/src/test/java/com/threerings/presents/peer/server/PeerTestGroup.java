@@ -21,6 +21,8 @@
 
 package com.threerings.presents.peer.server;
 
+import java.io.IOException;
+import java.net.ServerSocket;
 import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
@@ -53,9 +55,12 @@ public class PeerTestGroup
             Logger.getLogger("").setLevel(Level.WARNING);
         }
 
+        // each group gets its own database, so that we don't find node records left by the groups
+        // of earlier tests and connect to their servers as they shut down
+        String dburl = "jdbc:hsqldb:mem:testdb" + (++_groups);
         for (int ii = 0; ii < count; ii++) {
             final String nodename = "node" + ii;
-            final int port = BASE_PORT + ii;
+            final int port = findFreePort();
 
             Injector inj = Guice.createInjector(new PresentsServer.PresentsModule() {
                 @Override protected void configure () {
@@ -70,7 +75,7 @@ public class PeerTestGroup
             PersistenceContext pctx = inj .getInstance(PersistenceContext.class);
             Properties props = new Properties();
             props.put("default.driver", "org.hsqldb.jdbcDriver");
-            props.put("default.url", "jdbc:hsqldb:mem:testdb");
+            props.put("default.url", dburl);
             props.put("default.username", "sa");
             props.put("default.password", "");
             pctx.init("testdb", new StaticConnectionProvider(props), null);
@@ -106,15 +111,31 @@ public class PeerTestGroup
             server.queueShutdown();
         }
         try {
-            // shutdown our servers
+            // wait for our servers to shut down so that they don't linger into the next test
             for (Thread t : _threads) {
-                t.join(1000);
+                t.join(SHUTDOWN_TIMEOUT);
+                Preconditions.checkState(!t.isAlive(), "Server failed to shut down.");
             }
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Returns a port that is currently free, so that groups started by successive tests in the
+     * same VM don't collide with one another or with anything else running on the machine.
+     */
+    protected static int findFreePort ()
+        throws IOException
+    {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
     protected static class PeerTestServer extends PresentsServer {
         public PeerTestServer (int port) {
             _ports = new int[] { port };
@@ -128,5 +149,7 @@ public class PeerTestGroup
 
     protected final List<Thread> _threads = Lists.newArrayList();
 
-    protected static final int BASE_PORT = 1234;
+    protected static int _groups;
+
+    protected static final long SHUTDOWN_TIMEOUT = 10 * 1000L;
 }
@@ -21,6 +21,9 @@
 
 package com.threerings.presents.peer.server;
 
+import java.util.Set;
+
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -45,13 +48,44 @@ public class TestPeerManager extends PeerManager
         _onConnected = onConnected;
     }
 
+    /**
+     * Returns the names of the peers to which we are currently connected.
+     */
+    public Set<String> getConnectedPeers () {
+        synchronized (_connected) {
+            return Sets.newHashSet(_connected);
+        }
+    }
+
+    public void setLockTimeout (long lockTimeout) {
+        _lockTimeout = lockTimeout;
+    }
+
+    @Override
+    protected long getLockTimeout () {
+        return (_lockTimeout > 0) ? _lockTimeout : super.getLockTimeout();
+    }
+
     @Override
     protected void connectedToPeer (PeerNode peer) {
         super.connectedToPeer(peer);
+        synchronized (_connected) {
+            _connected.add(peer.nodeobj.nodeName);
+        }
         if (_onConnected != null) {
             _onConnected.apply(peer.nodeobj.nodeName);
         }
     }
 
+    @Override
+    protected void disconnectedFromPeer (PeerNode peer) {
+        super.disconnectedFromPeer(peer);
+        synchronized (_connected) {
+            _connected.remove(peer.getNodeName());
+        }
+    }
+
     protected Callback<String> _onConnected;
+    protected final Set<String> _connected = Sets.newHashSet();
+    protected volatile long _lockTimeout;
 }
@@ -0,0 +1,89 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.presents.data.TestObject;
+import com.threerings.presents.dobj.AttributeChangeListener;
+import com.threerings.presents.dobj.AttributeChangedEvent;
+
+/**
+ * Tests the coalescing of attribute changes by the dobjmgr.
+ */
+public class CoalesceTest extends PresentsTestBase
+    implements AttributeChangeListener
+{
+    @Test public void runTest ()
+    {
+        TestObject coalesced = _omgr.registerObject(new TestObject());
+        coalesced.setCoalesceAttributeChanges(true);
+        coalesced.addListener(this);
+        TestObject normal = _omgr.registerObject(new TestObject());
+        normal.addListener(this);
+
+        coalesced.setFoo(1);
+        normal.setFoo(1);
+        coalesced.setFoo(2);
+        coalesced.setBar("bar");
+        normal.setFoo(2);
+        coalesced.setFoo(3);
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                _omgr.harshShutdown();
+            }
+        });
+        _omgr.run();
+
+        // the coalesced object reports only its final foo (with its original old value)
+        assertEquals(4, _events.size());
+        assertChange(_events.get(0), normal, 1, 0);
+        assertChange(_events.get(1), coalesced, "bar", null);
+        assertChange(_events.get(2), normal, 2, 1);
+        assertChange(_events.get(3), coalesced, 3, 0);
+        assertEquals(2, _omgr.getStats(false).coalescedCount);
+    }
+
+    // from interface AttributeChangeListener
+    public void attributeChanged (AttributeChangedEvent event)
+    {
+        _events.add(event);
+    }
+
+    protected void assertChange (
+        AttributeChangedEvent event, TestObject target, Object value, Object oldValue)
+    {
+        assertEquals(target.getOid(), event.getTargetOid());
+        assertEquals(value, event.getValue());
+        assertEquals(oldValue, event.getOldValue());
+    }
+
+    protected List<AttributeChangedEvent> _events = Lists.newArrayList();
+
+    protected PresentsDObjectMgr _omgr = getInstance(PresentsDObjectMgr.class);
+}
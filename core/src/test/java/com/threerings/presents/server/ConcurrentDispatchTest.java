@@ -0,0 +1,301 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.presents.annotation.ConcurrentDispatch;
+import com.threerings.presents.client.InvocationService;
+import com.threerings.presents.client.TestService;
+import com.threerings.presents.data.ClientObject;
+import com.threerings.presents.data.InvocationMarshaller;
+import com.threerings.presents.data.TestClientObject;
+import com.threerings.presents.data.TestMarshaller;
+import com.threerings.presents.dobj.DEvent;
+import com.threerings.presents.dobj.EventListener;
+import com.threerings.presents.dobj.InvocationRequestEvent;
+import com.threerings.presents.dobj.InvocationResponseEvent;
+
+/**
+ * Tests the dispatch of invocation requests off of the distributed object thread.
+ */
+public class ConcurrentDispatchTest extends PresentsTestBase
+{
+    @Test public void runTest ()
+    {
+        final TestClientObject caller = _omgr.registerObject(new TestClientObject());
+        caller.addListener(new EventListener() {
+            public void eventReceived (DEvent event) {
+                if (event instanceof InvocationResponseEvent) {
+                    _responses.add((InvocationResponseEvent)event);
+                }
+            }
+        });
+        _invmgr.registerDispatchExecutor("test", new Executor() {
+            public void execute (Runnable command) {
+                // run the request on another thread, but wait for it so that the test is orderly
+                _executed++;
+                Thread thread = new Thread(command);
+                thread.start();
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    fail();
+                }
+            }
+        });
+        final TestMarshaller marsh = _invmgr.registerProvider(_provider, TestMarshaller.class);
+
+        // request one method that is dispatched concurrently and one that is not
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                postRequest(caller, marsh, TestMarshaller.TEST,
+                            "one", 2, null, new TestMarshaller.TestFuncMarshaller());
+                postRequest(caller, marsh, TestMarshaller.GIVE_ME_THE_POWER,
+                            new InvocationMarshaller.ConfirmMarshaller());
+            }
+        });
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                // let the responses get through before we shut down
+                _omgr.postRunnable(new Runnable() {
+                    public void run () {
+                        _omgr.harshShutdown();
+                    }
+                });
+            }
+        });
+        _omgr.run();
+
+        assertEquals(1, _executed);
+        assertFalse(_provider.testOnEventThread);
+        assertTrue(_provider.powerOnEventThread);
+        assertEquals(2, _responses.size());
+    }
+
+    @Test public void testInterfaceAnnotation ()
+    {
+        testDefaultPool(_invmgr.registerProvider(_iprovider, TestMarshaller.class));
+    }
+
+    @Test public void testDispatcher ()
+    {
+        testDefaultPool(_invmgr.registerDispatcher(new Dispatcher(_iprovider)));
+    }
+
+    /**
+     * Makes requests of a provider whose interface annotates its <code>test</code> method for
+     * dispatch on the default pool, and checks that they are dispatched thereon, in order.
+     */
+    protected void testDefaultPool (final TestMarshaller marsh)
+    {
+        final TestClientObject[] callers = new TestClientObject[2];
+        for (int ii = 0; ii < callers.length; ii++) {
+            callers[ii] = _omgr.registerObject(new TestClientObject());
+            callers[ii].addListener(new EventListener() {
+                public void eventReceived (DEvent event) {
+                    if (event instanceof InvocationResponseEvent) {
+                        _responses.add((InvocationResponseEvent)event);
+                    }
+                }
+            });
+        }
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                for (int ii = 0; ii < 10; ii++) {
+                    TestClientObject caller = callers[ii % callers.length];
+                    postRequest(caller, marsh, TestMarshaller.TEST, String.valueOf(caller.getOid()),
+                                ii, null, new TestMarshaller.TestFuncMarshaller());
+                }
+                postRequest(callers[0], marsh, TestMarshaller.GIVE_ME_THE_POWER,
+                            new InvocationMarshaller.ConfirmMarshaller());
+            }
+        });
+        shutdownAfter(11);
+        _omgr.run();
+
+        assertEquals(11, _responses.size());
+        assertTrue(_iprovider.powerOnEventThread);
+        for (TestClientObject caller : callers) {
+            List<Integer> calls = _iprovider.calls.get(caller.getOid());
+            assertEquals(5, calls.size());
+            for (int ii = 1; ii < calls.size(); ii++) {
+                assertTrue(calls.get(ii-1) < calls.get(ii));
+            }
+            Set<Thread> threads = _iprovider.threads.get(caller.getOid());
+            assertEquals(1, threads.size());
+            assertTrue(threads.iterator().next().getName().startsWith("InvocationDispatcher-"));
+        }
+
+        // shutting down stops the pool, after which requests are dispatched on the dobj thread
+        _invmgr.shutdown();
+        for (ExecutorService stripe : _invmgr._dispatchStripes) {
+            assertTrue(stripe.isShutdown());
+        }
+        assertNull(_invmgr.getDispatchExecutor(
+            callers[0].getOid(), marsh.getInvocationCode(), TestMarshaller.TEST));
+    }
+
+    /**
+     * Shuts down the distributed object manager once the specified number of responses have been
+     * received.
+     */
+    protected void shutdownAfter (final int responses)
+    {
+        final long deadline = System.currentTimeMillis() + 10000L;
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                if (_responses.size() < responses && System.currentTimeMillis() < deadline) {
+                    _omgr.postRunnable(this);
+                } else {
+                    _omgr.harshShutdown();
+                }
+            }
+        });
+    }
+
+    protected void postRequest (
+        TestClientObject caller, TestMarshaller marsh, int methodId, Object... args)
+    {
+        InvocationRequestEvent event = new InvocationRequestEvent(
+            _invmgr.getOid(), marsh.getInvocationCode(), methodId, args);
+        event.setSourceOid(caller.getOid());
+        _omgr.postEvent(event);
+    }
+
+    protected class Provider implements TestProvider
+    {
+        public boolean testOnEventThread, powerOnEventThread;
+
+        public void getTestOid (TestClientObject caller, TestService.TestOidListener listener) {
+            listener.gotTestOid(0);
+        }
+
+        @ConcurrentDispatch("test")
+        public void test (TestClientObject caller, String one, int two, List<Integer> three,
+                          TestService.TestFuncListener listener) {
+            testOnEventThread = _omgr.isDispatchThread();
+            listener.testSucceeded(one, two);
+        }
+
+        public void giveMeThePower (TestClientObject caller,
+                                    InvocationService.ConfirmListener listener) {
+            powerOnEventThread = _omgr.isDispatchThread();
+            listener.requestProcessed();
+        }
+    }
+
+    /** Holds a provider interface that the invocation manager will find by name (as it does the
+     * generated one) and whose <code>test</code> method is annotated. */
+    protected static class Annotated
+    {
+        public interface TestProvider extends InvocationProvider
+        {
+            @ConcurrentDispatch
+            void test (TestClientObject caller, String one, int two, List<Integer> three,
+                       TestService.TestFuncListener listener);
+
+            void giveMeThePower (TestClientObject caller,
+                                 InvocationService.ConfirmListener listener);
+        }
+    }
+
+    protected class InterfaceProvider implements Annotated.TestProvider
+    {
+        public boolean powerOnEventThread;
+        public Map<Integer, List<Integer>> calls = new ConcurrentHashMap<Integer, List<Integer>>();
+        public Map<Integer, Set<Thread>> threads = new ConcurrentHashMap<Integer, Set<Thread>>();
+
+        public void test (TestClientObject caller, String one, int two, List<Integer> three,
+                          TestService.TestFuncListener listener) {
+            // our caller's oid is passed in as we mustn't touch their object off the dobj thread
+            int oid = Integer.parseInt(one);
+            if (!calls.containsKey(oid)) {
+                calls.put(oid, new CopyOnWriteArrayList<Integer>());
+                threads.put(oid, new CopyOnWriteArraySet<Thread>());
+            }
+            calls.get(oid).add(two);
+            threads.get(oid).add(Thread.currentThread());
+            listener.testSucceeded(one, two);
+        }
+
+        public void giveMeThePower (TestClientObject caller,
+                                    InvocationService.ConfirmListener listener) {
+            powerOnEventThread = _omgr.isDispatchThread();
+            listener.requestProcessed();
+        }
+    }
+
+    /** Dispatches requests to an {@link InterfaceProvider}, as would a generated dispatcher. */
+    protected static class Dispatcher extends InvocationDispatcher<TestMarshaller>
+    {
+        public Dispatcher (Annotated.TestProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public TestMarshaller createMarshaller () {
+            return new TestMarshaller();
+        }
+
+        @Override
+        public void dispatchRequest (ClientObject source, int methodId, Object[] args)
+            throws InvocationException {
+            switch (methodId) {
+            case TestMarshaller.TEST:
+                ((Annotated.TestProvider)provider).test(
+                    (TestClientObject)source, (String)args[0], (Integer)args[1],
+                    this.<List<Integer>>cast(args[2]), (TestService.TestFuncListener)args[3]);
+                return;
+
+            case TestMarshaller.GIVE_ME_THE_POWER:
+                ((Annotated.TestProvider)provider).giveMeThePower(
+                    (TestClientObject)source, (InvocationService.ConfirmListener)args[0]);
+                return;
+
+            default:
+                super.dispatchRequest(source, methodId, args);
+            }
+        }
+    }
+
+    protected int _executed;
+    protected Provider _provider = new Provider();
+    protected InterfaceProvider _iprovider = new InterfaceProvider();
+    protected List<InvocationResponseEvent> _responses = Lists.newArrayList();
+
+    protected PresentsDObjectMgr _omgr = getInstance(PresentsDObjectMgr.class);
+    protected InvocationManager _invmgr = getInstance(InvocationManager.class);
+}
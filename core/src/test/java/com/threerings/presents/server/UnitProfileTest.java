@@ -0,0 +1,94 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.threerings.presents.server.metrics.Histogram;
+
+/**
+ * Tests the dobjmgr's profiling of the units it processes.
+ */
+public class UnitProfileTest extends PresentsTestBase
+{
+    @Test public void runTest ()
+    {
+        _omgr._slowUnitMicros = 5000;
+        for (int ii = 0; ii < 10; ii++) {
+            _omgr.postRunnable(new FastUnit());
+        }
+        _omgr.postRunnable(new SlowUnit());
+        _omgr.postRunnable(new Runnable() {
+            public void run () {
+                _omgr.harshShutdown();
+            }
+        });
+        _omgr.run();
+
+        // every unit is profiled under its type
+        assertEquals(10, getProfile("FastUnit").count);
+        Histogram.Snapshot slow = getProfile("SlowUnit");
+        assertEquals(1, slow.count);
+        assertTrue(slow.min >= 10000);
+
+        // and the time spent waiting in the queue is noted
+        assertEquals(13, _omgr._queueWait.getCurrent().count);
+        assertEquals(13, _omgr._unitTime.getCurrent().count);
+
+        // only the slow unit made the slow list
+        List<PresentsDObjectMgr.SlowUnit> units = _omgr.getSlowUnits();
+        assertEquals(1, units.size());
+        assertEquals("server.UnitProfileTest$SlowUnit", units.get(0).name);
+        assertTrue(units.get(0).queueWait >= 0);
+
+        _omgr.clearUnitProfiles();
+        assertTrue(_omgr.getSlowUnits().isEmpty());
+    }
+
+    protected Histogram.Snapshot getProfile (String unit)
+    {
+        return _omgr._profiles.get("server.UnitProfileTest$" + unit)._histo.getCurrent();
+    }
+
+    protected static class FastUnit implements Runnable
+    {
+        public void run () {
+        }
+    }
+
+    protected static class SlowUnit implements Runnable
+    {
+        public void run () {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                // no worries
+            }
+        }
+    }
+
+    protected PresentsDObjectMgr _omgr = getInstance(PresentsDObjectMgr.class);
+}
@@ -0,0 +1,165 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.presents.server.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the metrics registry and its histograms.
+ */
+public class MetricsTest
+{
+    @Test
+    public void testHistogram ()
+    {
+        Histogram histo = new Histogram();
+        assertEquals(0, histo.getRecent().count);
+        assertEquals(0, histo.getRecent().getPercentile(99));
+
+        // record 1..100000 in a random order
+        int count = 100000;
+        int[] values = new int[count];
+        for (int ii = 0; ii < count; ii++) {
+            values[ii] = ii + 1;
+        }
+        Random rando = new Random(42);
+        for (int ii = count - 1; ii > 0; ii--) {
+            int jj = rando.nextInt(ii + 1), tmp = values[ii];
+            values[ii] = values[jj];
+            values[jj] = tmp;
+        }
+        for (int value : values) {
+            histo.record(value);
+        }
+
+        Histogram.Snapshot snap = histo.getCurrent();
+        assertEquals(count, snap.count);
+        assertEquals(1, snap.min);
+        assertEquals(count, snap.max);
+        assertEquals((count + 1) / 2, snap.getMean());
+        for (double pct : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+            double expect = count * pct / 100;
+            double error = Math.abs(snap.getPercentile(pct) - expect) / expect;
+            assertTrue(pct + "th percentile off by " + error, error < 0.07);
+        }
+        assertEquals(count, snap.getPercentile(100));
+
+        // small values are recorded exactly
+        Histogram small = new Histogram();
+        for (int ii = 0; ii < 10; ii++) {
+            small.record(ii);
+        }
+        assertEquals(4, small.getCurrent().getPercentile(50));
+        assertEquals(9, small.getCurrent().getPercentile(100));
+    }
+
+    @Test
+    public void testRoll ()
+    {
+        Histogram histo = new Histogram();
+        histo.record(10);
+        histo.record(20);
+        histo.roll();
+        histo.record(1000);
+
+        assertEquals(2, histo.getRecent().count);
+        assertEquals(20, histo.getRecent().max);
+        assertEquals(1, histo.getCurrent().count);
+        assertEquals(1000, histo.getCurrent().min);
+
+        histo.roll();
+        histo.roll();
+        assertEquals(0, histo.getRecent().count);
+        assertEquals(0, histo.getRecent().max);
+    }
+
+    @Test
+    public void testRegistry ()
+    {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test.count").increment();
+        registry.counter("test.count").add(2);
+        registry.registerGauge("test.gauge", new Gauge() {
+            public long getValue () {
+                return 42;
+            }
+        });
+        registry.registerSource("test.source", new MetricsRegistry.Source() {
+            public void sample (Map<String, Long> values) {
+                values.put("a", 1L);
+                values.put("b", 2L);
+            }
+        });
+        registry.histogram("test.latency").record(5);
+        registry.rollHistograms();
+
+        Map<String, Long> values = registry.sample();
+        assertEquals(Long.valueOf(3), values.get("test.count"));
+        assertEquals(Long.valueOf(42), values.get("test.gauge"));
+        assertEquals(Long.valueOf(1), values.get("test.source.a"));
+        assertEquals(Long.valueOf(2), values.get("test.source.b"));
+        assertEquals(Long.valueOf(1), values.get("test.latency.count"));
+        assertEquals(Long.valueOf(5), values.get("test.latency.p99"));
+
+        registry.remove("test.gauge");
+        assertFalse(registry.sample().containsKey("test.gauge"));
+    }
+
+    @Test
+    public void testTextExporter ()
+        throws Exception
+    {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test.count").add(7);
+        TextMetricsExporter exporter = new TextMetricsExporter(0);
+        registry.addExporter(exporter);
+        try {
+            Socket sock = new Socket(InetAddress.getByName(null), exporter.getLocalPort());
+            OutputStream out = sock.getOutputStream();
+            out.write("GET / HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            InputStream in = sock.getInputStream();
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            for (int read; (read = in.read(buf)) > 0; ) {
+                bout.write(buf, 0, read);
+            }
+            sock.close();
+            String response = bout.toString("UTF-8");
+            assertTrue(response, response.startsWith("HTTP/1.0 200 OK"));
+            assertTrue(response, response.endsWith("\r\n\r\ntest.count 7\n"));
+        } finally {
+            registry.removeExporter(exporter);
+        }
+        assertEquals(-1, exporter.getLocalPort());
+    }
+}
@@ -0,0 +1,116 @@
+//
+// $Id$
+//
+// Narya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// http://code.google.com/p/narya/
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+package com.threerings.presents.util;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests the {@link UnitQueue} class.
+ */
+public class UnitQueueTest
+{
+    @Test
+    public void testDrain ()
+    {
+        UnitQueue<Integer> queue = new UnitQueue<Integer>();
+        assertFalse(queue.hasElements());
+        assertNull(queue.getNonBlocking());
+        for (int ii = 0; ii < 10; ii++) {
+            queue.append(ii);
+        }
+        assertEquals(10, queue.size());
+
+        List<Integer> into = Lists.newArrayList();
+        assertEquals(4, queue.drainTo(into, 4));
+        assertEquals(Lists.newArrayList(0, 1, 2, 3), into);
+        assertEquals(Integer.valueOf(4), queue.get());
+        assertEquals(5, queue.drainTo(into, 100));
+        assertEquals(9, into.size());
+        assertFalse(queue.hasElements());
+        assertEquals(0, queue.drainTo(into, 100));
+    }
+
+    @Test
+    public void testStamps ()
+    {
+        UnitQueue<Integer> queue = new UnitQueue<Integer>();
+        long before = System.nanoTime();
+        for (int ii = 0; ii < 3; ii++) {
+            queue.append(ii);
+        }
+        long after = System.nanoTime();
+
+        List<Integer> into = Lists.newArrayList();
+        long[] stamps = new long[3];
+        assertEquals(3, queue.drainTo(into, 3, stamps));
+        for (int ii = 0; ii < 3; ii++) {
+            assertTrue(stamps[ii] >= before && stamps[ii] <= after);
+            assertTrue(ii == 0 || stamps[ii] >= stamps[ii-1]);
+        }
+    }
+
+    @Test
+    public void testProducers ()
+        throws InterruptedException
+    {
+        final UnitQueue<int[]> queue = new UnitQueue<int[]>();
+        final int producers = 4, count = 50000;
+        List<Thread> threads = Lists.newArrayList();
+        for (int pp = 0; pp < producers; pp++) {
+            final int producer = pp;
+            threads.add(new Thread() {
+                @Override public void run () {
+                    for (int ii = 0; ii < count; ii++) {
+                        queue.append(new int[] { producer, ii });
+                        if (ii % 1000 == 0) {
+                            Thread.yield(); // give the consumer a chance to park
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // each producer's elements must arrive complete and in order
+        int[] next = new int[producers];
+        List<int[]> batch = Lists.newArrayList();
+        for (int received = 0; received < producers * count; ) {
+            queue.waitForElements();
+            received += queue.drainTo(batch, 64);
+            for (int[] element : batch) {
+                assertEquals(next[element[0]]++, element[1]);
+            }
+            batch.clear();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(queue.hasElements());
+        assertEquals(0, queue.size());
+    }
+}